@@ -0,0 +1,33 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+/**
+ * A benchmarked operation. run() is called repeatedly by BenchmarkRunner
+ * between setUp() and tearDown(), its result is consumed so that the JIT
+ * can't remove the operation.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+
+	protected Benchmark(String name)
+	{
+		this.name = name;
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public void setUp() throws Exception
+	{
+		// nothing by default
+	}
+
+	public abstract Object run() throws Exception;
+
+	public void tearDown() throws Exception
+	{
+		// nothing by default
+	}
+}
@@ -0,0 +1,215 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the bridge benchmarks in a warmed up JVM and reports throughput,
+ * allocation and garbage collection per benchmark.
+ *
+ * Settings are read from system properties:
+ * bench.warmup and bench.iterations (number of iterations, default 5 each),
+ * bench.time (length of an iteration in ms, default 1000),
+ * bench.filter (only run benchmarks whose name contains it),
+ * bench.output (file the results are written to as properties),
+ * bench.baseline (results file of an earlier run to compare against) and
+ * bench.tolerance (allowed throughput drop against the baseline, default 0.2).
+ * The exit code is 1 if any benchmark regressed against the baseline.
+ */
+public class BenchmarkRunner {
+
+	// operations run between two clock reads
+	private static final int BATCH = 256;
+
+	// results are written here so the JIT can't remove the benchmarked operation
+	private static volatile Object blackhole;
+
+	private static final com.sun.management.ThreadMXBean threadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private final int warmupIterations;
+	private final int measurementIterations;
+	private final long iterationNanos;
+
+	public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis)
+	{
+		this.warmupIterations = warmupIterations;
+		this.measurementIterations = measurementIterations;
+		this.iterationNanos = iterationMillis * 1000000L;
+	}
+
+	public static class Result
+	{
+		public final String name;
+		public final double opsPerSecond;
+		public final double bytesPerOp;
+		public final double allocationMBPerSecond;
+		public final long gcCount;
+		public final long gcMillis;
+
+		Result(String name, double opsPerSecond, double bytesPerOp, double allocationMBPerSecond, long gcCount, long gcMillis)
+		{
+			this.name = name;
+			this.opsPerSecond = opsPerSecond;
+			this.bytesPerOp = bytesPerOp;
+			this.allocationMBPerSecond = allocationMBPerSecond;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+	}
+
+	public Result run(Benchmark benchmark) throws Exception
+	{
+		benchmark.setUp();
+		try
+		{
+			for (int i = 0; i < warmupIterations; i++)
+			{
+				iteration(benchmark);
+			}
+
+			long threadId = Thread.currentThread().getId();
+			long gcCountBefore = gcCount();
+			long gcMillisBefore = gcMillis();
+			long bytesBefore = threadBean.getThreadAllocatedBytes(threadId);
+			long ops = 0;
+			long nanos = 0;
+			for (int i = 0; i < measurementIterations; i++)
+			{
+				long start = System.nanoTime();
+				ops += iteration(benchmark);
+				nanos += System.nanoTime() - start;
+			}
+			long bytes = threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+
+			double seconds = nanos / 1e9;
+			return new Result(benchmark.getName(), ops / seconds, (double) bytes / ops, bytes / 1e6 / seconds,
+					gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+		}
+		finally
+		{
+			benchmark.tearDown();
+		}
+	}
+
+	/**
+	 * Runs the benchmark in batches until the iteration time has passed.
+	 * @return number of operations run
+	 */
+	private long iteration(Benchmark benchmark) throws Exception
+	{
+		long ops = 0;
+		long end = System.nanoTime() + iterationNanos;
+		do
+		{
+			for (int i = 0; i < BATCH; i++)
+			{
+				blackhole = benchmark.run();
+			}
+			ops += BATCH;
+		}
+		while (System.nanoTime() < end);
+		return ops;
+	}
+
+	private static long gcCount()
+	{
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long gcMillis()
+	{
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int warmup = Integer.getInteger("bench.warmup", 5);
+		int iterations = Integer.getInteger("bench.iterations", 5);
+		long time = Long.getLong("bench.time", 1000);
+		String filter = System.getProperty("bench.filter");
+		String output = System.getProperty("bench.output");
+		String baselineFile = System.getProperty("bench.baseline");
+		double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.2"));
+
+		Properties baseline = baselineFile != null ? load(baselineFile) : null;
+		Properties results = new Properties();
+		BenchmarkRunner runner = new BenchmarkRunner(warmup, iterations, time);
+		List<Benchmark> benchmarks = BridgeBenchmarks.all();
+		boolean regressed = false;
+
+		System.out.println(String.format("%-45s %14s %12s %12s %6s %8s",
+				"Benchmark", "ops/s", "B/op", "MB/s", "GCs", "GC ms"));
+		for (Benchmark benchmark : benchmarks)
+		{
+			if (filter != null && !benchmark.getName().contains(filter))
+			{
+				continue;
+			}
+			Result result = runner.run(benchmark);
+			System.out.println(String.format("%-45s %14.0f %12.1f %12.1f %6d %8d",
+					result.name, result.opsPerSecond, result.bytesPerOp, result.allocationMBPerSecond,
+					result.gcCount, result.gcMillis));
+			String key = result.name.replace(' ', '_');
+			results.setProperty(key + ".ops_per_s", String.valueOf(result.opsPerSecond));
+			results.setProperty(key + ".bytes_per_op", String.valueOf(result.bytesPerOp));
+
+			if (baseline != null && baseline.getProperty(key + ".ops_per_s") != null)
+			{
+				double baselineOps = Double.parseDouble(baseline.getProperty(key + ".ops_per_s"));
+				if (result.opsPerSecond < baselineOps * (1 - tolerance))
+				{
+					System.out.println(String.format("  REGRESSION: %.0f ops/s against a baseline of %.0f ops/s",
+							result.opsPerSecond, baselineOps));
+					regressed = true;
+				}
+			}
+		}
+
+		if (output != null)
+		{
+			OutputStream out = new FileOutputStream(output);
+			try
+			{
+				results.store(out, "kmriiwa bridge benchmark results");
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		System.exit(regressed ? 1 : 0);
+	}
+
+	private static Properties load(String file) throws IOException
+	{
+		Properties properties = new Properties();
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			properties.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+		return properties;
+	}
+}
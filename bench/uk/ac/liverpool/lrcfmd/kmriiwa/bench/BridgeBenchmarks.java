@@ -0,0 +1,440 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.RosCore;
+import org.ros.internal.message.MessageBuffers;
+import org.ros.message.MessageFactory;
+import org.ros.message.MessageSerializationFactory;
+import org.ros.message.MessageSerializer;
+import org.ros.namespace.GraphName;
+import org.ros.node.AbstractNodeMain;
+import org.ros.node.ConnectedNode;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+import org.ros.time.WallTimeProvider;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.PublicationNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.Stream;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.StreamPublisher;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRMsgGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.OdometrySample;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.RobotStateSampler;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.TFMsgGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.serialization.TemplateSerializationFactory;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatestSampleSlot;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.PublisherTask;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.PublisherTask.MessageSource;
+
+/**
+ * Benchmarks of the bridge's hot paths: message generation, publishing
+ * dispatch and serialization of the largest messages. The hardware is
+ * stubbed so that only the bridge's own work is measured.
+ */
+public class BridgeBenchmarks {
+
+	private static final String ROBOT_NAME = "kmriiwa";
+	private static final int TRAJECTORY_POINTS = 500;
+	private static final int LASER_BEAMS = 541;
+
+	private static final NodeConfiguration nodeConf = NodeConfiguration.newPrivate();
+	private static final MessageFactory messageFactory = nodeConf.getTopicMessageFactory();
+	private static final MessageSerializationFactory stockSerialization = nodeConf.getMessageSerializationFactory();
+	private static final MessageSerializationFactory templateSerialization = new TemplateSerializationFactory(stockSerialization);
+
+	// rosjava logs every registration, and the unregistrations racing the master's shutdown,
+	// kept here so that its level isn't garbage collected
+	private static final java.util.logging.Logger rosLogger = java.util.logging.Logger.getLogger("org.ros");
+
+	// sensor samples put into the ingestion slots by the generation benchmarks
+	private static final float[] ranges = new float[LASER_BEAMS];
+	private static final OdometrySample odometry = new OdometrySample(1.5, -0.5, 0.3, 0.2, 0.0, 0.1);
+
+	static
+	{
+		for (int i = 0; i < ranges.length; i++)
+		{
+			ranges[i] = 2.0f + (i % 50) * 0.1f;
+		}
+	}
+
+	public static List<Benchmark> all()
+	{
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		benchmarks.add(jointStateGeneration());
+		benchmarks.add(laserScanGeneration());
+		benchmarks.add(mergedLaserScanGeneration());
+		benchmarks.add(odometryGeneration());
+		benchmarks.add(tfGeneration());
+		benchmarks.add(eulerToQuaternion());
+		benchmarks.add(jointStateDispatch());
+		benchmarks.add(laserScanSerialization(stockSerialization, ""));
+		benchmarks.add(laserScanSerialization(templateSerialization, " (template)"));
+		benchmarks.add(jointStateSerialization(stockSerialization, ""));
+		benchmarks.add(jointStateSerialization(templateSerialization, " (template)"));
+		benchmarks.add(odometrySerialization(stockSerialization, ""));
+		benchmarks.add(odometrySerialization(templateSerialization, " (template)"));
+		benchmarks.add(trajectoryGoalSerialization());
+		return benchmarks;
+	}
+
+	private static RobotStateSampler newStateSampler()
+	{
+		return new RobotStateSampler(new StubArm(), new StubBase());
+	}
+
+	/**
+	 * Fails the benchmark if a generator had nothing to publish, which would make
+	 * it measure the early return instead of the generation.
+	 */
+	private static <T> T requireMessage(T msg)
+	{
+		if (msg == null)
+		{
+			throw new IllegalStateException("The generator returned no message");
+		}
+		return msg;
+	}
+
+	private static Benchmark jointStateGeneration()
+	{
+		return new Benchmark("LBRMsgGenerator.getCurrentJointState") {
+			private LBRMsgGenerator generator;
+
+			@Override
+			public void setUp()
+			{
+				generator = new LBRMsgGenerator(new StubArm(), newStateSampler(), ROBOT_NAME, new WallTimeProvider());
+			}
+
+			@Override
+			public Object run()
+			{
+				return generator.getCurrentJointState();
+			}
+		};
+	}
+
+	private static Benchmark laserScanGeneration()
+	{
+		return new Benchmark("KMRMsgGenerator.getLaserScan") {
+			private KMRMsgGenerator generator;
+			private LatestSampleSlot<float[]> laserSlot;
+
+			@Override
+			public void setUp()
+			{
+				// the ingestion threads aren't started, every operation puts a new scan itself
+				generator = new KMRMsgGenerator(newStateSampler(), new StubSensorSource(), ROBOT_NAME, new WallTimeProvider());
+				laserSlot = generator.getSensorIngestion().getLaserSlot(LaserScanner.LASER_B1);
+			}
+
+			@Override
+			public Object run()
+			{
+				laserSlot.put(ranges);
+				return requireMessage(generator.getLaserScan(LaserScanner.LASER_B1));
+			}
+		};
+	}
+
+	private static Benchmark mergedLaserScanGeneration()
+	{
+		return new Benchmark("KMRMsgGenerator.getMergedLaserScan") {
+			private KMRMsgGenerator generator;
+			private LatestSampleSlot<float[]> frontSlot;
+			private LatestSampleSlot<float[]> backSlot;
+
+			@Override
+			public void setUp()
+			{
+				generator = new KMRMsgGenerator(newStateSampler(), new StubSensorSource(), ROBOT_NAME, new WallTimeProvider());
+				frontSlot = generator.getSensorIngestion().getLaserSlot(LaserScanner.LASER_B1);
+				backSlot = generator.getSensorIngestion().getLaserSlot(LaserScanner.LASER_B4);
+			}
+
+			@Override
+			public Object run()
+			{
+				frontSlot.put(ranges);
+				backSlot.put(ranges);
+				return requireMessage(generator.getMergedLaserScan());
+			}
+		};
+	}
+
+	private static Benchmark odometryGeneration()
+	{
+		return new Benchmark("KMRMsgGenerator.getBaseOdometry") {
+			private KMRMsgGenerator generator;
+			private LatestSampleSlot<OdometrySample> odometrySlot;
+
+			@Override
+			public void setUp()
+			{
+				generator = new KMRMsgGenerator(newStateSampler(), new StubSensorSource(), ROBOT_NAME, new WallTimeProvider());
+				odometrySlot = generator.getSensorIngestion().getOdometrySlot();
+			}
+
+			@Override
+			public Object run()
+			{
+				odometrySlot.put(odometry);
+				return requireMessage(generator.getBaseOdometry());
+			}
+		};
+	}
+
+	private static Benchmark tfGeneration()
+	{
+		return new Benchmark("TFMsgGenerator.getTransforms") {
+			private TFMsgGenerator generator;
+			private LatestSampleSlot<OdometrySample> odometrySlot;
+
+			@Override
+			public void setUp()
+			{
+				WallTimeProvider timeProvider = new WallTimeProvider();
+				KMRMsgGenerator kmrGenerator = new KMRMsgGenerator(newStateSampler(), new StubSensorSource(), ROBOT_NAME, timeProvider);
+				odometrySlot = kmrGenerator.getSensorIngestion().getOdometrySlot();
+				generator = new TFMsgGenerator(newStateSampler(), kmrGenerator, ROBOT_NAME, timeProvider, true);
+			}
+
+			@Override
+			public Object run()
+			{
+				// new odometry every cycle, so the odometry transform is always included
+				odometrySlot.put(odometry);
+				return requireMessage(generator.getTransforms());
+			}
+		};
+	}
+
+	private static Benchmark eulerToQuaternion()
+	{
+		return new Benchmark("KMRMsgGenerator.euler_to_quaternion") {
+			private final double[] quaternion = new double[4];
+			private double yaw = 0;
+
+			@Override
+			public Object run()
+			{
+				// vary the input so the computation can't be hoisted
+				yaw += 0.001;
+				KMRMsgGenerator.euler_to_quaternion(0, 0, yaw, quaternion);
+				return quaternion;
+			}
+		};
+	}
+
+	private static Benchmark jointStateDispatch()
+	{
+		return new Benchmark("PublisherTask.run joint_states") {
+			private RosCore rosCore;
+			private NodeMainExecutor executor;
+			private PublisherTask<sensor_msgs.JointState> task;
+
+			@Override
+			public void setUp() throws Exception
+			{
+				// the publication node is connected to an in process master and a subscriber,
+				// so every message is queued, serialized and written by rosjava
+				rosLogger.setLevel(Level.SEVERE);
+				rosCore = RosCore.newPrivate();
+				rosCore.start();
+				if (!rosCore.awaitStart(10, TimeUnit.SECONDS))
+				{
+					throw new IllegalStateException("Couldn't start the ROS master");
+				}
+				executor = DefaultNodeMainExecutor.newDefault();
+				PublicationNode publicationNode = new PublicationNode(ROBOT_NAME);
+				executor.execute(publicationNode, NodeConfiguration.newPrivate(rosCore.getUri()));
+				publicationNode.getReadiness().getFuture().get(10, TimeUnit.SECONDS);
+
+				final String topicName = ROBOT_NAME + "/arm/joint_states";
+				executor.execute(new AbstractNodeMain() {
+					@Override
+					public GraphName getDefaultNodeName()
+					{
+						return GraphName.of("bench/joint_state_subscriber");
+					}
+
+					@Override
+					public void onStart(ConnectedNode connectedNode)
+					{
+						connectedNode.<sensor_msgs.JointState>newSubscriber(topicName, sensor_msgs.JointState._TYPE);
+					}
+				}, NodeConfiguration.newPrivate(rosCore.getUri()));
+				StreamPublisher<sensor_msgs.JointState> jointStatePublisher = publicationNode.getStreamPublisher(Stream.JOINT_STATE);
+				long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+				while (!jointStatePublisher.hasSubscribers())
+				{
+					if (System.nanoTime() > deadline)
+					{
+						throw new IllegalStateException("The subscriber didn't connect to " + topicName);
+					}
+					Thread.sleep(10);
+				}
+
+				final LBRMsgGenerator generator = new LBRMsgGenerator(new StubArm(), newStateSampler(), ROBOT_NAME, new WallTimeProvider());
+				task = new PublisherTask<sensor_msgs.JointState>(Stream.JOINT_STATE, jointStatePublisher,
+						new MessageSource<sensor_msgs.JointState>() {
+							@Override
+							public sensor_msgs.JointState nextMessage()
+							{
+								return generator.getCurrentJointState();
+							}
+						});
+			}
+
+			@Override
+			public Object run()
+			{
+				task.run();
+				return task;
+			}
+
+			@Override
+			public void tearDown()
+			{
+				executor.shutdown();
+				rosCore.shutdown();
+			}
+		};
+	}
+
+	private static Benchmark laserScanSerialization(MessageSerializationFactory factory, String variant)
+	{
+		return new SerializationBenchmark<sensor_msgs.LaserScan>("serialize LaserScan" + variant, factory, sensor_msgs.LaserScan._TYPE) {
+			@Override
+			protected void fill(sensor_msgs.LaserScan msg)
+			{
+				msg.getHeader().setFrameId(ROBOT_NAME + "_laser_B1_link");
+				msg.setAngleMin((float) Math.toRadians(-135));
+				msg.setAngleMax((float) Math.toRadians(135));
+				msg.setAngleIncrement((float) Math.toRadians(0.5));
+				float[] ranges = new float[LASER_BEAMS];
+				for (int i = 0; i < ranges.length; i++)
+				{
+					ranges[i] = 2.0f + (i % 50) * 0.1f;
+				}
+				msg.setRanges(ranges);
+			}
+		};
+	}
+
+	private static Benchmark jointStateSerialization(MessageSerializationFactory factory, String variant)
+	{
+		return new SerializationBenchmark<sensor_msgs.JointState>("serialize JointState" + variant, factory, sensor_msgs.JointState._TYPE) {
+			@Override
+			protected void fill(sensor_msgs.JointState msg)
+			{
+				List<String> jointNames = new ArrayList<String>();
+				for (int i = 1; i <= 7; i++)
+				{
+					jointNames.add(ROBOT_NAME + "_joint_" + i);
+				}
+				msg.setName(jointNames);
+				msg.setPosition(new double[] {0.1, -0.2, 0.3, -1.2, 0.5, 0.6, -0.7});
+				msg.setVelocity(new double[7]);
+				msg.setEffort(new double[] {0.0, 12.5, 0.3, -8.1, 0.2, 1.1, 0.0});
+			}
+		};
+	}
+
+	private static Benchmark odometrySerialization(MessageSerializationFactory factory, String variant)
+	{
+		return new SerializationBenchmark<nav_msgs.Odometry>("serialize Odometry" + variant, factory, nav_msgs.Odometry._TYPE) {
+			@Override
+			protected void fill(nav_msgs.Odometry msg)
+			{
+				msg.getHeader().setFrameId(ROBOT_NAME + "_odom");
+				msg.setChildFrameId(ROBOT_NAME + "_base_footprint");
+				msg.getPose().getPose().getPosition().setX(1.5);
+				msg.getPose().getPose().getPosition().setY(-0.5);
+				msg.getPose().getPose().getOrientation().setW(1);
+				msg.getTwist().getTwist().getLinear().setX(0.2);
+			}
+		};
+	}
+
+	private static Benchmark trajectoryGoalSerialization()
+	{
+		return new SerializationBenchmark<control_msgs.FollowJointTrajectoryActionGoal>("serialize FollowJointTrajectoryActionGoal",
+				stockSerialization, control_msgs.FollowJointTrajectoryActionGoal._TYPE) {
+			@Override
+			protected void fill(control_msgs.FollowJointTrajectoryActionGoal msg)
+			{
+				trajectory_msgs.JointTrajectory trajectory = msg.getGoal().getTrajectory();
+				List<String> jointNames = new ArrayList<String>();
+				for (int i = 1; i <= 7; i++)
+				{
+					jointNames.add(ROBOT_NAME + "_joint_" + i);
+				}
+				trajectory.setJointNames(jointNames);
+				List<trajectory_msgs.JointTrajectoryPoint> points = new ArrayList<trajectory_msgs.JointTrajectoryPoint>();
+				for (int i = 0; i < TRAJECTORY_POINTS; i++)
+				{
+					trajectory_msgs.JointTrajectoryPoint point = messageFactory.newFromType(trajectory_msgs.JointTrajectoryPoint._TYPE);
+					double[] positions = new double[7];
+					for (int j = 0; j < positions.length; j++)
+					{
+						positions[j] = 0.001 * i * (j + 1);
+					}
+					point.setPositions(positions);
+					point.setVelocities(new double[7]);
+					point.setAccelerations(new double[7]);
+					point.getTimeFromStart().nsecs = i * 10000000;
+					points.add(point);
+				}
+				trajectory.setPoints(points);
+			}
+		};
+	}
+
+	/**
+	 * Serializes one preallocated message per operation into a reused buffer,
+	 * the way rosjava does before writing a message to its subscribers.
+	 */
+	private static abstract class SerializationBenchmark<T> extends Benchmark {
+
+		private final MessageSerializationFactory factory;
+		private final String messageType;
+		private MessageSerializer<T> serializer;
+		private ChannelBuffer buffer;
+		private T msg;
+
+		SerializationBenchmark(String name, MessageSerializationFactory factory, String messageType)
+		{
+			super(name);
+			this.factory = factory;
+			this.messageType = messageType;
+		}
+
+		protected abstract void fill(T msg);
+
+		@Override
+		public void setUp()
+		{
+			serializer = factory.newMessageSerializer(messageType);
+			buffer = MessageBuffers.dynamicBuffer();
+			msg = messageFactory.newFromType(messageType);
+			fill(msg);
+		}
+
+		@Override
+		public Object run()
+		{
+			buffer.clear();
+			serializer.serialize(msg, buffer);
+			return buffer;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Runs the bridge benchmarks under JMH, e.g. with its gc profiler from the
+ * jmh task of the Gradle build. Every benchmark of BridgeBenchmarks is a
+ * value of the benchmark parameter, so both runners measure the same code.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JmhBenchmarks {
+
+	@Param({
+		"LBRMsgGenerator.getCurrentJointState",
+		"KMRMsgGenerator.getLaserScan",
+		"KMRMsgGenerator.getMergedLaserScan",
+		"KMRMsgGenerator.getBaseOdometry",
+		"TFMsgGenerator.getTransforms",
+		"KMRMsgGenerator.euler_to_quaternion",
+		"PublisherTask.run joint_states",
+		"serialize LaserScan",
+		"serialize LaserScan (template)",
+		"serialize JointState",
+		"serialize JointState (template)",
+		"serialize Odometry",
+		"serialize Odometry (template)",
+		"serialize FollowJointTrajectoryActionGoal"
+	})
+	public String benchmark;
+
+	private Benchmark target;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception
+	{
+		for (Benchmark candidate : BridgeBenchmarks.all())
+		{
+			if (candidate.getName().equals(benchmark))
+			{
+				target = candidate;
+			}
+		}
+		if (target == null)
+		{
+			throw new IllegalArgumentException("No benchmark named " + benchmark);
+		}
+		target.setUp();
+	}
+
+	@org.openjdk.jmh.annotations.Benchmark
+	public Object run() throws Exception
+	{
+		// JMH consumes the result, so the operation can't be removed
+		return target.run();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception
+	{
+		target.tearDown();
+	}
+}
@@ -0,0 +1,80 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmDevice;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionContainer;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionListener;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmStatus;
+
+/**
+ * Arm with fixed joint positions and torques, so that benchmarks only measure the bridge.
+ */
+public class StubArm implements ArmDevice {
+
+	private final double[] positions = {0.1, -0.2, 0.3, -1.2, 0.5, 0.6, -0.7};
+	private final double[] torques = {0.0, 12.5, 0.3, -8.1, 0.2, 1.1, 0.0};
+
+	@Override
+	public int getJointCount()
+	{
+		return positions.length;
+	}
+
+	@Override
+	public void getJointPositions(double[] positions)
+	{
+		System.arraycopy(this.positions, 0, positions, 0, positions.length);
+	}
+
+	@Override
+	public void getJointTorques(double[] torques)
+	{
+		System.arraycopy(this.torques, 0, torques, 0, torques.length);
+	}
+
+	@Override
+	public boolean isMotionEnabled()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isMastered()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean areAllAxesGmsReferenced()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean areAllAxesPositionReferenced()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isSafetyStopActive()
+	{
+		return false;
+	}
+
+	@Override
+	public void getStatus(ArmStatus status)
+	{
+		status.motionEnabled = true;
+		status.mastered = true;
+		status.gmsReferenced = true;
+		status.positionReferenced = true;
+		status.safetyStopActive = false;
+	}
+
+	@Override
+	public ArmMotionContainer moveAsync(double[][] positions, double[] relVelocities, double[] relAccelerations,
+			double blendingRel, ArmMotionListener listener)
+	{
+		throw new UnsupportedOperationException("The stub arm doesn't move");
+	}
+}
@@ -0,0 +1,62 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.BaseDevice;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.BaseStatus;
+
+/**
+ * Base with a fixed status that ignores jog commands.
+ */
+public class StubBase implements BaseDevice {
+
+	@Override
+	public boolean isMotionEnabled()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isReadyToMove()
+	{
+		return true;
+	}
+
+	@Override
+	public void jog(double[] velocity)
+	{
+		// ignored
+	}
+
+	@Override
+	public double getBatteryStateOfCharge()
+	{
+		return 80;
+	}
+
+	@Override
+	public boolean isWarningFieldBreached()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isSafetyFieldBreached()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isSafetyStopActive()
+	{
+		return false;
+	}
+
+	@Override
+	public void getStatus(BaseStatus status)
+	{
+		status.batteryStateOfCharge = 80;
+		status.warningFieldBreached = false;
+		status.safetyFieldBreached = false;
+		status.motionEnabled = true;
+		status.safetyStopActive = false;
+	}
+}
@@ -0,0 +1,62 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.bench;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.OdometrySample;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.SensorSource;
+
+/**
+ * Sensor source that hands out a new sample on every poll. The generation
+ * benchmarks don't start the ingestion threads that would poll it, they put
+ * a new sample into the ingestion slots before every operation instead.
+ */
+public class StubSensorSource implements SensorSource {
+
+	private static final int BEAMS = 541;
+
+	private final float[] ranges = new float[BEAMS];
+	private final OdometrySample odometry = new OdometrySample(1.5, -0.5, 0.3, 0.2, 0.0, 0.1);
+
+	public StubSensorSource()
+	{
+		for (int i = 0; i < BEAMS; i++)
+		{
+			ranges[i] = 2.0f + (i % 50) * 0.1f;
+		}
+	}
+
+	@Override
+	public void connect(long timeout)
+	{
+		// always connected
+	}
+
+	@Override
+	public boolean isLaserSubscribed(LaserScanner laserScanner)
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isOdometrySubscribed()
+	{
+		return true;
+	}
+
+	@Override
+	public float[] getNewLaserScan(LaserScanner laserScanner)
+	{
+		return ranges;
+	}
+
+	@Override
+	public OdometrySample getNewOdometry()
+	{
+		return odometry;
+	}
+
+	@Override
+	public void disconnect()
+	{
+		// always connected
+	}
+}
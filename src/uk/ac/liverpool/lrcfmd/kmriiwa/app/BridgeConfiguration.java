@@ -0,0 +1,23 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.app;
+
+/**
+ * Optional settings of the bridge, read from the Sunrise process data on the
+ * controller and from system properties off the controller.
+ */
+public interface BridgeConfiguration {
+
+	/**
+	 * @return the value set for id, or defaultValue if it isn't set or isn't positive
+	 */
+	double getPositive(String id, double defaultValue);
+
+	/**
+	 * @return the value set for id, or defaultValue if it isn't set or is negative
+	 */
+	double getNonNegative(String id, double defaultValue);
+
+	/**
+	 * @return the value set for id, or defaultValue if it isn't set
+	 */
+	boolean getBoolean(String id, boolean defaultValue);
+}
@@ -0,0 +1,689 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.app;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.ros.address.BindAddress;
+import org.ros.node.DefaultNodeMainExecutor;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMainExecutor;
+import org.ros.time.TimeProvider;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import control_msgs.FollowJointTrajectoryActionGoal;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ActionServerNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ActionServerNode.Goal;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.NodeReadiness;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.PublicationNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.Stream;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.SubscriptionNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ToolNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmDevice;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionHandle;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.BaseDevice;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRCommander;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRCommander;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRMsgGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.RobotStateSampler;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.SensorSource;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.TFMsgGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.serialization.TemplateSerializationFactory;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.AddressGenerator;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.ClockDiagnostics;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandDispatcher;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandMailbox;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.DestinationReachedListener;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.DisciplinedClock;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.FeedbackSampler;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyDiagnostics;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.PublisherTask;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.PublisherTask.MessageSource;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.PublishingScheduler;
+
+/**
+ * The ROS bridge of the KMR iiwa: its ROS nodes, publishing lanes, base jog
+ * loop and arm control loop. It only uses the robot through ArmDevice,
+ * BaseDevice and SensorSource, so it runs on the robot controller as well as
+ * on a plain JVM against a simulated robot.
+ */
+public class KmriiwaBridge {
+
+	// Application flags
+	private volatile boolean running = false;
+	private volatile boolean paused = false;
+
+	// Control thread wake up on command arrival
+	private CommandDispatcher commandDispatcher = new CommandDispatcher();
+	// Longest the control thread parks without a signal, bounds the polling of tool nodes
+	private static final long CONTROL_IDLE_TIMEOUT_MS = 100;
+	private LatencyStats commandLatency = Metrics.latency("command_to_motion_start");
+	// time the control thread spends handling commands, motions are only submitted
+	private LatencyStats controlLoopBlocking = Metrics.latency("control_loop_blocking");
+	private static final double METRICS_REPORT_RATE = 1.0 / 60;
+	private LatencyDiagnostics latencyDiagnostics = null;
+	private ClockDiagnostics clockDiagnostics = null;
+
+	// ROS nodes for communication
+	private SubscriptionNode subscriber = null;
+	private PublicationNode publisher = null;
+	private ActionServerNode actionServer = null;
+	private PublishingScheduler publishingScheduler = null;
+
+	// ROS configurations
+	private TimeProvider timeProvider = null;
+	private AddressGenerator addressGenerator = new AddressGenerator();
+	private NodeMainExecutor nodeMainExecutor = null;
+	private long nodesStartNanos = 0;
+	private static final long MASTER_CONNECTION_TIMEOUT_S = 120;
+	// Polling period of the readiness of tool nodes that don't call markConnectedToMaster
+	private static final long TOOL_READY_POLL_MS = 10;
+	private String robotName;
+
+	// Publishing rates in Hz
+	private double jointStateRate = 100;
+	private double laserScanRate = 25;
+	private double odometryRate = 50;
+	private double statusRate = 1;
+	private double toolStateRate = 10;
+	private double diagnosticsRate = 1;
+	private double tfRate = 50;
+	// Period in s after which an unchanged status is published again
+	private double statusHeartbeat = 10;
+	// Publish the 360° scan merged from both lasers
+	private boolean mergedScan = false;
+	// Serialize laser scans, joint states and odometry from byte templates
+	private boolean templateSerialization = true;
+	// Sample joint positions and torques at a high rate and publish them in batches
+	private boolean jointTelemetry = false;
+	private double jointTelemetryRate = 500;
+	private double jointTelemetryBatch = 50;
+
+	// Maximum age of commands in ms
+	private double jointPositionMaxAge = 2000;
+	private double cmdVelMaxAge = 500;
+
+	// Base jog loop rate in Hz and cmd_vel timeout in ms
+	private double baseJogRate = 20;
+	private double cmdVelTimeout = 250;
+
+	// Robot interfaces
+	private ArmDevice arm = null;
+	private RobotStateSampler stateSampler = null;
+	private LBRMsgGenerator lbrMsgGenerator = null;
+	private LBRCommander lbrCommander = null;
+	private KMRMsgGenerator kmrMsgGenerator = null;
+	private KMRCommander kmrCommander = null;
+	private TFMsgGenerator tfMsgGenerator = null;
+	private ToolNode toolNode = null;
+	private FeedbackSampler feedbackSampler = null;
+	private double feedbackRate = 10;
+
+	public KmriiwaBridge(String robotName, ArmDevice arm, BaseDevice base, SensorSource sensors, TimeProvider timeProvider,
+			BridgeConfiguration configuration)
+	{
+		this.robotName = robotName;
+		this.arm = arm;
+		this.timeProvider = timeProvider;
+		configurePublishingRates(configuration);
+		configureCommandMaxAge(configuration);
+
+		// Initialise arm and base commanders and message generators
+		// the joint state lane starts each cycle, whose joint state the other generators reuse
+		stateSampler = new RobotStateSampler(arm, base);
+		stateSampler.setCycleRate(jointStateRate);
+		lbrMsgGenerator = new LBRMsgGenerator(arm, stateSampler, robotName, timeProvider);
+		lbrCommander = new LBRCommander(arm);
+		lbrCommander.setTrajectoryTiming(configuration.getBoolean("trajectory_timing", false));
+		kmrMsgGenerator = new KMRMsgGenerator(stateSampler, sensors, robotName, timeProvider);
+		// status lanes poll at the status rate but only publish on change or heartbeat
+		lbrMsgGenerator.setStatusHeartbeat(statusHeartbeat);
+		kmrMsgGenerator.setStatusHeartbeat(statusHeartbeat);
+		kmrCommander = new KMRCommander(base);
+		// the arm's link frames are published with odometry unless robot_state_publisher is used for them
+		tfMsgGenerator = new TFMsgGenerator(stateSampler, kmrMsgGenerator, robotName, timeProvider, configuration.getBoolean("arm_tf", false));
+
+		subscriber = new SubscriptionNode(robotName);
+		publisher = new PublicationNode(robotName);
+		actionServer = new ActionServerNode(robotName);
+		subscriber.setCommandDispatcher(commandDispatcher);
+		subscriber.setCommandMaxAge((long) jointPositionMaxAge, (long) cmdVelMaxAge);
+		actionServer.setCommandDispatcher(commandDispatcher);
+		actionServer.setPreemptOnNewGoal(configuration.getBoolean("preempt_on_new_goal", false));
+		actionServer.setCancelLatencyPublisher(publisher.<std_msgs.Float64>register(Stream.CANCEL_LATENCY,
+				robotName + "/arm/state/CancelLatency", std_msgs.Float64._TYPE));
+		latencyDiagnostics = new LatencyDiagnostics(publisher.<std_msgs.Float64MultiArray>register(Stream.LATENCY_DIAGNOSTICS,
+				robotName + "/diagnostics/latency", std_msgs.Float64MultiArray._TYPE));
+		if (timeProvider instanceof DisciplinedClock)
+		{
+			clockDiagnostics = new ClockDiagnostics((DisciplinedClock) timeProvider, publisher.<std_msgs.Float64MultiArray>register(
+					Stream.CLOCK_DIAGNOSTICS, robotName + "/diagnostics/clock", std_msgs.Float64MultiArray._TYPE));
+		}
+		mergedScan = configuration.getBoolean("merged_scan", mergedScan);
+		templateSerialization = configuration.getBoolean("template_serialization", templateSerialization);
+		if (mergedScan)
+		{
+			publisher.register(Stream.LASER_MERGED, robotName + "/base/state/MergedLaserScan", sensor_msgs.LaserScan._TYPE);
+		}
+		jointTelemetry = configuration.getBoolean("joint_telemetry", jointTelemetry);
+		jointTelemetryRate = configuration.getPositive("joint_telemetry_rate", jointTelemetryRate);
+		jointTelemetryBatch = configuration.getPositive("joint_telemetry_batch", jointTelemetryBatch);
+		if (jointTelemetry)
+		{
+			publisher.register(Stream.JOINT_TELEMETRY, robotName + "/arm/state/JointTelemetry", std_msgs.Float64MultiArray._TYPE);
+		}
+	}
+
+	/**
+	 * Sets the node of the tool attached to the arm, must be called before initialize.
+	 */
+	public void setToolNode(ToolNode toolNode)
+	{
+		this.toolNode = toolNode;
+		toolNode.setCommandDispatcher(commandDispatcher);
+	}
+
+	/**
+	 * Starts the ROS nodes, which connect to the master in the background.
+	 * @param hostAddress address the nodes are advertised on
+	 * @param masterUri URI of the ROS master
+	 * @return false if the nodes couldn't be started
+	 */
+	public boolean initialize(String hostAddress, String masterUri)
+	{
+		NodeConfiguration subscriberNodeConfiguration = null;
+		NodeConfiguration publisherNodeConfiguration = null;
+		NodeConfiguration actionNodeConfiguration = null;
+		NodeConfiguration toolNodeConfiguration = null;
+
+		// ROS nodes initialisation
+		try
+		{
+			subscriberNodeConfiguration = configureNode(subscriber.getDefaultNodeName().toString(), hostAddress, masterUri,
+					addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+			publisherNodeConfiguration = configureNode(publisher.getDefaultNodeName().toString(), hostAddress, masterUri,
+					addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+			if (templateSerialization)
+			{
+				publisherNodeConfiguration.setMessageSerializationFactory(
+						new TemplateSerializationFactory(publisherNodeConfiguration.getMessageSerializationFactory()));
+			}
+			actionNodeConfiguration = configureNode(actionServer.getDefaultNodeName().toString(), hostAddress, masterUri,
+					addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+
+			if (toolNode != null)
+			{
+				toolNodeConfiguration = configureNode(toolNode.getDefaultNodeName().toString(), hostAddress, masterUri,
+						addressGenerator.getNewAddress(), addressGenerator.getNewAddress());
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.error("Error when initializing ROS nodes");
+			Logger.error(e.getMessage());
+			return false;
+		}
+
+		try
+		{
+			nodeMainExecutor = DefaultNodeMainExecutor.newDefault();
+
+			// nodes start concurrently on the executor, run() waits for their readiness
+			nodesStartNanos = System.nanoTime();
+			nodeMainExecutor.execute(publisher, publisherNodeConfiguration);
+			nodeMainExecutor.execute(subscriber, subscriberNodeConfiguration);
+			nodeMainExecutor.execute(actionServer, actionNodeConfiguration);
+			Logger.info("ROS node executor initialized");
+
+			if (toolNode != null)
+			{
+				nodeMainExecutor.execute(toolNode, toolNodeConfiguration);
+				Logger.info("Tool node executor initialized");
+			}
+
+		}
+		catch (Exception e)
+		{
+			Logger.error("Error when starting ROS node executor");
+			Logger.error(e.getMessage());
+			return false;
+		}
+		// end of ROS nodes initialisation
+		return true;
+	}
+
+	/**
+	 * Waits for the ROS master, starts publishing and executes commands until the bridge is stopped.
+	 */
+	public void run() throws InterruptedException
+	{
+		//wait for ROS master
+		Logger.warn("waiting for ROS master");
+		Logger.warn("Application will terminate in 2 min if no master connects");
+		if (!awaitNodesReady(MASTER_CONNECTION_TIMEOUT_S, TimeUnit.SECONDS))
+		{
+			Logger.error("couldn't connect to master, exiting!!!");
+			nodeMainExecutor.shutdown();
+			nodeMainExecutor.getScheduledExecutorService().shutdownNow();
+			return;
+		}
+
+		// subscribe to the sensors to get laser and odometry data
+		kmrMsgGenerator.subscribeToSensors(10000);
+
+		running = true;
+
+		// jog the base from its own loop so that it never blocks arm commands
+		kmrCommander.startJogLoop(subscriber.getBaseTwistMailbox(), baseJogRate, (long) cmdVelTimeout);
+
+		// publish trajectory feedback while goals are executed
+		feedbackSampler = new FeedbackSampler(actionServer, stateSampler, timeProvider, feedbackRate);
+		feedbackSampler.start();
+
+		// start the publishing lanes, one thread per published stream
+		try
+		{
+			publishingScheduler = new PublishingScheduler();
+			addPublishingLanes();
+			// add toolNode lane to publish gripper state
+			if (toolNode != null)
+			{
+				publishingScheduler.addLane("tool_state", new Runnable() {
+					@Override
+					public void run()
+					{
+						toolNode.publishToolState();
+					}
+				}, toolStateRate);
+			}
+			publishingScheduler.addLane("latency_diagnostics", latencyDiagnostics, diagnosticsRate);
+			if (clockDiagnostics != null)
+			{
+				publishingScheduler.addLane("clock_diagnostics", clockDiagnostics, diagnosticsRate);
+			}
+			publishingScheduler.addLane("metrics", new Runnable() {
+				@Override
+				public void run()
+				{
+					Metrics.logReport();
+				}
+			}, METRICS_REPORT_RATE);
+			publishingScheduler.start();
+		}
+		catch (Exception e)
+		{
+			Logger.error("Error when starting publisher threads");
+			Logger.error(e.getMessage());
+			e.printStackTrace();
+			publishingScheduler.shutdown();
+			running = false;
+		}
+
+		// park until a command arrives, after executing a command check again without waiting
+		boolean commandExecuted = false;
+		while (running)
+		{
+			commandDispatcher.awaitCommand(commandExecuted ? 0 : CONTROL_IDLE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			commandExecuted = false;
+			if (!running || paused)
+			{
+				// buffered commands are executed once the application resumes
+				continue;
+			}
+			long iterationStart = System.nanoTime();
+			commandExecuted = executeLBRCmd();
+			if (toolNode != null)
+			{
+				toolNode.executeToolCommand();
+			}
+			controlLoopBlocking.record(System.nanoTime() - iterationStart);
+		}
+	}
+
+	/**
+	 * Adds a lane per published stream, its task bound to the stream's handle and generator.
+	 */
+	private void addPublishingLanes()
+	{
+		publishingScheduler.addLane("joint_states", newPublisherTask(Stream.JOINT_STATE, new MessageSource<sensor_msgs.JointState>() {
+			@Override
+			public sensor_msgs.JointState nextMessage()
+			{
+				return lbrMsgGenerator.getCurrentJointState();
+			}
+		}), jointStateRate);
+		if (jointTelemetry)
+		{
+			// the lane runs once per batch and publishes every batch that is complete, so that a late cycle catches up
+			int batchSize = Math.max(1, (int) Math.round(jointTelemetryBatch));
+			lbrMsgGenerator.startJointTelemetry(jointTelemetryRate, batchSize);
+			PublisherTask<std_msgs.Float64MultiArray> jointTelemetryTask = newPublisherTask(Stream.JOINT_TELEMETRY,
+					new MessageSource<std_msgs.Float64MultiArray>() {
+						@Override
+						public std_msgs.Float64MultiArray nextMessage()
+						{
+							return lbrMsgGenerator.getJointTelemetry();
+						}
+					});
+			jointTelemetryTask.setPublishAll(true);
+			publishingScheduler.addLane("joint_telemetry", jointTelemetryTask, jointTelemetryRate / batchSize);
+		}
+		PublisherTask<sensor_msgs.LaserScan> laserB1Task = newPublisherTask(Stream.LASER_B1, newLaserScanSource(LaserScanner.LASER_B1));
+		PublisherTask<sensor_msgs.LaserScan> laserB4Task = newPublisherTask(Stream.LASER_B4, newLaserScanSource(LaserScanner.LASER_B4));
+		if (mergedScan)
+		{
+			// merged by the lane of the laser that has a new scan, as soon as it published it,
+			// the generator returns null if the other laser's lane already merged this scan
+			PublisherTask<sensor_msgs.LaserScan> mergedScanTask = newPublisherTask(Stream.LASER_MERGED,
+					new MessageSource<sensor_msgs.LaserScan>() {
+						@Override
+						public sensor_msgs.LaserScan nextMessage()
+						{
+							return kmrMsgGenerator.getMergedLaserScan();
+						}
+					});
+			laserB1Task.setFollowingTask(mergedScanTask);
+			laserB4Task.setFollowingTask(mergedScanTask);
+		}
+		publishingScheduler.addLane("laser_B1", laserB1Task, laserScanRate);
+		publishingScheduler.addLane("laser_B4", laserB4Task, laserScanRate);
+		// laser and odometry generators return null if no new sample arrived
+		publishingScheduler.addLane("odometry", newPublisherTask(Stream.ODOMETRY, new MessageSource<nav_msgs.Odometry>() {
+			@Override
+			public nav_msgs.Odometry nextMessage()
+			{
+				return kmrMsgGenerator.getBaseOdometry();
+			}
+		}), odometryRate);
+		// the odometry transform goes out in the same message as the arm's link frames
+		publishingScheduler.addLane("tf", newPublisherTask(Stream.TF, new MessageSource<tf2_msgs.TFMessage>() {
+			@Override
+			public tf2_msgs.TFMessage nextMessage()
+			{
+				return tfMsgGenerator.getTransforms();
+			}
+		}), tfRate);
+		// status generators return null if nothing changed and the heartbeat isn't due
+		publishingScheduler.addLane("kmr_status", newPublisherTask(Stream.KMR_STATUS, new MessageSource<kmriiwa_msgs.KMRStatus>() {
+			@Override
+			public kmriiwa_msgs.KMRStatus nextMessage()
+			{
+				return kmrMsgGenerator.getKMRStatus();
+			}
+		}), statusRate);
+		publishingScheduler.addLane("lbr_status", newPublisherTask(Stream.LBR_STATUS, new MessageSource<kmriiwa_msgs.LBRStatus>() {
+			@Override
+			public kmriiwa_msgs.LBRStatus nextMessage()
+			{
+				return lbrMsgGenerator.getLBRStatus();
+			}
+		}), statusRate);
+	}
+
+	private MessageSource<sensor_msgs.LaserScan> newLaserScanSource(final LaserScanner laserScanner)
+	{
+		return new MessageSource<sensor_msgs.LaserScan>() {
+			@Override
+			public sensor_msgs.LaserScan nextMessage()
+			{
+				return kmrMsgGenerator.getLaserScan(laserScanner);
+			}
+		};
+	}
+
+	private <T extends org.ros.internal.message.Message> PublisherTask<T> newPublisherTask(Stream stream, MessageSource<T> source)
+	{
+		return new PublisherTask<T>(stream, publisher.<T>getStreamPublisher(stream), source);
+	}
+
+	private NodeConfiguration configureNode(String nodeName, String hostAddress, String masterUri, int tcpPort, int xmlPort) throws URISyntaxException
+	{
+		NodeConfiguration nodeConfig = NodeConfiguration.newPublic(hostAddress);
+		nodeConfig.setTimeProvider(timeProvider);
+		nodeConfig.setNodeName(nodeName);
+		nodeConfig.setMasterUri(new URI(masterUri));
+		nodeConfig.setTcpRosBindAddress(BindAddress.newPublic(tcpPort));
+		nodeConfig.setXmlRpcBindAddress(BindAddress.newPublic(xmlPort));
+		return nodeConfig;
+	}
+
+	private void configurePublishingRates(BridgeConfiguration configuration)
+	{
+		jointStateRate = configuration.getPositive("joint_states_rate", jointStateRate);
+		laserScanRate = configuration.getPositive("laser_scan_rate", laserScanRate);
+		odometryRate = configuration.getPositive("odometry_rate", odometryRate);
+		statusRate = configuration.getPositive("status_rate", statusRate);
+		toolStateRate = configuration.getPositive("tool_state_rate", toolStateRate);
+		diagnosticsRate = configuration.getPositive("diagnostics_rate", diagnosticsRate);
+		tfRate = configuration.getPositive("tf_rate", tfRate);
+		statusHeartbeat = configuration.getPositive("status_heartbeat", statusHeartbeat);
+	}
+
+	private void configureCommandMaxAge(BridgeConfiguration configuration)
+	{
+		// 0 accepts commands of any age
+		jointPositionMaxAge = configuration.getNonNegative("joint_position_max_age", jointPositionMaxAge);
+		cmdVelMaxAge = configuration.getNonNegative("cmd_vel_max_age", cmdVelMaxAge);
+		baseJogRate = configuration.getPositive("base_jog_rate", baseJogRate);
+		cmdVelTimeout = configuration.getPositive("cmd_vel_timeout", cmdVelTimeout);
+		feedbackRate = configuration.getPositive("feedback_rate", feedbackRate);
+	}
+
+	/**
+	 * Waits without spinning until every node signalled its readiness from onStart,
+	 * then reports the per node and total time to ready.
+	 * @return false if the nodes were not all ready within the timeout
+	 */
+	private boolean awaitNodesReady(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		List<NodeReadiness> nodes = new ArrayList<NodeReadiness>();
+		nodes.add(publisher.getReadiness());
+		nodes.add(subscriber.getReadiness());
+		nodes.add(actionServer.getReadiness());
+		if (toolNode != null)
+		{
+			nodes.add(toolNode.getReadiness());
+		}
+		List<ListenableFuture<Long>> futures = new ArrayList<ListenableFuture<Long>>();
+		for (NodeReadiness node : nodes)
+		{
+			futures.add(node.getFuture());
+		}
+
+		long lastReadyNanos = nodesStartNanos;
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try
+		{
+			if (toolNode != null)
+			{
+				awaitToolReady(deadline);
+			}
+			Futures.allAsList(futures).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			for (NodeReadiness node : nodes)
+			{
+				long readyNanos = node.getFuture().get();
+				lastReadyNanos = Math.max(lastReadyNanos, readyNanos);
+				Metrics.latency("node_ready_" + node.getNodeName()).record(readyNanos - nodesStartNanos);
+				Logger.info(node.getNodeName() + " node ready after " + (readyNanos - nodesStartNanos) / 1000000 + " ms");
+			}
+		}
+		catch (TimeoutException e)
+		{
+			for (NodeReadiness node : nodes)
+			{
+				if (!node.isReady())
+				{
+					Logger.error(node.getNodeName() + " node did not connect to the ROS master");
+				}
+			}
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			Logger.error("Error when waiting for ROS nodes: " + e.getMessage());
+			return false;
+		}
+		Metrics.latency("nodes_ready_total").record(lastReadyNanos - nodesStartNanos);
+		Logger.info("all nodes connected to the ROS master after " + (lastReadyNanos - nodesStartNanos) / 1000000 + " ms");
+		return true;
+	}
+
+	/**
+	 * Tool nodes written before the readiness futures set connectedToMaster without
+	 * completing their readiness, so the tool node's flag is polled until the deadline.
+	 */
+	private void awaitToolReady(long deadline) throws InterruptedException
+	{
+		while (!toolNode.getReadiness().isReady() && !toolNode.isConnectedToMaster()
+				&& System.nanoTime() < deadline)
+		{
+			Thread.sleep(TOOL_READY_POLL_MS);
+		}
+	}
+
+	/**
+	 * @return true if an arm command was executed
+	 */
+	private boolean executeLBRCmd()
+	{
+		try
+		{
+			if (actionServer.newGoalAvailable())
+			{
+				// a new goal is started once the arm has finished the previous motion,
+				// the listener of that motion wakes the control thread up
+				if (lbrCommander.isMoving())
+				{
+					return false;
+				}
+				actionServer.acceptNewGoal();
+				if(actionServer.hasCurrentGoal())
+				{
+					Goal<?> goal = actionServer.getCurrentGoal();
+					// pass the goal to LBRCommander along with the actionServer
+					FollowJointTrajectoryActionGoal jointTrajectoryGoal = ((FollowJointTrajectoryActionGoal) goal.goal);
+					DestinationReachedListener motionListener = new DestinationReachedListener(publisher, actionServer);
+					motionListener.setFeedbackSampler(feedbackSampler);
+					motionListener.setCommandDispatcher(commandDispatcher);
+					feedbackSampler.startGoal(jointTrajectoryGoal, lbrCommander.isTrajectoryTiming());
+					recordCommandLatency(goal.receivedNanos);
+					String rejection = LBRCommander.getTrajectoryRejection(jointTrajectoryGoal);
+					if (rejection != null)
+					{
+						feedbackSampler.stopGoal(goal.goalId);
+						actionServer.markCurrentGoalFailed("Trajectory goal couldn't be executed, " + rejection);
+						return true;
+					}
+					ArmMotionHandle motion = null;
+					try
+					{
+						motion = lbrCommander.followJointTrajectory(jointTrajectoryGoal, motionListener);
+						actionServer.registerMotion(goal.goalId, motion);
+					}
+					catch (RuntimeException e)
+					{
+						// the motion couldn't be submitted to the arm, the segments already submitted were cancelled
+						feedbackSampler.stopGoal(goal.goalId);
+						actionServer.markCurrentGoalFailed("Trajectory goal couldn't be executed, " + e.getMessage());
+						throw e;
+					}
+					return true;
+				}
+			}
+			else
+			{
+				// the arm would queue the position behind the current motion, so it is left in
+				// the mailbox, where a newer position replaces it, until the motion has finished
+				if (lbrCommander.isMoving())
+				{
+					return false;
+				}
+				CommandMailbox.Entry<kmriiwa_msgs.JointPosition> jpTarget = subscriber.getJointPositionMailbox().take();
+				if (jpTarget != null)
+				{
+					recordCommandLatency(jpTarget.receivedNanos);
+					DestinationReachedListener motionListener = new DestinationReachedListener(publisher);
+					motionListener.setCommandDispatcher(commandDispatcher);
+					lbrCommander.moveToJointPosition(jpTarget.command, motionListener);
+					return true;
+				}
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.error("Couldn't execute LBR command");
+			Logger.error(e.toString());
+			e.printStackTrace();
+		}
+		return false;
+	}
+
+	/**
+	 * Records the time from the arrival of a command to the start of its motion, including
+	 * the time a goal or joint position waited for the previous motion to finish.
+	 */
+	private void recordCommandLatency(long receivedNanos)
+	{
+		commandLatency.record(System.nanoTime() - receivedNanos);
+	}
+
+	/**
+	 * Pauses or resumes command execution and base jogging. Commands received while
+	 * paused are executed once resumed.
+	 */
+	public void setPaused(boolean paused)
+	{
+		this.paused = paused;
+		kmrCommander.setEnabled(!paused);
+		commandDispatcher.wakeUp();
+	}
+
+	/**
+	 * Stops the control loop, run() returns once the current iteration has finished.
+	 */
+	public void stop()
+	{
+		running = false;
+		setPaused(true);
+	}
+
+	public void dispose()
+	{
+		running = false;
+		commandDispatcher.wakeUp();
+		Metrics.logReport();
+		// stop the base jog loop and the publisher threads
+		kmrCommander.stopJogLoop();
+		if (feedbackSampler != null)
+		{
+			feedbackSampler.shutdown();
+		}
+		lbrMsgGenerator.stopJointTelemetry();
+		if (publishingScheduler != null)
+		{
+			publishingScheduler.shutdown();
+		}
+		// disconnect from the sensors
+		kmrMsgGenerator.close();
+
+		// shutdown ROS node executor
+		if (nodeMainExecutor != null)
+		{
+			Logger.info("Shutting down ROS node executor");
+			nodeMainExecutor.shutdown();
+			nodeMainExecutor.getScheduledExecutorService().shutdownNow();
+		}
+	}
+}
@@ -1,42 +1,29 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.app;
 
 import java.net.InetAddress;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
-import org.ros.address.BindAddress;
-import org.ros.node.DefaultNodeMainExecutor;
-import org.ros.node.NodeConfiguration;
-import org.ros.node.NodeMainExecutor;
 import org.ros.time.TimeProvider;
-import org.ros.time.NtpTimeProvider;
 import org.ros.time.WallTimeProvider;
 
-import control_msgs.FollowJointTrajectoryActionGoal;
-
-import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ActionServerNode;
-import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ActionServerNode.Goal;
-import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.PublicationNode;
-import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.SubscriptionNode;
 import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ToolNode;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRCommander;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRCommander;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRMsgGenerator;
-import uk.ac.liverpool.lrcfmd.kmriiwa.utility.AddressGenerator;
-import uk.ac.liverpool.lrcfmd.kmriiwa.utility.DestinationReachedListener;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.FDISensorSource;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.SunriseArm;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.SunriseBase;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.AsyncLogSink;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.DisciplinedClock;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LogSink;
 import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
-import uk.ac.liverpool.lrcfmd.kmriiwa.utility.PublisherTask;
 
 import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplication;
 import com.kuka.roboticsAPI.applicationModel.RoboticsAPIApplicationState;
 import com.kuka.roboticsAPI.deviceModel.LBR;
 import com.kuka.roboticsAPI.deviceModel.kmp.KmpOmniMove;
 import com.kuka.roboticsAPI.persistenceModel.PersistenceException;
+import com.kuka.task.ITaskLogger;
 
 
 public class ROSKmriiwaController extends RoboticsAPIApplication {
@@ -46,35 +33,20 @@ public class ROSKmriiwaController extends RoboticsAPIApplication {
 	
 	// Application flags
 	private boolean initSuccessful = false;
-	private boolean running = false;
-	private volatile boolean paused = false;
 	
-	// ROS nodes for communication
-	private SubscriptionNode subscriber = null;
-	private PublicationNode publisher = null;
-	private ActionServerNode actionServer = null;
-	private ScheduledExecutorService taskRunner = null;
+	// ROS bridge running on the robot controller
+	private KmriiwaBridge bridge = null;
 	private ScheduledExecutorService ntpExecutorService = null;
+	private AsyncLogSink logSink = null;
 	
 	// ROS configurations
-	private NodeConfiguration subscriberNodeConfiguration = null;
-	private NodeConfiguration publisherNodeConfiguration = null;
-	private NodeConfiguration actionNodeConfiguration = null;
-	private NodeConfiguration toolNodeConfiguration = null;
 	private TimeProvider timeProvider = null;
-	private AddressGenerator addressGenerator = new AddressGenerator();
-	private NodeMainExecutor nodeMainExecutor = null;
 	private String robotName;
 	private String masterIP;
 	private String masterPort;
 	private String robotIP;
 	private String masterUri;
 	
-	// Robot interfaces
-	private LBRMsgGenerator lbrMsgGenerator = null;
-	private LBRCommander lbrCommander = null;
-	private KMRMsgGenerator kmrMsgGenerator = null;
-	private KMRCommander kmrCommander = null;
 	private ToolNode toolNode = null;
 	
 	@Override
@@ -84,155 +56,71 @@ public class ROSKmriiwaController extends RoboticsAPIApplication {
 		robotArm = getContext().getDeviceFromType(LBR.class);
 		robotBase = getContext().getDeviceFromType(KmpOmniMove.class);
 		
-		// Initialise the logger
-		Logger.setLogger(getLogger());
-		
-		// Initialise ROS master and time provider settings
-		configureRosMaster();
-		configureTimeProvider();
-		
-		// Initialise KUKA arm and base commanders and message generators
-		lbrMsgGenerator = new LBRMsgGenerator(robotArm, robotName, timeProvider);
-		lbrCommander = new LBRCommander(robotArm);
-		kmrMsgGenerator = new KMRMsgGenerator(robotBase,robotName, timeProvider);
-		kmrCommander = new KMRCommander(robotBase);
-		
-		subscriber = new SubscriptionNode(robotName);
-		publisher = new PublicationNode(robotName);
-		actionServer = new ActionServerNode(robotName);
-		// Initialise tooNode if available
-		//toolNode = new FestoGripperNode(robotName, "festoGripper");
-		
-		// ROS nodes initialisation
-		try
-		{
-			subscriberNodeConfiguration = configureNode(subscriber.getDefaultNodeName().toString(), addressGenerator.getNewAddress(), 
-					addressGenerator.getNewAddress());
-			publisherNodeConfiguration = configureNode(publisher.getDefaultNodeName().toString(), addressGenerator.getNewAddress(), 
-					addressGenerator.getNewAddress());
-			actionNodeConfiguration = configureNode(actionServer.getDefaultNodeName().toString(), addressGenerator.getNewAddress(), 
-					addressGenerator.getNewAddress());
-			
-			if (toolNode != null)
+		// Initialise the logger, the task logger is written from a background thread
+		// so that the publishing threads never wait for the smartPAD log
+		final ITaskLogger taskLogger = getLogger();
+		logSink = new AsyncLogSink(new LogSink() {
+			@Override
+			public void info(String message)
 			{
-				toolNodeConfiguration = configureNode(toolNode.getDefaultNodeName().toString(), addressGenerator.getNewAddress(), 
-						addressGenerator.getNewAddress());
+				taskLogger.info(message);
 			}
-		}
-		catch (Exception e)
-		{
-			Logger.error("Error when initializing ROS nodes");
-			Logger.error(e.getMessage());
-			return;
-		}
-		
-		try
-		{
-			nodeMainExecutor = DefaultNodeMainExecutor.newDefault();
-			
-			nodeMainExecutor.execute(publisher, publisherNodeConfiguration);
-			nodeMainExecutor.execute(subscriber, subscriberNodeConfiguration);
-			nodeMainExecutor.execute(actionServer, actionNodeConfiguration);
-			Logger.info("ROS node executor initialized");
 			
-			if (toolNode != null)
+			@Override
+			public void warn(String message)
 			{
-				nodeMainExecutor.execute(toolNode, toolNodeConfiguration);
-				Logger.info("Tool node executor initialized");
+				taskLogger.warn(message);
 			}
 			
-		}
-		catch (Exception e)
-		{
-			Logger.error("Error when starting ROS node executor");
-			Logger.error(e.getMessage());
-			return;
-		}
-		// end of ROS nodes initialisation
-		initSuccessful = true;
-	}
-
-	@Override
-	public void run() throws Exception {
-		if (!initSuccessful) { throw new RuntimeException("Could not initialize the RoboticApplication successfully."); }
-		
-		//wait for ROS master
-		Logger.warn("waiting for ROS master");
-		Logger.warn("Application will terminate in 2 min if no master connects");
-		long startTime = System.currentTimeMillis();
-		while (!allNodesConnected())
-		{
-			if (System.currentTimeMillis() - startTime > 120000)
+			@Override
+			public void error(String message)
 			{
-				Logger.error("couldn't connect to master, exiting!!!");
-				nodeMainExecutor.shutdown();
-				nodeMainExecutor.getScheduledExecutorService().shutdownNow();
-				return;
+				taskLogger.error(message);
 			}
-		}
-		Logger.info("all nodes connected to the ROS master");
-		
-		// subscribe to FDI to get laser and odometry data
-		kmrMsgGenerator.subscribeToSensors(10000);
+		});
+		logSink.start();
+		Logger.setLogger(logSink);
 		
-		running = true;
+		// Initialise ROS master and time provider settings
+		configureRosMaster();
+		configureTimeProvider();
 		
-		// start the publisher thread
-		try
-		{
-			PublisherTask publisherTask = new PublisherTask(publisher, lbrMsgGenerator, kmrMsgGenerator);
-			taskRunner = Executors.newSingleThreadScheduledExecutor();
-			taskRunner.scheduleAtFixedRate(publisherTask, 0, 100, TimeUnit.MILLISECONDS);
-			// add toolNode to the task runner to publish gripper state
-			if (toolNode != null)
-			{
-				taskRunner.scheduleAtFixedRate(new Runnable() {
+		// The bridge talks to the arm, base and FDI sensors through their Sunrise implementations
+		bridge = new KmriiwaBridge(robotName, new SunriseArm(robotArm), new SunriseBase(robotBase), new FDISensorSource(),
+				timeProvider, new BridgeConfiguration() {
 					@Override
-					public void run()
+					public double getPositive(String id, double defaultValue)
 					{
-						toolNode.publishToolState();
+						return getPositiveProcessData(id, defaultValue);
 					}
-				}, 0, 100, TimeUnit.MILLISECONDS);
-			}
-		}
-		catch (Exception e)
+					
+					@Override
+					public double getNonNegative(String id, double defaultValue)
+					{
+						return getNumberProcessData(id, defaultValue, true);
+					}
+					
+					@Override
+					public boolean getBoolean(String id, boolean defaultValue)
+					{
+						return getBooleanProcessData(id, defaultValue);
+					}
+				});
+		// Initialise tooNode if available
+		//toolNode = new FestoGripperNode(robotName, "festoGripper");
+		if (toolNode != null)
 		{
-			Logger.error("Error when starting publisher thread");
-			Logger.error(e.getMessage());
-			e.printStackTrace();
-			taskRunner.shutdownNow();
-			running = false;
+			bridge.setToolNode(toolNode);
 		}
 		
-		while (running)
-		{
-			if (!paused)
-			{
-				executeKMRCmd();
-				executeLBRCmd();
-				if (toolNode != null)
-				{
-					toolNode.executeToolCommand();
-				}
-			}
-			else
-			{
-				Thread.sleep(50);
-			}
-		}
-
-
+		initSuccessful = bridge.initialize(robotIP, masterUri);
 	}
-	
-	private NodeConfiguration configureNode(String nodeName, int tcpPort, int xmlPort) throws URISyntaxException
-	{
-		NodeConfiguration nodeConfig = NodeConfiguration.newPublic(robotIP);
-		nodeConfig.setTimeProvider(timeProvider);
-		nodeConfig.setNodeName(nodeName);
-		nodeConfig.setMasterUri(new URI(masterUri));
-		nodeConfig.setTcpRosBindAddress(BindAddress.newPublic(tcpPort));
-		nodeConfig.setXmlRpcBindAddress(BindAddress.newPublic(xmlPort));
-		return nodeConfig;
+
+	@Override
+	public void run() throws Exception {
+		if (!initSuccessful) { throw new RuntimeException("Could not initialize the RoboticApplication successfully."); }
+		
+		bridge.run();
 	}
 	
 	private void configureTimeProvider()
@@ -243,8 +131,11 @@ public class ROSKmriiwaController extends RoboticsAPIApplication {
 			try
 			{
 				ntpExecutorService = Executors.newScheduledThreadPool(1);
-				timeProvider = new NtpTimeProvider(InetAddress.getByName(masterIP), ntpExecutorService);
-				((NtpTimeProvider) timeProvider).startPeriodicUpdates(100, TimeUnit.MILLISECONDS);
+				DisciplinedClock clock = new DisciplinedClock(InetAddress.getByName(masterIP), ntpExecutorService);
+				// the clock interpolates between samples, so the server is only queried every few seconds
+				double ntpInterval = getPositiveProcessData("ntp_interval", 16);
+				clock.startPeriodicUpdates((long) (ntpInterval * 1000), TimeUnit.MILLISECONDS);
+				timeProvider = clock;
 				Logger.info("NTP server is used as a time provider");
 			}
 			catch (UnknownHostException e) {
@@ -258,81 +149,59 @@ public class ROSKmriiwaController extends RoboticsAPIApplication {
 		}
 	}
 	
-	private void configureRosMaster()
+	private double getPositiveProcessData(String id, double defaultValue)
 	{
-		try
-		{
-			robotName = getApplicationData().getProcessData("robot_name").getValue();
-			masterIP = getApplicationData().getProcessData("master_ip").getValue();
-			masterPort = getApplicationData().getProcessData("master_port").getValue();
-			robotIP = getApplicationData().getProcessData("robot_ip").getValue();
-			masterUri = "http://" + masterIP + ":" + masterPort;
-		}
-		catch (PersistenceException e)
-		{
-			Logger.error("Application data not set correctly. Please check the package Readme document");
-		}
+		return getNumberProcessData(id, defaultValue, false);
 	}
 	
-	private boolean allNodesConnected()
+	private double getNumberProcessData(String id, double defaultValue, boolean zeroAllowed)
 	{
-		// !publisher.isConnectedToMaster() || !subscriber.isConnectedToMaster() || !actionServer.isConnectedToMaster() 
-		//|| (!toolNode.isConnectedToMaster() && toolNode!=null)
-		boolean allConnected = publisher.isConnectedToMaster() && subscriber.isConnectedToMaster() && actionServer.isConnectedToMaster();
-		if (toolNode != null)
+		try
 		{
-			allConnected = allConnected && toolNode.isConnectedToMaster();
+			Double value = getApplicationData().getProcessData(id).getValue();
+			if (value != null && (value > 0 || (zeroAllowed && value == 0)))
+			{
+				return value;
+			}
+			Logger.warn("Invalid " + id + " process data, using default of " + defaultValue);
 		}
-		return allConnected;
+		catch (Exception e)
+		{
+			Logger.warn(id + " process data not set, using default of " + defaultValue);
+		}
+		return defaultValue;
 	}
 	
-	private void executeLBRCmd()
+	private boolean getBooleanProcessData(String id, boolean defaultValue)
 	{
 		try
 		{
-			if (actionServer.newGoalAvailable())
+			Boolean value = getApplicationData().getProcessData(id).getValue();
+			if (value != null)
 			{
-				actionServer.acceptNewGoal();
-				if(actionServer.hasCurrentGoal())
-				{
-					Goal<?> goal = actionServer.getCurrentGoal();
-					// pass the goal to LBRCommander along with the actionServer
-					FollowJointTrajectoryActionGoal jointTrajectoryGoal = ((FollowJointTrajectoryActionGoal) goal.goal);
-					lbrCommander.followJointTrajectory(jointTrajectoryGoal, new DestinationReachedListener(publisher, actionServer));
-				}
-			}
-			else
-			{
-				kmriiwa_msgs.JointPosition jpTarget = subscriber.getJointPositionTarget();
-				if (jpTarget != null)
-				{
-					lbrCommander.moveToJointPosition(jpTarget, new DestinationReachedListener(publisher));
-				}
+				return value;
 			}
 		}
 		catch (Exception e)
 		{
-			Logger.error("Couldn't execute LBR command");
-			Logger.error(e.toString());
-			e.printStackTrace();
+			Logger.warn(id + " process data not set, using default of " + defaultValue);
 		}
+		return defaultValue;
 	}
 	
-	private void executeKMRCmd()
+	private void configureRosMaster()
 	{
 		try
 		{
-			geometry_msgs.Twist baseTwistTarget = subscriber.getBaseTwistTarget();
-			if (baseTwistTarget != null)
-			{
-				kmrCommander.twistJog(baseTwistTarget);
-			}
+			robotName = getApplicationData().getProcessData("robot_name").getValue();
+			masterIP = getApplicationData().getProcessData("master_ip").getValue();
+			masterPort = getApplicationData().getProcessData("master_port").getValue();
+			robotIP = getApplicationData().getProcessData("robot_ip").getValue();
+			masterUri = "http://" + masterIP + ":" + masterPort;
 		}
-		catch (Exception e)
+		catch (PersistenceException e)
 		{
-			Logger.error("Couldn't execute KMR command");
-			Logger.error(e.toString());
-			e.printStackTrace();
+			Logger.error("Application data not set correctly. Please check the package Readme document");
 		}
 	}
 	
@@ -340,21 +209,20 @@ public class ROSKmriiwaController extends RoboticsAPIApplication {
 	public void dispose()
 	{
 		Logger.warn("Shutting down ROS KMRIIWA controller");
-		running = false;
-		// stop the publisher thread
-		shutDownExecutor(ntpExecutorService);
-		shutDownExecutor(taskRunner);
-		// close fdi connection
-		kmrMsgGenerator.close();
-		
-		// shutdown ROS node executor
-		if (nodeMainExecutor != null) 
+		if (bridge != null)
+		{
+			bridge.dispose();
+		}
+		if (timeProvider instanceof DisciplinedClock)
 		{
-			Logger.info("Shutting down ROS node executor");
-			nodeMainExecutor.shutdown();
-			nodeMainExecutor.getScheduledExecutorService().shutdownNow();
+			((DisciplinedClock) timeProvider).stopPeriodicUpdates();
 		}
+		shutDownExecutor(ntpExecutorService);
 		Logger.info("All shutdown cleanly");
+		if (logSink != null)
+		{
+			logSink.close();
+		}
 		super.dispose();
 	}
 	
@@ -382,18 +250,17 @@ public class ROSKmriiwaController extends RoboticsAPIApplication {
 		if (state == RoboticsAPIApplicationState.STOPPING) 
 	    {
 			Logger.warn("ROS KMRIIWA conttroller Application is stopping");
-			running = false;
-			paused = true;
+			bridge.stop();
 	    }
 		else if (state == RoboticsAPIApplicationState.MOTIONPAUSING) 
 	    {
 			Logger.warn("ROS KMRIIWA conttroller Application is pausing");
-			paused = true;
+			bridge.setPaused(true);
 	    }
 		else if (state == RoboticsAPIApplicationState.RESUMING) 
 	    {
 			Logger.warn("ROS KMRIIWA conttroller Application is resuming");
-			paused = false;
+			bridge.setPaused(false);
 	    }
 	}
-}
+}
\ No newline at end of file
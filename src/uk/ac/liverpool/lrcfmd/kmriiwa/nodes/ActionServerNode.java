@@ -1,6 +1,11 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.nodes;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import org.ros.internal.message.Message;
@@ -9,7 +14,11 @@ import control_msgs.FollowJointTrajectoryActionFeedback;
 import control_msgs.FollowJointTrajectoryActionResult;
 import control_msgs.FollowJointTrajectoryResult;
 import trajectory_msgs.JointTrajectoryPoint;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionHandle;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandDispatcher;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
 import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
 
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
@@ -28,11 +37,14 @@ public class ActionServerNode extends AbstractNodeMain {
 	{
 	    public T_ACTION_GOAL goal = null;
 	    public String goalId = null;
+	    // System.nanoTime when the goal was received
+	    public final long receivedNanos;
 
 	    public Goal(T_ACTION_GOAL goal, String goalId) 
 	    {
 	      this.goal = goal;
 	      this.goalId = goalId;
+	      this.receivedNanos = System.nanoTime();
 	    }
 	}
 	
@@ -53,28 +65,50 @@ public class ActionServerNode extends AbstractNodeMain {
 	    @Override
 	    public void cancelReceived(GoalID goalId) 
 	    {
-	      server.markCurrentGoalFailed("Goal execution canceled by client.");
+	      // an empty id cancels all goals
+	      server.cancelGoals(goalId.getId(), null);
 	    }
 
 	    @Override
 	    public void goalReceived(T_ACTION_GOAL goal) 
 	    {
+	      String goalId = this.getGoalId(goal);
 	      synchronized (server) {
-	        server.goalQueue.add(new Goal<T_ACTION_GOAL>(goal, this.getGoalId(goal)));
+	        server.goalQueue.add(new Goal<T_ACTION_GOAL>(goal, goalId));
+	      }
+	      if (server.preemptOnNewGoal)
+	      {
+	        server.cancelGoals("", goalId);
+	      }
+	      if (server.dispatcher != null)
+	      {
+	        server.dispatcher.signalCommand();
 	      }
 	    }
 
 	    public abstract String getGoalId(T_ACTION_GOAL goal);
 	}
 	
-	private ConnectedNode node = null;
+	private volatile ConnectedNode node = null;
 	private String robotName = "kmriiwa";
-	private boolean connectedToMaster = false;
+	// completed once the node is connected to ROS master
+	private final NodeReadiness readiness = new NodeReadiness("action_server");
 	
 	Queue<Goal<?>> goalQueue;
 	Goal<?> currentGoal;
+	// wakes the control thread when a goal arrives
+	private CommandDispatcher dispatcher = null;
 	
-	private ActionServer<FollowJointTrajectoryActionGoal, FollowJointTrajectoryActionFeedback, FollowJointTrajectoryActionResult> followTrajectoryServer = null;
+	// Motions executing the goals, keyed by goal id
+	private final Map<String, ArmMotionHandle> activeMotions = new ConcurrentHashMap<String, ArmMotionHandle>();
+	// Goals being cancelled, with the time the cancel was received
+	private final Map<String, Long> cancelRequests = new ConcurrentHashMap<String, Long>();
+	// if true a new goal preempts the current and queued goals
+	private volatile boolean preemptOnNewGoal = false;
+	private final LatencyStats cancelLatency = Metrics.latency("cancel_to_stop");
+	private StreamPublisher<std_msgs.Float64> cancelLatencyPublisher = null;
+	
+	private volatile ActionServer<FollowJointTrajectoryActionGoal, FollowJointTrajectoryActionFeedback, FollowJointTrajectoryActionResult> followTrajectoryServer = null;
 	
 	public ActionServerNode(String robotName) 
 	{
@@ -82,6 +116,29 @@ public class ActionServerNode extends AbstractNodeMain {
 		goalQueue = new LinkedBlockingQueue<ActionServerNode.Goal<?>>();
 	}
 	
+	public void setCommandDispatcher(CommandDispatcher dispatcher)
+	{
+		this.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * @param preemptOnNewGoal if true a new goal preempts the goal being executed and the queued
+	 * goals, otherwise goals are executed in the order they are received
+	 */
+	public void setPreemptOnNewGoal(boolean preemptOnNewGoal)
+	{
+		this.preemptOnNewGoal = preemptOnNewGoal;
+	}
+	
+	/**
+	 * Sets the stream on which the time between a cancel request and the arm stopping is
+	 * published, in seconds.
+	 */
+	public void setCancelLatencyPublisher(StreamPublisher<std_msgs.Float64> cancelLatencyPublisher)
+	{
+		this.cancelLatencyPublisher = cancelLatencyPublisher;
+	}
+	
 	@Override
 	public GraphName getDefaultNodeName() {
 		return GraphName.of(robotName + "/follow_joint_trajectory_action_server");
@@ -103,7 +160,7 @@ public class ActionServerNode extends AbstractNodeMain {
 	          return goal.getGoalId().getId();
 	        }
 	      });
-	    connectedToMaster = true;
+	    readiness.markReady();
 	}
 	
 	 @Override
@@ -114,40 +171,48 @@ public class ActionServerNode extends AbstractNodeMain {
 		 goalQueue = null;
 	  }
 	
-	private synchronized void markCurrentGoal(boolean succeeded, String error_msg) 
+	private synchronized void markCurrentGoal(byte status, String error_msg) 
 	{
 		if (hasCurrentGoal()) 
 	    {
-	          FollowJointTrajectoryActionResult result = followTrajectoryServer.newResultMessage();
-	          result.getResult().setErrorString(error_msg);
-	          result.getStatus().getGoalId().setId(currentGoal.goalId);
-	          if (succeeded) 
-	          {
-	        	result.getResult().setErrorCode(FollowJointTrajectoryResult.SUCCESSFUL);
-	            result.getStatus().setStatus(GoalStatus.SUCCEEDED);
-	            followTrajectoryServer.setSucceed(currentGoal.goalId);
-	          }
-	          else 
-	          {
-	        	result.getResult().setErrorCode(FollowJointTrajectoryResult.INVALID_GOAL);
-	            result.getStatus().setStatus(GoalStatus.ABORTED);
-	            followTrajectoryServer.setAborted(currentGoal.goalId);
-	          }
-	          followTrajectoryServer.sendResult(result);
-	          followTrajectoryServer.setGoalStatus(result.getStatus(), currentGoal.goalId);
+			sendResult(currentGoal.goalId, status, error_msg);
+			cancelRequests.remove(currentGoal.goalId);
         }
 
 	      currentGoal = null;
 	      
 	}
 	
+	private void sendResult(String goalId, byte status, String error_msg)
+	{
+		FollowJointTrajectoryActionResult result = followTrajectoryServer.newResultMessage();
+		result.getResult().setErrorString(error_msg);
+		result.getStatus().getGoalId().setId(goalId);
+		result.getStatus().setStatus(status);
+		if (status == GoalStatus.ABORTED) 
+		{
+			result.getResult().setErrorCode(FollowJointTrajectoryResult.INVALID_GOAL);
+			followTrajectoryServer.setAborted(goalId);
+		}
+		else 
+		{
+			result.getResult().setErrorCode(FollowJointTrajectoryResult.SUCCESSFUL);
+			if (status == GoalStatus.SUCCEEDED)
+			{
+				followTrajectoryServer.setSucceed(goalId);
+			}
+		}
+		followTrajectoryServer.sendResult(result);
+		followTrajectoryServer.setGoalStatus(result.getStatus(), goalId);
+	}
+	
 	public void markCurrentGoalReached() 
 	{
 		if (hasCurrentGoal()) 
 		{
 	      Logger.info("Goal reached: " + currentGoal.goalId);
 	    }
-	    markCurrentGoal(true, "");
+	    markCurrentGoal(GoalStatus.SUCCEEDED, "");
 	}
 
 	public void markCurrentGoalFailed(String error_msg) 
@@ -157,7 +222,125 @@ public class ActionServerNode extends AbstractNodeMain {
 			Logger.warn("Goal failed: " + currentGoal.goalId);
 			Logger.warn("Reason: " + error_msg);
 	    }
-	    markCurrentGoal(false, error_msg);
+	    markCurrentGoal(GoalStatus.ABORTED, error_msg);
+	}
+	
+	public void markCurrentGoalPreempted() 
+	{
+		if (hasCurrentGoal()) 
+		{
+			Logger.info("Goal preempted: " + currentGoal.goalId);
+	    }
+	    markCurrentGoal(GoalStatus.PREEMPTED, "Goal execution canceled.");
+	}
+	
+	/**
+	 * Registers the motion executing a goal, so that cancelling the goal stops it.
+	 * A motion whose goal was cancelled before registration is cancelled straight away.
+	 */
+	public void registerMotion(String goalId, ArmMotionHandle motion)
+	{
+		activeMotions.put(goalId, motion);
+		if (motion.isFinished())
+		{
+			activeMotions.remove(goalId);
+		}
+		else if (cancelRequests.containsKey(goalId))
+		{
+			motion.cancel();
+		}
+	}
+	
+	/**
+	 * Cancels goals. Queued goals are recalled and the motion of the current goal is
+	 * cancelled; the goal is marked preempted once the motion has stopped.
+	 * @param goalId id of the goal to cancel, all goals if empty
+	 * @param exceptGoalId id of a goal that isn't cancelled, or null
+	 */
+	public void cancelGoals(String goalId, String exceptGoalId)
+	{
+		long now = System.nanoTime();
+		boolean all = goalId == null || goalId.isEmpty();
+		String cancelledGoalId = null;
+		List<String> recalled = new ArrayList<String>();
+		synchronized (this)
+		{
+			if (!isActive() || goalQueue == null)
+			{
+				return;
+			}
+			Iterator<Goal<?>> queued = goalQueue.iterator();
+			while (queued.hasNext())
+			{
+				String queuedId = queued.next().goalId;
+				if ((all || queuedId.equals(goalId)) && !queuedId.equals(exceptGoalId))
+				{
+					queued.remove();
+					sendResult(queuedId, GoalStatus.RECALLED, "Goal canceled before execution.");
+					recalled.add(queuedId);
+				}
+			}
+			if (hasCurrentGoal() && (all || currentGoal.goalId.equals(goalId)) && !currentGoal.goalId.equals(exceptGoalId)
+					&& !cancelRequests.containsKey(currentGoal.goalId))
+			{
+				cancelledGoalId = currentGoal.goalId;
+				cancelRequests.put(cancelledGoalId, now);
+			}
+		}
+		for (String id : recalled)
+		{
+			Logger.info("Goal recalled: " + id);
+		}
+		if (cancelledGoalId != null)
+		{
+			ArmMotionHandle motion = activeMotions.get(cancelledGoalId);
+			if (motion != null)
+			{
+				motion.cancel();
+			}
+			Logger.info("Cancelling goal: " + cancelledGoalId);
+		}
+	}
+	
+	/**
+	 * Called when the motion executing a goal has finished, to send the goal's result.
+	 * @param goalId id of the goal
+	 * @param hasError if the motion finished with an error
+	 * @param errorMessage the motion's error message
+	 */
+	public synchronized void motionFinished(String goalId, boolean hasError, String errorMessage)
+	{
+		activeMotions.remove(goalId);
+		Long cancelNanos = cancelRequests.remove(goalId);
+		if (!isActive() || !hasCurrentGoal() || !currentGoal.goalId.equals(goalId))
+		{
+			return;
+		}
+		if (cancelNanos != null)
+		{
+			long latency = System.nanoTime() - cancelNanos;
+			cancelLatency.record(latency);
+			publishCancelLatency(latency / 1e9);
+			markCurrentGoalPreempted();
+		}
+		else if (!hasError)
+		{
+			markCurrentGoalReached();
+		}
+		else
+		{
+			markCurrentGoalFailed(errorMessage);
+		}
+	}
+	
+	private void publishCancelLatency(double seconds)
+	{
+		if (cancelLatencyPublisher != null && node != null)
+		{
+			std_msgs.Float64 latencyMsg = node.getTopicMessageFactory().newFromType(std_msgs.Float64._TYPE);
+			latencyMsg.setData(seconds);
+			cancelLatencyPublisher.publish(latencyMsg);
+		}
 	}
 	
 	public Boolean isActive() 
@@ -206,7 +389,7 @@ public class ActionServerNode extends AbstractNodeMain {
 	    }
     }
 	
-	public synchronized void publishFeedback(GoalID goal_id, String frame_id, JointTrajectoryPoint desired, JointTrajectoryPoint actual, JointTrajectoryPoint error) 
+	public void publishFeedback(GoalID goal_id, String frame_id, JointTrajectoryPoint desired, JointTrajectoryPoint actual, JointTrajectoryPoint error) 
 	{
 		FollowJointTrajectoryActionFeedback feedback = followTrajectoryServer.newFeedbackMessage();
 		// header
@@ -225,8 +408,26 @@ public class ActionServerNode extends AbstractNodeMain {
 		followTrajectoryServer.sendFeedback(feedback);
     }
 	
+	/**
+	 * Sends a feedback message filled by the caller. Doesn't take this node's monitor,
+	 * so feedback can be published while the control thread uses the node.
+	 */
+	public void sendFeedback(FollowJointTrajectoryActionFeedback feedback) 
+	{
+		ActionServer<FollowJointTrajectoryActionGoal, FollowJointTrajectoryActionFeedback, FollowJointTrajectoryActionResult> server = followTrajectoryServer;
+		if (server != null)
+		{
+			server.sendFeedback(feedback);
+		}
+    }
+	
 	public boolean isConnectedToMaster()
 	{
-		return connectedToMaster;
+		return readiness.isReady();
+	}
+	
+	public NodeReadiness getReadiness()
+	{
+		return readiness;
 	}
 }
@@ -0,0 +1,39 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.nodes;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Completion future of a node's start up, signalled from its onStart.
+ * The future's value is the System.nanoTime at which the node became ready.
+ */
+public class NodeReadiness {
+
+	private final String nodeName;
+	private final SettableFuture<Long> ready = SettableFuture.create();
+
+	public NodeReadiness(String nodeName)
+	{
+		this.nodeName = nodeName;
+	}
+
+	public void markReady()
+	{
+		ready.set(System.nanoTime());
+	}
+
+	public boolean isReady()
+	{
+		return ready.isDone();
+	}
+
+	public ListenableFuture<Long> getFuture()
+	{
+		return ready;
+	}
+
+	public String getNodeName()
+	{
+		return nodeName;
+	}
+}
@@ -1,40 +1,78 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.nodes;
 
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
 import org.ros.node.topic.Publisher;
-import org.ros.rosjava.tf.pubsub.TransformBroadcaster;
-
-import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
 
 public class PublicationNode extends AbstractNodeMain {
 	
 	
 	// ROS publishers for KMRIIWA platform
-	// Joint state publisher
-	private Publisher<sensor_msgs.JointState> jointStatePublisher;
+	// Registry of stream publishers
+	private final Map<Stream, StreamPublisher<?>> streamPublishers = new ConcurrentHashMap<Stream, StreamPublisher<?>>();
 	// DestinationReachedPublisher flag publisher for the arm
 	private Publisher<std_msgs.String> armDestinationReachedPublisher;
-	// KMR base state publisher
-	private Publisher<kmriiwa_msgs.KMRStatus> KMRStatusPublisher;
-	// LBR state publisher
-	private Publisher<kmriiwa_msgs.LBRStatus> LBRStatusPublisher;
-	private Publisher<sensor_msgs.LaserScan> laserB1ScanPublisher;
-	private Publisher<sensor_msgs.LaserScan> laserB4ScanPublisher;
-	private Publisher<nav_msgs.Odometry> odometryPublisher;
-	private TransformBroadcaster tfPublisher;
 	// Robot name used to build ROS topics
 	private String robotName = "kmriiwa";
-	// true if node is connected to ROS master
-	private boolean connectedToMaster = false;
+	// completed once the node is connected to ROS master
+	private final NodeReadiness readiness = new NodeReadiness("publisher");
 	
 	private ConnectedNode node = null;
 	
 	public PublicationNode(String robotName) 
 	{
 		this.robotName = robotName;
+		
+		register(Stream.JOINT_STATE, robotName + "/arm/joint_states", sensor_msgs.JointState._TYPE);
+		register(Stream.LASER_B1, robotName + "/base/state/LaserB1Scan", sensor_msgs.LaserScan._TYPE);
+		register(Stream.LASER_B4, robotName + "/base/state/LaserB4Scan", sensor_msgs.LaserScan._TYPE);
+		register(Stream.ODOMETRY, robotName + "/base/state/odom", nav_msgs.Odometry._TYPE);
+		// status is only published on change and at a slow heartbeat, so it is latched for late subscribers
+		register(Stream.KMR_STATUS, robotName + "/base/state/RobotStatus", kmriiwa_msgs.KMRStatus._TYPE).setLatched(true);
+		register(Stream.LBR_STATUS, robotName + "/arm/state/RobotStatus", kmriiwa_msgs.LBRStatus._TYPE).setLatched(true);
+		register(Stream.TF, "/tf", tf2_msgs.TFMessage._TYPE);
+	}
+	
+	/**
+	 * Registers a new published stream. Streams registered before the node starts
+	 * are advertised in onStart, later ones are advertised straight away.
+	 * @param stream the stream registered
+	 * @param topicName full topic name
+	 * @param messageType ROS message type of the topic
+	 * @return the handle to publish the stream's messages on
+	 */
+	public synchronized <T extends org.ros.internal.message.Message> StreamPublisher<T> register(Stream stream, String topicName, String messageType)
+	{
+		if (streamPublishers.containsKey(stream))
+		{
+			throw new IllegalArgumentException("Stream " + stream + " is already registered");
+		}
+		StreamPublisher<T> streamPublisher = new StreamPublisher<T>(topicName, messageType);
+		if (node != null)
+		{
+			streamPublisher.bind(node);
+		}
+		streamPublishers.put(stream, streamPublisher);
+		return streamPublisher;
+	}
+	
+	/**
+	 * @return the handle registered for the given stream
+	 */
+	@SuppressWarnings("unchecked")
+	public <T extends org.ros.internal.message.Message> StreamPublisher<T> getStreamPublisher(Stream stream)
+	{
+		StreamPublisher<T> streamPublisher = (StreamPublisher<T>) streamPublishers.get(stream);
+		if (streamPublisher == null)
+		{
+			throw new IllegalArgumentException("Stream " + stream + " isn't registered");
+		}
+		return streamPublisher;
 	}
 	
 
@@ -44,52 +82,16 @@ public class PublicationNode extends AbstractNodeMain {
 	}
 	
 	@Override
-	public void onStart(final ConnectedNode connectedNode)
+	public synchronized void onStart(final ConnectedNode connectedNode)
 	{
 		node = connectedNode;
 		
-		jointStatePublisher = node.newPublisher(robotName + "/arm/joint_states", sensor_msgs.JointState._TYPE);
-		laserB1ScanPublisher = node.newPublisher(robotName + "/base/state/LaserB1Scan", sensor_msgs.LaserScan._TYPE);
-		laserB4ScanPublisher = node.newPublisher(robotName + "/base/state/LaserB4Scan", sensor_msgs.LaserScan._TYPE);
-		odometryPublisher = node.newPublisher(robotName + "/base/state/odom", nav_msgs.Odometry._TYPE);
-		KMRStatusPublisher = node.newPublisher(robotName + "/base/state/RobotStatus", kmriiwa_msgs.KMRStatus._TYPE);
-		armDestinationReachedPublisher = node.newPublisher(robotName + "/arm/state/JointPositionReached", std_msgs.String._TYPE);
-		LBRStatusPublisher = node.newPublisher(robotName + "/arm/state/RobotStatus", kmriiwa_msgs.LBRStatus._TYPE);
-		tfPublisher = new TransformBroadcaster(node);
-		connectedToMaster = true;
-	}
-	
-	public <T extends org.ros.internal.message.Message> void publish(T msg) throws InterruptedException
-	{
-		if (msg instanceof sensor_msgs.JointState)
-		{
-			jointStatePublisher.publish((sensor_msgs.JointState) msg);
-		}
-		else if (msg instanceof sensor_msgs.LaserScan)
-		{
-			if (((sensor_msgs.LaserScan) msg).getHeader().getFrameId().matches(robotName + "_laser_B1_link"))
-				laserB1ScanPublisher.publish((sensor_msgs.LaserScan) msg);
-			else
-			{
-				laserB4ScanPublisher.publish((sensor_msgs.LaserScan) msg);
-			}
-		}
-		else if (msg instanceof nav_msgs.Odometry)
-		{
-			odometryPublisher.publish((nav_msgs.Odometry) msg);
-		}
-		else if (msg instanceof kmriiwa_msgs.KMRStatus)
+		for (StreamPublisher<?> streamPublisher : streamPublishers.values())
 		{
-			KMRStatusPublisher.publish((kmriiwa_msgs.KMRStatus) msg);
-		}
-		else if (msg instanceof kmriiwa_msgs.LBRStatus)
-		{
-			LBRStatusPublisher.publish((kmriiwa_msgs.LBRStatus) msg);
-		}
-		else
-		{
-			Logger.warn("Couldn't send unknown message type");
+			streamPublisher.bind(node);
 		}
+		armDestinationReachedPublisher = node.newPublisher(robotName + "/arm/state/JointPositionReached", std_msgs.String._TYPE);
+		readiness.markReady();
 	}
 	
 	public synchronized void publishArmDestinationReached() 
@@ -99,23 +101,14 @@ public class PublicationNode extends AbstractNodeMain {
     	armDestinationReachedPublisher.publish(reachedMsg);
     }
 	
-	public void publishTransform(String parentFrame, String childFrame, long time,geometry_msgs.Pose pose)
+	public boolean isConnectedToMaster()
 	{
-		tfPublisher.sendTransform(parentFrame, childFrame, 
-								  time, 
-								  pose.getPosition().getX(), 
-								  pose.getPosition().getY(),
-								  pose.getPosition().getZ(),
-								  pose.getOrientation().getX(),
-								  pose.getOrientation().getY(),
-								  pose.getOrientation().getZ(),
-								  pose.getOrientation().getW());
+		return readiness.isReady();
 	}
 	
-	
-	public boolean isConnectedToMaster()
+	public NodeReadiness getReadiness()
 	{
-		return connectedToMaster;
+		return readiness;
 	}
 	
 
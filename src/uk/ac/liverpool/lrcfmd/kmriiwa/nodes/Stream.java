@@ -0,0 +1,21 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.nodes;
+
+/**
+ * Streams published by the bridge, each one is registered once on the
+ * PublicationNode under its value.
+ */
+public enum Stream
+{
+	JOINT_STATE,
+	JOINT_TELEMETRY,
+	LASER_B1,
+	LASER_B4,
+	LASER_MERGED,
+	ODOMETRY,
+	KMR_STATUS,
+	LBR_STATUS,
+	TF,
+	CANCEL_LATENCY,
+	LATENCY_DIAGNOSTICS,
+	CLOCK_DIAGNOSTICS
+}
@@ -0,0 +1,69 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.nodes;
+
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+
+/**
+ * Typed publishing handle of one stream registered on the PublicationNode.
+ * Producers keep the handle and publish straight to it. Messages published
+ * before the node has connected to the master are dropped.
+ */
+public class StreamPublisher<T extends org.ros.internal.message.Message> {
+
+	private final String topicName;
+	private final String messageType;
+	private volatile Publisher<T> publisher = null;
+	private volatile boolean latched = false;
+
+	StreamPublisher(String topicName, String messageType)
+	{
+		this.topicName = topicName;
+		this.messageType = messageType;
+	}
+
+	void bind(ConnectedNode node)
+	{
+		Publisher<T> newPublisher = node.newPublisher(topicName, messageType);
+		newPublisher.setLatchMode(latched);
+		publisher = newPublisher;
+	}
+
+	/**
+	 * Sets whether the last published message is sent to subscribers as they connect.
+	 * Messages of a latched stream must not be modified once published.
+	 */
+	public void setLatched(boolean latched)
+	{
+		this.latched = latched;
+		Publisher<T> currentPublisher = publisher;
+		if (currentPublisher != null)
+		{
+			currentPublisher.setLatchMode(latched);
+		}
+	}
+
+	public void publish(T msg)
+	{
+		Publisher<T> currentPublisher = publisher;
+		if (currentPublisher != null)
+		{
+			currentPublisher.publish(msg);
+		}
+	}
+
+	public String getTopicName()
+	{
+		return topicName;
+	}
+
+	public String getMessageType()
+	{
+		return messageType;
+	}
+
+	public boolean hasSubscribers()
+	{
+		Publisher<T> currentPublisher = publisher;
+		return currentPublisher != null && currentPublisher.hasSubscribers();
+	}
+}
@@ -1,34 +1,68 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.nodes;
 
+import java.util.concurrent.TimeUnit;
+
 import org.ros.message.MessageListener;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
 import org.ros.node.topic.Subscriber;
 
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandDispatcher;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandMailbox;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
+
 
 public class SubscriptionNode extends AbstractNodeMain
 {
 	
 	private ConnectedNode node = null;
 	private String robotName = "kmriiwa";
-	// true if node is connected to ROS master
-	private boolean connectedToMaster = false;
+	// completed once the node is connected to ROS master
+	private final NodeReadiness readiness = new NodeReadiness("subscriber");
 	
 	private Subscriber<kmriiwa_msgs.JointPosition> jointPositionSubscriber;
 	private Subscriber<geometry_msgs.Twist> baseTwistSubscriber;
 	
-	private kmriiwa_msgs.JointPosition jp;
-	private geometry_msgs.Twist baseTwist;
+	// Latest received commands, commands older than the max age are rejected
+	private final CommandMailbox<kmriiwa_msgs.JointPosition> jointPositionMailbox = new CommandMailbox<kmriiwa_msgs.JointPosition>("joint_position_cmd", 2000);
+	private final CommandMailbox<geometry_msgs.Twist> baseTwistMailbox = new CommandMailbox<geometry_msgs.Twist>("cmd_vel", 500);
+	
+	// wakes the control thread when a command arrives
+	private CommandDispatcher dispatcher = null;
 	
-	private Boolean new_jp = new Boolean(false);
-	private Boolean new_baseTwist = new Boolean(false);
+	// Time to hand a received command over to its consumer
+	private final LatencyStats jointPositionReceipt = Metrics.latency("joint_position_receipt");
+	private final LatencyStats baseTwistReceipt = Metrics.latency("cmd_vel_receipt");
 	
 	public SubscriptionNode(String robotName)
 	{
 		this.robotName = robotName;
 	}
 	
+	public void setCommandDispatcher(CommandDispatcher dispatcher)
+	{
+		this.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * Sets the maximum age of commands when they are executed, 0 to accept any age
+	 */
+	public void setCommandMaxAge(long jointPositionMaxAgeMs, long baseTwistMaxAgeMs)
+	{
+		jointPositionMailbox.setMaxAge(jointPositionMaxAgeMs, TimeUnit.MILLISECONDS);
+		baseTwistMailbox.setMaxAge(baseTwistMaxAgeMs, TimeUnit.MILLISECONDS);
+	}
+	
+	private void signalCommand()
+	{
+		if (dispatcher != null)
+		{
+			dispatcher.signalCommand();
+		}
+	}
+	
 	@Override
 	public GraphName getDefaultNodeName() {
 		return GraphName.of(robotName + "/subscriber");
@@ -38,18 +72,16 @@ public class SubscriptionNode extends AbstractNodeMain
 	public void onStart(ConnectedNode connectedNode)
 	{
 		node = connectedNode;
-		jp = node.getTopicMessageFactory().newFromType(kmriiwa_msgs.JointPosition._TYPE);
 		
 		jointPositionSubscriber = node.newSubscriber(robotName + "/arm/command/JointPosition", kmriiwa_msgs.JointPosition._TYPE);
 		jointPositionSubscriber.addMessageListener( new MessageListener<kmriiwa_msgs.JointPosition>() {
 			@Override
 			public void onNewMessage(kmriiwa_msgs.JointPosition position)
 			{
-				synchronized(new_jp)
-				{
-					jp = position;
-					new_jp = true;
-				}
+				long start = System.nanoTime();
+				jointPositionMailbox.post(position);
+				signalCommand();
+				jointPositionReceipt.record(System.nanoTime() - start);
 			}
 		});
 		
@@ -58,52 +90,51 @@ public class SubscriptionNode extends AbstractNodeMain
 			@Override
 			public void onNewMessage(geometry_msgs.Twist twist)
 			{
-				synchronized(new_baseTwist)
-				{
-					baseTwist = twist;
-					new_baseTwist = true;
-				}
+				// consumed by the base jog loop, the control thread doesn't need to wake up
+				long start = System.nanoTime();
+				baseTwistMailbox.post(twist);
+				baseTwistReceipt.record(System.nanoTime() - start);
 			}
 		});
 		
-		connectedToMaster = true;
+		readiness.markReady();
 	}
 	
+	/**
+	 * @return the latest joint position command, or null if no new or fresh command was received
+	 */
 	public kmriiwa_msgs.JointPosition getJointPositionTarget()
 	{
-		synchronized (new_jp) 
-		{
-			if (new_jp) 
-			{
-				new_jp = false;
-				return jp;
-			}
-			else 
-			{
-				return null;
-			}
-	    }
+		CommandMailbox.Entry<kmriiwa_msgs.JointPosition> entry = jointPositionMailbox.take();
+		return entry != null ? entry.command : null;
 	}
 	
-	
+	/**
+	 * @return the latest base twist command, or null if no new or fresh command was received
+	 */
 	public geometry_msgs.Twist getBaseTwistTarget()
 	{
-		synchronized (new_baseTwist) 
-		{
-			if (new_baseTwist) 
-			{
-				new_baseTwist = false;
-				return baseTwist;
-			}
-			else 
-			{
-				return null;
-			}
-	    }
+		CommandMailbox.Entry<geometry_msgs.Twist> entry = baseTwistMailbox.take();
+		return entry != null ? entry.command : null;
+	}
+	
+	public CommandMailbox<kmriiwa_msgs.JointPosition> getJointPositionMailbox()
+	{
+		return jointPositionMailbox;
+	}
+	
+	public CommandMailbox<geometry_msgs.Twist> getBaseTwistMailbox()
+	{
+		return baseTwistMailbox;
 	}
 	
 	public boolean isConnectedToMaster()
 	{
-		return connectedToMaster;
+		return readiness.isReady();
+	}
+	
+	public NodeReadiness getReadiness()
+	{
+		return readiness;
 	}
-}
\ No newline at end of file
+}
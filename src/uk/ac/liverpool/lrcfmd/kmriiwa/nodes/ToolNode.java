@@ -4,17 +4,22 @@ import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
 
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandDispatcher;
+
 public abstract class ToolNode extends AbstractNodeMain{
 	
 	protected String robotName = "kmriiwa";
 	protected String toolName;
 	protected ConnectedNode node = null;
-	protected boolean connectedToMaster = false;
+	protected volatile boolean connectedToMaster = false;
+	private final NodeReadiness readiness;
+	private CommandDispatcher dispatcher = null;
 	
 	public ToolNode(String robotName, String toolName)
 	{
 		this.robotName = robotName;
 		this.toolName = toolName;
+		this.readiness = new NodeReadiness(toolName);
 	}
 	
 	@Override
@@ -22,11 +27,51 @@ public abstract class ToolNode extends AbstractNodeMain{
 		return GraphName.of(robotName + "/" + toolName);
 	}
 	
+	public void setCommandDispatcher(CommandDispatcher dispatcher)
+	{
+		this.dispatcher = dispatcher;
+	}
+	
+	/**
+	 * To be called by implementations when a new tool command is received, so that
+	 * the control thread wakes up and calls executeToolCommand straight away.
+	 */
+	protected void signalCommand()
+	{
+		if (dispatcher != null)
+		{
+			dispatcher.signalCommand();
+		}
+	}
+	
 	public abstract void executeToolCommand();
 	public abstract void publishToolState();
 	
+	/**
+	 * To be called by implementations at the end of onStart, once the tool's
+	 * publishers and subscribers are set up.
+	 */
+	protected void markConnectedToMaster()
+	{
+		connectedToMaster = true;
+		readiness.markReady();
+	}
+	
+	/**
+	 * Implementations that set connectedToMaster directly instead of calling
+	 * markConnectedToMaster are marked ready here.
+	 */
 	public boolean isConnectedToMaster()
 	{
+		if (connectedToMaster && !readiness.isReady())
+		{
+			readiness.markReady();
+		}
 		return connectedToMaster;
 	}
+	
+	public NodeReadiness getReadiness()
+	{
+		return readiness;
+	}
 }
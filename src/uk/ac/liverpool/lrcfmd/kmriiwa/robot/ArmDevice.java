@@ -0,0 +1,48 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Interface over the LBR iiwa arm used by the bridge. Implemented on the
+ * robot controller by SunriseArm and off the controller by a simulated arm.
+ */
+public interface ArmDevice {
+
+	int getJointCount();
+
+	/**
+	 * Writes the current joint positions in rad into positions.
+	 */
+	void getJointPositions(double[] positions);
+
+	/**
+	 * Writes the measured joint torques in Nm into torques.
+	 */
+	void getJointTorques(double[] torques);
+
+	boolean isMotionEnabled();
+
+	boolean isMastered();
+
+	boolean areAllAxesGmsReferenced();
+
+	boolean areAllAxesPositionReferenced();
+
+	boolean isSafetyStopActive();
+
+	/**
+	 * Writes all the status flags into status, reading the controller's safety state once.
+	 */
+	void getStatus(ArmStatus status);
+
+	/**
+	 * Submits a joint space motion through the given points without waiting for it.
+	 * Motions are executed in submission order.
+	 * @param positions joint positions of the points in rad
+	 * @param relVelocities relative joint velocity of each point
+	 * @param relAccelerations relative joint acceleration of each point, or null for the default
+	 * @param blendingRel relative blending into the next motion, 0 to stop at the last point
+	 * @param listener notified once the motion has finished, or null
+	 * @return the container of the submitted motion
+	 */
+	ArmMotionContainer moveAsync(double[][] positions, double[] relVelocities, double[] relAccelerations,
+			double blendingRel, ArmMotionListener listener);
+}
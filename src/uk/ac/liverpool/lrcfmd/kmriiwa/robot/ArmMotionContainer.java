@@ -0,0 +1,18 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * A motion submitted to an ArmDevice.
+ */
+public interface ArmMotionContainer {
+
+	boolean isFinished();
+
+	/**
+	 * Cancels the motion, the arm stops if it is executing it.
+	 */
+	void cancel();
+
+	boolean hasError();
+
+	String getErrorMessage();
+}
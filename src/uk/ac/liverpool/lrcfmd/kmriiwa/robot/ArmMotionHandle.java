@@ -0,0 +1,63 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Handle of an arm motion submitted asynchronously. A motion may consist of
+ * several motion containers, e.g. the segments of a long trajectory, which
+ * are executed in order.
+ */
+public class ArmMotionHandle {
+
+	private final String goalId;
+	private final List<ArmMotionContainer> containers = new ArrayList<ArmMotionContainer>();
+	private final long submittedNanos = System.nanoTime();
+
+	/**
+	 * @param goalId id of the action goal executed by the motion, or null
+	 */
+	public ArmMotionHandle(String goalId)
+	{
+		this.goalId = goalId;
+	}
+
+	synchronized void addContainer(ArmMotionContainer container)
+	{
+		containers.add(container);
+	}
+
+	public String getGoalId()
+	{
+		return goalId;
+	}
+
+	public long getSubmittedNanos()
+	{
+		return submittedNanos;
+	}
+
+	/**
+	 * @return true once the last container of the motion has finished
+	 */
+	public synchronized boolean isFinished()
+	{
+		return containers.isEmpty() || containers.get(containers.size() - 1).isFinished();
+	}
+
+	/**
+	 * Cancels the motion, queued containers first so that none of them starts
+	 * once the running one has been cancelled.
+	 */
+	public synchronized void cancel()
+	{
+		for (int i = containers.size() - 1; i >= 0; i--)
+		{
+			ArmMotionContainer container = containers.get(i);
+			if (!container.isFinished())
+			{
+				container.cancel();
+			}
+		}
+	}
+}
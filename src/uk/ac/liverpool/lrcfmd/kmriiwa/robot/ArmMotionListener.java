@@ -0,0 +1,10 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Notified when a motion submitted to an ArmDevice has finished, whether it
+ * was completed, cancelled or failed.
+ */
+public interface ArmMotionListener {
+
+	void containerFinished(ArmMotionContainer container);
+}
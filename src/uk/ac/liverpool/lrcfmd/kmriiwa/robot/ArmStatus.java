@@ -0,0 +1,23 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Status flags of the arm, filled by ArmDevice.getStatus. Instances are reused,
+ * so the flags are read from the controller without garbage.
+ */
+public class ArmStatus {
+
+	public boolean motionEnabled;
+	public boolean mastered;
+	public boolean gmsReferenced;
+	public boolean positionReferenced;
+	public boolean safetyStopActive;
+
+	public void copyFrom(ArmStatus other)
+	{
+		motionEnabled = other.motionEnabled;
+		mastered = other.mastered;
+		gmsReferenced = other.gmsReferenced;
+		positionReferenced = other.positionReferenced;
+		safetyStopActive = other.safetyStopActive;
+	}
+}
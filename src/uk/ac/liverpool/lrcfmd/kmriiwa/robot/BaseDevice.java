@@ -0,0 +1,33 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Interface over the KMP omnidirectional base used by the bridge. Implemented
+ * on the robot controller by SunriseBase and off the controller by a simulated base.
+ */
+public interface BaseDevice {
+
+	boolean isMotionEnabled();
+
+	boolean isReadyToMove();
+
+	/**
+	 * Jogs the base with the velocity {x, y, theta} in m/s and rad/s.
+	 */
+	void jog(double[] velocity);
+
+	/**
+	 * @return battery state of charge in percent
+	 */
+	double getBatteryStateOfCharge();
+
+	boolean isWarningFieldBreached();
+
+	boolean isSafetyFieldBreached();
+
+	boolean isSafetyStopActive();
+
+	/**
+	 * Writes the whole status into status, reading the platform's safety state once.
+	 */
+	void getStatus(BaseStatus status);
+}
@@ -0,0 +1,24 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Status of the base, filled by BaseDevice.getStatus. Instances are reused,
+ * so the status is read from the controller without garbage.
+ */
+public class BaseStatus {
+
+	// battery state of charge in percent
+	public double batteryStateOfCharge;
+	public boolean warningFieldBreached;
+	public boolean safetyFieldBreached;
+	public boolean motionEnabled;
+	public boolean safetyStopActive;
+
+	public void copyFrom(BaseStatus other)
+	{
+		batteryStateOfCharge = other.batteryStateOfCharge;
+		warningFieldBreached = other.warningFieldBreached;
+		safetyFieldBreached = other.safetyFieldBreached;
+		motionEnabled = other.motionEnabled;
+		safetyStopActive = other.safetyStopActive;
+	}
+}
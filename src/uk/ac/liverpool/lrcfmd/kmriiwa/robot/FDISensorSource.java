@@ -0,0 +1,121 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+import com.kuka.nav.fdi.FDIConnection;
+import com.kuka.nav.fdi.data.Odometry;
+import com.kuka.nav.provider.LaserScan;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+
+/**
+ * SensorSource reading the laser scanners and odometry of the base over the
+ * FDI connection of the controller.
+ */
+public class FDISensorSource implements SensorSource {
+
+	private static final String FDI_IP = "172.31.1.102";
+	private static final int FDI_PORT = 34001;
+	private static final float[] EMPTY_RANGES = new float[0];
+	private static final long NO_SAMPLE = Long.MIN_VALUE;
+
+	// Data retrieval socket via FDI
+	private FDIConnection fdi;
+	// FDI hands back its latest sample on every call, whether it was already read or not, so a
+	// sample is new if its timestamp differs from the last one returned; lasers indexed by ordinal
+	private final long[] lastScanTimestamps = new long[LaserScanner.values().length];
+	private long lastOdometryTimestamp = NO_SAMPLE;
+
+	public FDISensorSource()
+	{
+		fdi = new FDIConnection(new InetSocketAddress(FDI_IP, FDI_PORT));
+		Arrays.fill(lastScanTimestamps, NO_SAMPLE);
+	}
+
+	@Override
+	public void connect(long timeout)
+	{
+		fdi.connect();
+		if (fdi.isConnected())
+		{
+			long startTime = System.currentTimeMillis();
+			for (LaserScanner laserScanner : LaserScanner.values())
+			{
+				while(!fdi.getSubscription().isLaserSubscribed(laserScanner.port) && (System.currentTimeMillis() - startTime <= timeout))
+				{
+					fdi.getNewLaserScan(laserScanner.port);
+				}
+			}
+			while(!fdi.getSubscription().isOdometrySubscribed() && (System.currentTimeMillis() - startTime <= timeout))
+			{
+				fdi.getNewOdometry();
+			}
+		}
+	}
+
+	@Override
+	public boolean isLaserSubscribed(LaserScanner laserScanner)
+	{
+		return fdi.getSubscription().isLaserSubscribed(laserScanner.port);
+	}
+
+	@Override
+	public boolean isOdometrySubscribed()
+	{
+		return fdi.getSubscription().isOdometrySubscribed();
+	}
+
+	@Override
+	public float[] getNewLaserScan(LaserScanner laserScanner)
+	{
+		if (!isLaserSubscribed(laserScanner))
+		{
+			return null;
+		}
+		LaserScan laserScan = fdi.getNewLaserScan(laserScanner.port);
+		// not compared by reference, FDI may update the object of the latest sample in place or
+		// hand out a new object for a sample already read
+		if (laserScan == null || laserScan.getTimestamp() == lastScanTimestamps[laserScanner.ordinal()])
+		{
+			return null;
+		}
+		lastScanTimestamps[laserScanner.ordinal()] = laserScan.getTimestamp();
+		float[] ranges = laserScan.getScannedRanges();
+		return ranges != null ? ranges : EMPTY_RANGES;
+	}
+
+	@Override
+	public OdometrySample getNewOdometry()
+	{
+		if (!isOdometrySubscribed())
+		{
+			return null;
+		}
+		Odometry odometry = fdi.getNewOdometry();
+		if (odometry == null || odometry.getTimestamp() == lastOdometryTimestamp)
+		{
+			return null;
+		}
+		lastOdometryTimestamp = odometry.getTimestamp();
+		return new OdometrySample(odometry.getPose().getX(), odometry.getPose().getY(), odometry.getPose().getTheta(),
+				odometry.getVelocity().getX(), odometry.getVelocity().getY(), odometry.getVelocity().getTheta());
+	}
+
+	@Override
+	public void disconnect()
+	{
+		try
+		{
+			if (fdi.isConnected())
+			{
+				fdi.disconnect();
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.error("couldn't disconnect FDI socket");
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
+
+/**
+ * Samples the joint positions and measured torques of the arm at a fixed
+ * rate into a preallocated ring of primitive samples, which a single reader
+ * drains in batches. The sampler thread never waits for the reader: if the
+ * reader falls more than the ring behind, the oldest samples are dropped.
+ */
+public class JointTelemetrySampler {
+
+	// batches held by the ring, beyond which samples are dropped
+	private static final int RING_BATCHES = 16;
+	// stamps are sent in s as doubles, which resolve about 0.2 us at current times
+	private static final long MIN_STAMP_STEP_NANOS = 1000;
+
+	private final ArmDevice arm;
+	private final int jointCount;
+	private final int batchSize;
+	private final int capacity;
+	private final long periodNanos;
+	private ScheduledExecutorService executor = null;
+
+	// Ring of samples, a sample's positions and torques are contiguous in values
+	private final long[] sampleNanos;
+	private final double[] values;
+	private final double[] positions;
+	private final double[] torques;
+	// samples written, only incremented by the sampler thread once a sample is complete
+	private volatile long written = 0;
+	// samples read and stamp of the last one read, only used by the reader thread
+	private long read = 0;
+	private long lastStampNanos = Long.MIN_VALUE;
+
+	private final AtomicLong droppedSamples = Metrics.counter("joint_telemetry_dropped");
+	private final LatencyStats acquisition = Metrics.latency("joint_telemetry_acquisition");
+
+	public JointTelemetrySampler(ArmDevice arm, double rateHz, int batchSize)
+	{
+		this.arm = arm;
+		this.jointCount = arm.getJointCount();
+		this.batchSize = batchSize;
+		this.capacity = batchSize * RING_BATCHES;
+		this.periodNanos = Math.round(1e9 / rateHz);
+
+		sampleNanos = new long[capacity];
+		values = new double[capacity * 2 * jointCount];
+		positions = new double[jointCount];
+		torques = new double[jointCount];
+	}
+
+	public int getJointCount()
+	{
+		return jointCount;
+	}
+
+	public int getBatchSize()
+	{
+		return batchSize;
+	}
+
+	/**
+	 * @return values per sample in a batch: the stamp, then the positions and the torques of every joint
+	 */
+	public int getStride()
+	{
+		return 1 + 2 * jointCount;
+	}
+
+	public synchronized void start()
+	{
+		if (executor != null)
+		{
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "joint-telemetry");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run()
+			{
+				sample();
+			}
+		}, 0, periodNanos, TimeUnit.NANOSECONDS);
+		Logger.info("Joint telemetry sampled at " + (1e9 / periodNanos) + " Hz in batches of " + batchSize);
+	}
+
+	private void sample()
+	{
+		try
+		{
+			long now = System.nanoTime();
+			arm.getJointPositions(positions);
+			arm.getJointTorques(torques);
+			acquisition.record(System.nanoTime() - now);
+
+			long index = written;
+			int slot = (int) (index % capacity);
+			sampleNanos[slot] = now;
+			System.arraycopy(positions, 0, values, slot * 2 * jointCount, jointCount);
+			System.arraycopy(torques, 0, values, slot * 2 * jointCount + jointCount, jointCount);
+			written = index + 1;
+		}
+		catch (Exception e)
+		{
+			Logger.warn("Couldn't sample joint telemetry: " + e.toString());
+		}
+	}
+
+	/**
+	 * Copies the oldest complete batch into data, a row of getStride() values per sample.
+	 * @param stampOffsetNanos ROS time minus System.nanoTime(), to convert the sample times to stamps in s
+	 * @return false if less than a batch is pending
+	 */
+	public boolean nextBatch(double[] data, long stampOffsetNanos)
+	{
+		long available = written;
+		// leave the sampler a batch of room, samples older than that may be overwritten while copied
+		if (available - read > capacity - batchSize)
+		{
+			long skipped = available - (capacity - batchSize) - read;
+			droppedSamples.addAndGet(skipped);
+			read += skipped;
+		}
+		if (available - read < batchSize)
+		{
+			return false;
+		}
+
+		int stride = getStride();
+		long stampNanos = lastStampNanos;
+		for (int i = 0; i < batchSize; i++)
+		{
+			int slot = (int) ((read + i) % capacity);
+			int row = i * stride;
+			// samples taken back to back after a stall could go back in time if the offset was lowered
+			stampNanos = Math.max(sampleNanos[slot] + stampOffsetNanos, stampNanos + MIN_STAMP_STEP_NANOS);
+			data[row] = stampNanos / 1e9;
+			System.arraycopy(values, slot * 2 * jointCount, data, row + 1, 2 * jointCount);
+		}
+
+		// the sampler may have lapped the batch if this thread was preempted while copying
+		if (written - read >= capacity)
+		{
+			droppedSamples.addAndGet(batchSize);
+			read += batchSize;
+			return false;
+		}
+		read += batchSize;
+		lastStampNanos = stampNanos;
+		return true;
+	}
+
+	public synchronized void shutdown()
+	{
+		if (executor != null)
+		{
+			executor.shutdown();
+			try
+			{
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				executor.shutdownNow();
+			}
+			executor = null;
+		}
+	}
+}
@@ -1,33 +1,200 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
 
-import com.kuka.roboticsAPI.deviceModel.kmp.KmpOmniMove;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.CommandMailbox;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
+
+/**
+ * Jogs the base from its own fixed rate loop. Every cycle the freshest
+ * cmd_vel twist is applied, and if no twist was received within the
+ * timeout the velocity is ramped down to zero.
+ */
 public class KMRCommander {
-	
-	private KmpOmniMove kmr;
-	
-	public KMRCommander(KmpOmniMove robot)
+
+	// Deceleration used to ramp to zero when cmd_vel times out, in m/s^2 and rad/s^2
+	private static final double STOP_DECELERATION = 1.0;
+
+	private BaseDevice kmr;
+	private ScheduledExecutorService jogExecutor = null;
+	private CommandMailbox<geometry_msgs.Twist> twistMailbox;
+	private long periodNanos;
+	private long timeoutNanos;
+	private volatile boolean enabled = true;
+
+	// Jog loop state, only accessed by the jog thread and once it has stopped by stopJogLoop
+	private final double[] velocity = new double[3];
+	private long lastTwistNanos = 0;
+	private long lastCycleNanos = 0;
+	private boolean stopped = true;
+
+	private final LatencyStats jitter = Metrics.latency("base_jog_jitter");
+	private final LatencyStats commandAge = Metrics.latency("base_jog_command_age");
+	private final LatencyStats commandLatency = Metrics.latency("cmd_vel_to_jog");
+	private final LatencyStats jogExecution = Metrics.latency("base_jog_execution");
+
+	public KMRCommander(BaseDevice robot)
 	{
 		this.kmr = robot;
 	}
-	
-	public void twistJog(geometry_msgs.Twist twistCommand)
+
+	/**
+	 * Starts the base jog loop.
+	 * @param twistMailbox mailbox holding the latest cmd_vel twist
+	 * @param rateHz jog loop rate
+	 * @param timeoutMs time without cmd_vel after which the base is ramped to a stop
+	 */
+	public synchronized void startJogLoop(CommandMailbox<geometry_msgs.Twist> twistMailbox, double rateHz, long timeoutMs)
+	{
+		if (jogExecutor != null)
+		{
+			return;
+		}
+		this.twistMailbox = twistMailbox;
+		this.periodNanos = Math.round(1e9 / rateHz);
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+		jogExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "base-jog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		jogExecutor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run()
+			{
+				jogCycle();
+			}
+		}, 0, periodNanos, TimeUnit.NANOSECONDS);
+		Logger.info("Base jog loop started at " + rateHz + " Hz");
+	}
+
+	/**
+	 * Enables or disables jogging, e.g. when the application pauses. Disabling stops the base.
+	 */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	private void jogCycle()
 	{
-		if (twistCommand != null)
+		long now = System.nanoTime();
+		if (lastCycleNanos != 0)
+		{
+			jitter.record(Math.abs(now - lastCycleNanos - periodNanos));
+		}
+		double dt = lastCycleNanos != 0 ? (now - lastCycleNanos) / 1e9 : periodNanos / 1e9;
+		lastCycleNanos = now;
+
+		try
 		{
+			CommandMailbox.Entry<geometry_msgs.Twist> entry = twistMailbox.take();
+			if (entry != null)
+			{
+				geometry_msgs.Twist twist = entry.command;
+				velocity[0] = twist.getLinear().getX();
+				velocity[1] = twist.getLinear().getY();
+				velocity[2] = twist.getAngular().getZ();
+				lastTwistNanos = entry.receivedNanos;
+				commandLatency.record(now - entry.receivedNanos);
+			}
+			else if (lastTwistNanos != 0)
+			{
+				commandAge.record(now - lastTwistNanos);
+			}
+
+			if (!enabled || lastTwistNanos == 0 || now - lastTwistNanos > timeoutNanos)
+			{
+				rampToZero(enabled ? dt : Double.MAX_VALUE);
+			}
+
+			boolean zero = velocity[0] == 0 && velocity[1] == 0 && velocity[2] == 0;
+			// keep sending zero until the stop has been commanded once
+			if (zero && stopped)
+			{
+				return;
+			}
 			if (kmr.isMotionEnabled() && kmr.isReadyToMove())
 			{
-				try
-				{
-					double vel[] = {twistCommand.getLinear().getX(), twistCommand.getLinear().getY(), twistCommand.getAngular().getZ()};
-					kmr.jog(vel);
-					Thread.sleep(50);
-				}
-				catch (InterruptedException e)
+				long jogStart = System.nanoTime();
+				kmr.jog(velocity);
+				jogExecution.record(System.nanoTime() - jogStart);
+				stopped = zero;
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.error("Base jog cycle failed: " + e.toString());
+		}
+	}
+
+	private void rampToZero(double dt)
+	{
+		double step = STOP_DECELERATION * dt;
+		for (int i = 0; i < velocity.length; i++)
+		{
+			if (Math.abs(velocity[i]) <= step)
+			{
+				velocity[i] = 0;
+			}
+			else
+			{
+				velocity[i] -= Math.signum(velocity[i]) * step;
+			}
+		}
+	}
+
+	/**
+	 * Stops the jog loop and then the base, the loop's last cycle may not have run yet.
+	 */
+	public synchronized void stopJogLoop()
+	{
+		if (jogExecutor != null)
+		{
+			enabled = false;
+			jogExecutor.shutdown();
+			try
+			{
+				if (!jogExecutor.awaitTermination(1, TimeUnit.SECONDS))
 				{
-					e.printStackTrace();
+					Logger.warn("Base jog loop didn't stop within 1 s");
 				}
 			}
+			catch (InterruptedException e)
+			{
+				jogExecutor.shutdownNow();
+				Thread.currentThread().interrupt();
+			}
+			jogExecutor = null;
+			stopBase();
+		}
+	}
+
+	private void stopBase()
+	{
+		try
+		{
+			if (!stopped && kmr.isMotionEnabled() && kmr.isReadyToMove())
+			{
+				velocity[0] = 0;
+				velocity[1] = 0;
+				velocity[2] = 0;
+				kmr.jog(velocity);
+				stopped = true;
+			}
+		}
+		catch (Exception e)
+		{
+			Logger.error("Couldn't stop the base: " + e.toString());
 		}
 	}
 
@@ -1,41 +1,58 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
 
-import com.kuka.nav.fdi.FDIConnection;
-import com.kuka.nav.fdi.data.Odometry;
-import com.kuka.nav.provider.LaserScan;
-import com.kuka.roboticsAPI.controllerModel.sunrise.SunriseSafetyState.SafetyStopType;
-import com.kuka.roboticsAPI.deviceModel.kmp.KmpOmniMove;
-
-import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ros.message.MessageFactory;
 import org.ros.node.NodeConfiguration;
 import org.ros.time.TimeProvider;
 
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatestSampleSlot;
 import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.MessageRing;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
 
 public class KMRMsgGenerator {
 	
 	private String robotName;
-	private KmpOmniMove robot = null;
-	 // Data retrieval socket via FDI 
-    private FDIConnection fdi;
-	private final String FDI_IP = "172.31.1.102";
-	private final int FDI_PORT = 34001;
+	// Base status, sampled with one read of the platform's safety state
+	private RobotStateSampler stateSampler = null;
+	// Laser scans and odometry, e.g. read over FDI
+	private SensorSource sensors;
+	// Background readers of the sensor streams
+	private SensorIngestion ingestion;
+	// Sequence numbers of the last published samples, lasers indexed by ordinal
+	private final long[] lastLaserSequence = new long[LaserScanner.values().length];
+	private long lastOdometrySequence = 0;
+	private long lastOdometryTransformSequence = 0;
+	// Sequence numbers and arrival of the scans in the last merged scan, indexed by ordinal
+	private final long[] lastMergedSequence = new long[LaserScanner.values().length];
+	private final long[] lastMergedReceivedNanos = new long[LaserScanner.values().length];
+	// Interval between the last two scans of a laser, both scanners run at the same rate
+	private long scanIntervalNanos = 0;
+	// Scans older than this many scan intervals are left out of the merged scan
+	private static final int MAX_MERGED_SCAN_AGE_INTERVALS = 2;
 	
-	// Laser ports on controller
+	// Laser ports on controller and mounting poses in the base footprint frame,
+	// diagonally at the front left and back right corners of the KMP200
 	public enum LaserScanner
 	{
-		LASER_B1(1801, "B1"),
-		LASER_B4(1802, "B4");
+		LASER_B1(1801, "B1", 0.4485, 0.2725, 0.25 * Math.PI),
+		LASER_B4(1802, "B4", -0.4485, -0.2725, -0.75 * Math.PI);
 		
 		public final int port;
 		public final String id;
+		public final double x;
+		public final double y;
+		public final double yaw;
 		
-		private LaserScanner(int port, String id)
+		private LaserScanner(int port, String id, double x, double y, double yaw)
 		{
 			this.port = port;
 			this.id = id;
+			this.x = x;
+			this.y = y;
+			this.yaw = yaw;
 		}
 	}
 	
@@ -48,140 +65,339 @@ public class KMRMsgGenerator {
 	private final float ANGLE_MAX = (float) ((135*Math.PI)/180);
 	private final float RANGE_MIN = (float) (0.12);
 	private final float RANGE_MAX = (float) (15);
+	private static final float[] EMPTY_RANGES = new float[0];
+	// values() returns a new array on every call
+	private static final LaserScanner[] LASER_SCANNERS = LaserScanner.values();
 	
 	// ROS
 	private NodeConfiguration nodeConf = NodeConfiguration.newPrivate();
 	private MessageFactory messageFactory = nodeConf.getTopicMessageFactory();
 	private TimeProvider time;
 	
-	public KMRMsgGenerator(KmpOmniMove robot, String robotName, TimeProvider timeProvider)
+	// Frame ids, lasers indexed by ordinal
+	private final String[] laserFrameIds = new String[LaserScanner.values().length];
+	private final String odomFrameId;
+	private final String baseFootprintFrameId;
+	
+	// Preallocated messages reused every cycle, lasers indexed by ordinal
+	private final MessageRing<?>[] laserScanRings = new MessageRing<?>[LaserScanner.values().length];
+	private final MessageRing<nav_msgs.Odometry> odometryRing;
+	private final MessageRing<kmriiwa_msgs.KMRStatus> kmrStatusRing;
+	private final double[] quaternion = new double[4];
+	
+	// 360° scan merged from all lasers in the base footprint frame
+	private final LaserScanMerger laserScanMerger;
+	private final MessageRing<sensor_msgs.LaserScan> mergedScanRing;
+	private final float[][] mergedScans = new float[LaserScanner.values().length][];
+	
+	// Age of the samples when their message is stamped, lasers indexed by ordinal
+	private final LatencyStats[] laserSampleAge = new LatencyStats[LaserScanner.values().length];
+	private final LatencyStats odometrySampleAge = Metrics.latency("odometry_sample_age");
+	private final AtomicLong staleMergedScans = Metrics.counter("merged_scan_stale");
+	
+	// Last generated status, generated again only on change or after the heartbeat period
+	private long statusHeartbeatNanos = 0;
+	private long lastStatusNanos = 0;
+	private boolean statusGenerated = false;
+	private int lastChargeState;
+	private boolean lastWarningFieldBreached;
+	private boolean lastSafetyFieldBreached;
+	private boolean lastMotionEnabled;
+	private boolean lastSafetyStopActive;
+	private final AtomicLong suppressedStatus = Metrics.counter("kmr_status_suppressed");
+	
+	public KMRMsgGenerator(RobotStateSampler stateSampler, SensorSource sensors, String robotName, TimeProvider timeProvider)
 	{
-		this.robot = robot;
+		this.stateSampler = stateSampler;
 		this.robotName = robotName;
 		this.time = timeProvider;
-		InetSocketAddress fdi_address = new InetSocketAddress(FDI_IP,FDI_PORT);
-		fdi = new FDIConnection(fdi_address);
+		this.sensors = sensors;
+		ingestion = new SensorIngestion(sensors);
+		int scanBeams = Math.round((ANGLE_MAX - ANGLE_MIN) / ANGLE_INCREMENT) + 1;
+		
+		odomFrameId = robotName + "_odom";
+		baseFootprintFrameId = robotName + "_base_footprint";
+		for (LaserScanner laserScanner : LaserScanner.values())
+		{
+			laserFrameIds[laserScanner.ordinal()] = robotName +"_laser_" + laserScanner.id + "_link";
+			laserSampleAge[laserScanner.ordinal()] = Metrics.latency("laser_" + laserScanner.id.toLowerCase() + "_sample_age");
+			MessageRing<sensor_msgs.LaserScan> ring = new MessageRing<sensor_msgs.LaserScan>(messageFactory, sensor_msgs.LaserScan._TYPE);
+			for (int i = 0; i < ring.size(); i++)
+			{
+				addLaserScanConstants(ring.get(i));
+				ring.get(i).getHeader().setFrameId(laserFrameIds[laserScanner.ordinal()]);
+				// scans of the usual length are copied into these ranges
+				ring.get(i).setRanges(new float[scanBeams]);
+			}
+			laserScanRings[laserScanner.ordinal()] = ring;
+		}
+		odometryRing = new MessageRing<nav_msgs.Odometry>(messageFactory, nav_msgs.Odometry._TYPE);
+		for (int i = 0; i < odometryRing.size(); i++)
+		{
+			nav_msgs.Odometry msg = odometryRing.get(i);
+			msg.getHeader().setFrameId(odomFrameId);
+			msg.setChildFrameId(baseFootprintFrameId);
+			// the base moves in the plane, so these stay 0
+			msg.getPose().getPose().getPosition().setZ(0.0);
+			msg.getPose().getPose().getOrientation().setX(0.0);
+			msg.getPose().getPose().getOrientation().setY(0.0);
+			msg.getTwist().getTwist().getLinear().setZ(0.0);
+			msg.getTwist().getTwist().getAngular().setX(0.0);
+			msg.getTwist().getTwist().getAngular().setY(0.0);
+		}
+		kmrStatusRing = new MessageRing<kmriiwa_msgs.KMRStatus>(messageFactory, kmriiwa_msgs.KMRStatus._TYPE);
+		
+		laserScanMerger = new LaserScanMerger(ANGLE_MIN, ANGLE_INCREMENT, scanBeams, RANGE_MIN, RANGE_MAX);
+		mergedScanRing = new MessageRing<sensor_msgs.LaserScan>(messageFactory, sensor_msgs.LaserScan._TYPE);
+		for (int i = 0; i < mergedScanRing.size(); i++)
+		{
+			laserScanMerger.initMessage(mergedScanRing.get(i));
+			mergedScanRing.get(i).getHeader().setFrameId(baseFootprintFrameId);
+		}
 	}
 	
 	public void subscribeToSensors(long timeout)
 	{	
-
-		fdi.connect();
-		if (fdi.isConnected())
-		{
-			long startTime = System.currentTimeMillis();
-			while(!this.fdi.getSubscription().isLaserSubscribed(LaserScanner.LASER_B1.port) && (System.currentTimeMillis() - startTime <= timeout))
+		sensors.connect(timeout);
+		ingestion.start();
+	}
+	
+	/**
+	 * Generates a LaserScan message from the latest scan read by the ingestion thread.
+	 * @return the message, or null if no new scan arrived since the last call
+	 */
+	public sensor_msgs.LaserScan getLaserScan(LaserScanner laserScanner)
+	{
+			LatestSampleSlot.Sample<float[]> sample = ingestion.getLaserSlot(laserScanner).getIfNewer(lastLaserSequence[laserScanner.ordinal()]);
+			if (sample == null)
 			{
-				this.fdi.getNewLaserScan(LaserScanner.LASER_B1.port);
+				if (!sensors.isLaserSubscribed(laserScanner))
+				{
+					Logger.warn("Not connected to laser scanner" + laserScanner.id);
+				}
+				return null;
 			}
-			while(!this.fdi.getSubscription().isLaserSubscribed(LaserScanner.LASER_B4.port) && (System.currentTimeMillis() - startTime <= timeout))
+			lastLaserSequence[laserScanner.ordinal()] = sample.sequence;
+			
+			// constants and frame id are already set on the ring messages
+			sensor_msgs.LaserScan msg = nextLaserScanMsg(laserScanner);
+			msg.getHeader().setStamp(time.getCurrentTime());
+			laserSampleAge[laserScanner.ordinal()].record(System.nanoTime() - sample.receivedNanos);
+			// the scan is copied into the message's own ranges, which are only
+			// replaced if the scan length changed, as setting them allocates
+			float[] ranges = msg.getRanges();
+			if (ranges.length != sample.value.length)
 			{
-				this.fdi.getNewLaserScan(LaserScanner.LASER_B4.port);
+				ranges = sample.value.length > 0 ? new float[sample.value.length] : EMPTY_RANGES;
+				msg.setRanges(ranges);
 			}
-			while(!this.fdi.getSubscription().isOdometrySubscribed() && (System.currentTimeMillis() - startTime <= timeout))
+			System.arraycopy(sample.value, 0, ranges, 0, ranges.length);
+			if (ranges.length == 0)
 			{
-				this.fdi.getNewOdometry();
+				Logger.warn("No laser scan data available from laser scanner: " + laserScanner.id);
+				Logger.warn("Empty LaserScan message is generated");
 			}
-		}
+			return msg;
 	}
 	
-	public sensor_msgs.LaserScan getLaserScan(LaserScanner laserScanner)
+	/**
+	 * Generates a 360° LaserScan in the base footprint frame from the latest scans
+	 * of all lasers. It is called by the lane of each laser once it published a
+	 * scan, and merges as soon as any laser has a new scan. The other lasers
+	 * contribute their latest scan, unless it is older than two scan intervals,
+	 * e.g. because the laser stopped sending scans.
+	 * @return the message, or null if no laser has a new scan since the last merge
+	 */
+	public synchronized sensor_msgs.LaserScan getMergedLaserScan()
 	{
-			sensor_msgs.LaserScan msg = messageFactory.newFromType(sensor_msgs.LaserScan._TYPE);
-			
-			addLaserScanConstants(msg);
-			msg.getHeader().setStamp(time.getCurrentTime());
-			msg.getHeader().setFrameId(robotName +"_laser_" + laserScanner.id + "_link");
-			if (fdi.getSubscription().isLaserSubscribed(laserScanner.port))
+		long now = System.nanoTime();
+		boolean newScan = false;
+		int staleScans = 0;
+		for (LaserScanner laserScanner : LASER_SCANNERS)
+		{
+			int index = laserScanner.ordinal();
+			LatestSampleSlot.Sample<float[]> sample = ingestion.getLaserSlot(laserScanner).get();
+			mergedScans[index] = null;
+			if (sample == null)
 			{
-				try 
-				{
-					LaserScan laserScan = fdi.getNewLaserScan(laserScanner.port);
-					float ranges[] = laserScan.getScannedRanges();
-					msg.setRanges(ranges);
-				}
-				catch (NullPointerException e)
+				continue;
+			}
+			if (sample.sequence > lastMergedSequence[index])
+			{
+				if (lastMergedReceivedNanos[index] != 0)
 				{
-					Logger.warn("No laser scan data available from laser scanner: " + laserScanner.id);
-					Logger.warn("Empty LaserScan message is generated");
+					scanIntervalNanos = sample.receivedNanos - lastMergedReceivedNanos[index];
 				}
+				lastMergedSequence[index] = sample.sequence;
+				lastMergedReceivedNanos[index] = sample.receivedNanos;
+				newScan = true;
 			}
-			else
+			if (scanIntervalNanos > 0 && now - sample.receivedNanos > MAX_MERGED_SCAN_AGE_INTERVALS * scanIntervalNanos)
 			{
-				Logger.warn("FDI not connected to laser scanner" + laserScanner.id);
+				staleScans++;
+				continue;
 			}
-			return msg;
+			mergedScans[index] = sample.value;
+		}
+		if (!newScan)
+		{
+			return null;
+		}
+		if (staleScans > 0)
+		{
+			staleMergedScans.addAndGet(staleScans);
+		}
+		
+		// ranges are preallocated on the ring messages and merged in place
+		sensor_msgs.LaserScan msg = mergedScanRing.next();
+		msg.getHeader().setStamp(time.getCurrentTime());
+		laserScanMerger.merge(mergedScans, msg.getRanges());
+		return msg;
 	}
 	
+	/**
+	 * Generates an Odometry message from the latest odometry read by the ingestion thread.
+	 * @return the message, or null if no new odometry arrived since the last call
+	 */
 	public nav_msgs.Odometry getBaseOdometry()
 	{
-		nav_msgs.Odometry msg = messageFactory.newFromType(nav_msgs.Odometry._TYPE);
-		
-		if (fdi.getSubscription().isOdometrySubscribed())
+		LatestSampleSlot.Sample<OdometrySample> sample = ingestion.getOdometrySlot().getIfNewer(lastOdometrySequence);
+		if (sample == null)
 		{
-			try
-			{
-				Odometry odometry = fdi.getNewOdometry();
-				// Pose with covariance msg
-				geometry_msgs.PoseWithCovariance poseWithCov = messageFactory.newFromType(geometry_msgs.PoseWithCovariance._TYPE);
-				poseWithCov.getPose().getPosition().setX(odometry.getPose().getX());
-				poseWithCov.getPose().getPosition().setY(odometry.getPose().getY());
-				poseWithCov.getPose().getPosition().setZ(0.0);
-				
-				double quatPose[] = euler_to_quaternion(0,0,odometry.getPose().getTheta());
-				poseWithCov.getPose().getOrientation().setX(quatPose[0]);
-				poseWithCov.getPose().getOrientation().setY(quatPose[1]);
-				poseWithCov.getPose().getOrientation().setZ(quatPose[2]);
-				poseWithCov.getPose().getOrientation().setW(quatPose[3]);
-				
-				// Twist with covariance msg
-				geometry_msgs.TwistWithCovariance twistWithCov = messageFactory.newFromType(geometry_msgs.TwistWithCovariance._TYPE);
-				twistWithCov.getTwist().getLinear().setX(odometry.getVelocity().getX());
-				twistWithCov.getTwist().getLinear().setY(odometry.getVelocity().getY());
-				twistWithCov.getTwist().getLinear().setZ(0.0);
-				
-				twistWithCov.getTwist().getAngular().setX(0.0);
-				twistWithCov.getTwist().getAngular().setY(0.0);
-				twistWithCov.getTwist().getAngular().setZ(odometry.getVelocity().getTheta());
-				
-				// Odometry msg
-				msg.getHeader().setStamp(time.getCurrentTime());
-				msg.getHeader().setFrameId(robotName + "_odom");
-				msg.setPose(poseWithCov);
-				msg.setTwist(twistWithCov);
-				msg.setChildFrameId(robotName + "_base_footprint");
-			}
-			catch (NullPointerException e)
+			if (!sensors.isOdometrySubscribed())
 			{
-				Logger.warn("No odometry data is available");
-				Logger.warn("Empty Odometry message is generated");
+				Logger.warn("Not connected to odometry");
 			}
+			return null;
 		}
-		else
+		lastOdometrySequence = sample.sequence;
+		
+		// frame ids are already set on the ring messages, pose and twist are filled in place
+		nav_msgs.Odometry msg = odometryRing.next();
+		
+		OdometrySample odometry = sample.value;
+		// Pose with covariance msg, the planar components that stay 0 are set on the ring messages
+		geometry_msgs.PoseWithCovariance poseWithCov = msg.getPose();
+		poseWithCov.getPose().getPosition().setX(odometry.x);
+		poseWithCov.getPose().getPosition().setY(odometry.y);
+		
+		euler_to_quaternion(0,0,odometry.theta, quaternion);
+		poseWithCov.getPose().getOrientation().setZ(quaternion[2]);
+		poseWithCov.getPose().getOrientation().setW(quaternion[3]);
+		
+		// Twist with covariance msg
+		geometry_msgs.TwistWithCovariance twistWithCov = msg.getTwist();
+		twistWithCov.getTwist().getLinear().setX(odometry.velocityX);
+		twistWithCov.getTwist().getLinear().setY(odometry.velocityY);
+		twistWithCov.getTwist().getAngular().setZ(odometry.velocityTheta);
+		
+		// Odometry msg
+		msg.getHeader().setStamp(time.getCurrentTime());
+		odometrySampleAge.record(System.nanoTime() - sample.receivedNanos);
+		
+		return msg;
+	}
+	
+	/**
+	 * Sets the frame ids and the components that stay 0 of a transform filled by getOdometryTransform.
+	 */
+	public void initOdometryTransform(geometry_msgs.TransformStamped transform)
+	{
+		transform.getHeader().setFrameId(odomFrameId);
+		transform.setChildFrameId(baseFootprintFrameId);
+		transform.getTransform().getTranslation().setZ(0.0);
+		transform.getTransform().getRotation().setX(0.0);
+		transform.getTransform().getRotation().setY(0.0);
+	}
+	
+	/**
+	 * Writes the transform of the base footprint to the odometry frame from the
+	 * latest odometry into a transform set up by initOdometryTransform, apart from
+	 * its stamp. The odometry is tracked separately from getBaseOdometry, so both
+	 * can be called from different lanes.
+	 * @return false if no new odometry arrived since the last call
+	 */
+	public boolean getOdometryTransform(geometry_msgs.TransformStamped transform)
+	{
+		LatestSampleSlot.Sample<OdometrySample> sample = ingestion.getOdometrySlot().getIfNewer(lastOdometryTransformSequence);
+		if (sample == null)
 		{
-			Logger.warn("FDI not connected to odometry");
+			return false;
 		}
+		lastOdometryTransformSequence = sample.sequence;
 		
-		return msg;
+		OdometrySample odometry = sample.value;
+		geometry_msgs.Transform pose = transform.getTransform();
+		pose.getTranslation().setX(odometry.x);
+		pose.getTranslation().setY(odometry.y);
+		geometry_msgs.Quaternion rotation = pose.getRotation();
+		rotation.setZ(Math.sin(odometry.theta / 2));
+		rotation.setW(Math.cos(odometry.theta / 2));
+		return true;
 	}
 	
+	/**
+	 * Sets the period after which an unchanged status is generated again, 0 to generate it every call.
+	 */
+	public void setStatusHeartbeat(double seconds)
+	{
+		statusHeartbeatNanos = (long) (seconds * 1e9);
+	}
+	
+	/**
+	 * Generates a KMRStatus message if the status changed since the last generated one,
+	 * or if the heartbeat period passed since then.
+	 * @return the message, or null if the status is unchanged or couldn't be read
+	 */
 	public kmriiwa_msgs.KMRStatus getKMRStatus()
 	{
-		kmriiwa_msgs.KMRStatus msg = messageFactory.newFromType(kmriiwa_msgs.KMRStatus._TYPE);
+		int chargeState;
+		boolean warningFieldBreached;
+		boolean safetyFieldBreached;
+		boolean motionEnabled;
+		boolean safetyStopActive;
 		try
 		{
-			msg.getHeader().setStamp(time.getCurrentTime());
-			msg.setChargeStatePercentage((int) robot.getMobilePlatformBatteryState().getStateOfCharge());
-			msg.setWarningFieldClear(robot.getMobilePlatformSafetyState().isWarningFieldBreached());
-			msg.setSafetyFieldClear(robot.getMobilePlatformSafetyState().isSafetyFieldBreached());
-			msg.setMotionEnabled(robot.isMotionEnabled());
-			msg.setSafetyStateEnabled(robot.getSafetyState().getSafetyStopSignal().compareTo(SafetyStopType.NOSTOP) != 0);
+			BaseStatus status = stateSampler.sampleBaseStatus().baseStatus;
+			chargeState = (int) status.batteryStateOfCharge;
+			warningFieldBreached = status.warningFieldBreached;
+			safetyFieldBreached = status.safetyFieldBreached;
+			motionEnabled = status.motionEnabled;
+			safetyStopActive = status.safetyStopActive;
 		}
 		catch (NullPointerException e)
 		{
 			Logger.warn("Couldn't retrieve KMR base status");
-			Logger.warn("Empty KMRStatus message is generated");
+			return null;
+		}
+		
+		long now = System.nanoTime();
+		boolean changed = !statusGenerated
+				|| chargeState != lastChargeState
+				|| warningFieldBreached != lastWarningFieldBreached
+				|| safetyFieldBreached != lastSafetyFieldBreached
+				|| motionEnabled != lastMotionEnabled
+				|| safetyStopActive != lastSafetyStopActive;
+		if (!changed && now - lastStatusNanos < statusHeartbeatNanos)
+		{
+			suppressedStatus.incrementAndGet();
+			return null;
 		}
+		statusGenerated = true;
+		lastStatusNanos = now;
+		lastChargeState = chargeState;
+		lastWarningFieldBreached = warningFieldBreached;
+		lastSafetyFieldBreached = safetyFieldBreached;
+		lastMotionEnabled = motionEnabled;
+		lastSafetyStopActive = safetyStopActive;
+		
+		kmriiwa_msgs.KMRStatus msg = kmrStatusRing.next();
+		msg.getHeader().setStamp(time.getCurrentTime());
+		msg.setChargeStatePercentage(chargeState);
+		msg.setWarningFieldClear(warningFieldBreached);
+		msg.setSafetyFieldClear(safetyFieldBreached);
+		msg.setMotionEnabled(motionEnabled);
+		msg.setSafetyStateEnabled(safetyStopActive);
 		return msg;
 	}
 	
@@ -194,29 +410,40 @@ public class KMRMsgGenerator {
 		msg.setRangeMax(RANGE_MAX);
 	}
 	
-	private double[] euler_to_quaternion(double roll, double pitch, double yaw)
+	@SuppressWarnings("unchecked")
+	private sensor_msgs.LaserScan nextLaserScanMsg(LaserScanner laserScanner)
+	{
+		return ((MessageRing<sensor_msgs.LaserScan>) laserScanRings[laserScanner.ordinal()]).next();
+	}
+	
+	/**
+	 * Converts euler angles to a quaternion written into quat as {qx, qy, qz, qw}
+	 */
+	public static void euler_to_quaternion(double roll, double pitch, double yaw, double[] quat)
 	{			
 		double qx = Math.sin(roll/2) * Math.cos(pitch/2) * Math.cos(yaw/2) - Math.cos(roll/2) * Math.sin(pitch/2) * Math.sin(yaw/2);
         double qy = Math.cos(roll/2) * Math.sin(pitch/2) * Math.cos(yaw/2) + Math.sin(roll/2) * Math.cos(pitch/2) * Math.sin(yaw/2);
         double qz = Math.cos(roll/2) * Math.cos(pitch/2) * Math.sin(yaw/2) - Math.sin(roll/2) * Math.sin(pitch/2) * Math.cos(yaw/2);
         double qw = Math.cos(roll/2) * Math.cos(pitch/2) * Math.cos(yaw/2) + Math.sin(roll/2) * Math.sin(pitch/2) * Math.sin(yaw/2);
         
-		return new double[]{qx,qy,qz,qw};  
+		quat[0] = qx;
+		quat[1] = qy;
+		quat[2] = qz;
+		quat[3] = qw;
+	}
+	
+	/**
+	 * @return the ingestion holding the latest sensor samples, its threads only run once subscribed
+	 */
+	public SensorIngestion getSensorIngestion()
+	{
+		return ingestion;
 	}
 	
 	public void close()
 	{
-		try
-		{
-			if (fdi.isConnected())
-			{
-				fdi.disconnect();
-			}
-		}
-		catch (Exception e)
-		{
-			Logger.error("couldn't disconnect FDI socket");
-		}
+		ingestion.stop();
+		sensors.disconnect();
 	}
 
 }
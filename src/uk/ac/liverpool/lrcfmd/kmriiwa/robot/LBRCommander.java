@@ -1,78 +1,247 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
 
-import static com.kuka.roboticsAPI.motionModel.BasicMotions.ptp;
-
-import java.util.ArrayList;
 import java.util.List;
-import java.util.ListIterator;
-
-import com.kuka.roboticsAPI.deviceModel.JointPosition;
-import com.kuka.roboticsAPI.deviceModel.LBR;
-import com.kuka.roboticsAPI.motionModel.IMotionContainer;
-import com.kuka.roboticsAPI.motionModel.PTP;
-import com.kuka.roboticsAPI.motionModel.SplineJP;
 
 import control_msgs.FollowJointTrajectoryActionGoal;
 
 import trajectory_msgs.JointTrajectoryPoint;
 import uk.ac.liverpool.lrcfmd.kmriiwa.utility.DestinationReachedListener;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
 
 public class LBRCommander {
 	
-	private LBR robot;
+	private ArmDevice robot;
 	double defaultExecVelocity = 0.15;
+	// Maximum number of points in a SplineJP motion
+	private static final int MAX_SPLINE_POINTS = 500;
+	// Blending between consecutive segments of a long trajectory, so the arm doesn't stop between them
+	private static final double SEGMENT_BLENDING_REL = 0.1;
+	
+	// Execute trajectories with the velocities derived from their timing
+	private boolean useTrajectoryTiming = false;
+	// LBR iiwa 14 R820 maximum joint velocities in rad/s
+	private static final double[] MAX_JOINT_VELOCITY = {Math.toRadians(85), Math.toRadians(85), Math.toRadians(100),
+		Math.toRadians(75), Math.toRadians(130), Math.toRadians(135), Math.toRadians(135)};
+	// Reference joint accelerations in rad/s² of the planned accelerations, nominal values for the LBR iiwa 14 R820.
+	// The actual limits depend on the controller's configuration, the relative acceleration is applied to those.
+	private static final double[] MAX_JOINT_ACCELERATION = {10, 10, 10, 10, 10, 10, 10};
+	// Lower bound of the relative velocities and accelerations derived from trajectory timing
+	private static final double MIN_RELATIVE_VALUE = 0.01;
+	
+	// Last submitted motion, motions are executed by the robot in submission order
+	private volatile ArmMotionHandle currentMotion = null;
+	// Time for the robot to accept a submitted motion
+	private final LatencyStats motionSubmit = Metrics.latency("arm_motion_submit");
 	
-	public LBRCommander(LBR robot)
+	public LBRCommander(ArmDevice robot)
 	{
 		this.robot = robot;
 	}
 	
-	public void moveToJointPosition(kmriiwa_msgs.JointPosition commandPosition, DestinationReachedListener motionListner)
+	/**
+	 * @param useTrajectoryTiming if true trajectories are executed with the relative velocities
+	 * derived from their timing, otherwise at the default constant velocity
+	 */
+	public void setTrajectoryTiming(boolean useTrajectoryTiming)
+	{
+		this.useTrajectoryTiming = useTrajectoryTiming;
+	}
+	
+	/**
+	 * @return true if trajectories are executed with the relative velocities derived from their timing
+	 */
+	public boolean isTrajectoryTiming()
+	{
+		return useTrajectoryTiming;
+	}
+	
+	/**
+	 * @return true while the last submitted motion hasn't finished
+	 */
+	public boolean isMoving()
+	{
+		ArmMotionHandle motion = currentMotion;
+		return motion != null && !motion.isFinished();
+	}
+	
+	public ArmMotionHandle getCurrentMotion()
+	{
+		return currentMotion;
+	}
+	
+	/**
+	 * Submits a motion to the given joint position without waiting for it. If the arm is
+	 * moving, the motion is executed once the previous motions have finished.
+	 * @return the handle of the submitted motion, or null if no motion was submitted
+	 */
+	public ArmMotionHandle moveToJointPosition(kmriiwa_msgs.JointPosition commandPosition, DestinationReachedListener motionListner)
 	{
 		if (commandPosition != null)
 		{
-			JointPosition jp = new JointPosition(robot.getJointCount());
-			jp.set(0, commandPosition.getA1());
-			jp.set(1, commandPosition.getA2());
-			jp.set(2, commandPosition.getA3());
-			jp.set(3, commandPosition.getA4());
-			jp.set(4, commandPosition.getA5());
-			jp.set(5, commandPosition.getA6());
-			jp.set(6, commandPosition.getA7());
-			PTP ptpMotion = ptp(jp);
-			robot.move(ptpMotion.setJointVelocityRel(defaultExecVelocity),motionListner);
+			double[] jp = new double[robot.getJointCount()];
+			jp[0] = commandPosition.getA1();
+			jp[1] = commandPosition.getA2();
+			jp[2] = commandPosition.getA3();
+			jp[3] = commandPosition.getA4();
+			jp[4] = commandPosition.getA5();
+			jp[5] = commandPosition.getA6();
+			jp[6] = commandPosition.getA7();
+			ArmMotionHandle motion = new ArmMotionHandle(null);
+			motion.addContainer(submitMotion(new double[][] {jp}, new double[] {defaultExecVelocity}, null, 0, motionListner));
+			currentMotion = motion;
+			return motion;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return why the trajectory goal can't be executed, or null if it can
+	 */
+	public static String getTrajectoryRejection(FollowJointTrajectoryActionGoal trajectoryGoal)
+	{
+		int numJoints = trajectoryGoal.getGoal().getTrajectory().getJointNames().size();
+		if (numJoints != 7)
+		{
+			return "7 joint names are required, the trajectory has " + numJoints;
+		}
+		if (trajectoryGoal.getGoal().getTrajectory().getPoints().isEmpty())
+		{
+			return "the trajectory has no points";
 		}
+		return null;
 	}
 	
-	public void followJointTrajectory(FollowJointTrajectoryActionGoal trajectoryGoal, DestinationReachedListener motionListner)
+	/**
+	 * Submits the goal's trajectory without waiting for its execution. If a segment
+	 * can't be submitted, the segments already submitted are cancelled before the
+	 * exception is thrown on.
+	 * @return the handle of the submitted motion, or null if the goal can't be executed by the arm
+	 */
+	public ArmMotionHandle followJointTrajectory(FollowJointTrajectoryActionGoal trajectoryGoal, DestinationReachedListener motionListner)
 	{
-		if (trajectoryGoal != null)
+		if (trajectoryGoal != null && getTrajectoryRejection(trajectoryGoal) == null)
 		{
-			int numJoints = trajectoryGoal.getGoal().getTrajectory().getJointNames().size();
-			if (numJoints == 7)
+			List<JointTrajectoryPoint> trajectoryPoints = trajectoryGoal.getGoal().getTrajectory().getPoints();
+			double plannedDuration = trajectoryPoints.get(trajectoryPoints.size() - 1).getTimeFromStart().totalNsecs() / 1e9;
+			motionListner.trajectoryStarted(trajectoryGoal.getGoalId().getId(), plannedDuration);
+			// Trajectories longer than the SplineJP limit are split into segments that are
+			// queued asynchronously and blended, the next segment is built while the previous one runs
+			ArmMotionHandle motion = new ArmMotionHandle(trajectoryGoal.getGoalId().getId());
+			currentMotion = motion;
+			try
 			{
-				List<JointTrajectoryPoint> trajectoryPoints = trajectoryGoal.getGoal().getTrajectory().getPoints();
-				if (trajectoryPoints.size() > 500)
-				{
-					throw new RuntimeException("Number of trajectory points exceed the SPlineJP limit of 500 ptp points");
-				}
-				ListIterator<JointTrajectoryPoint> trajectoryPointsIterator = trajectoryPoints.listIterator();
-				ArrayList<PTP> ptpList = new ArrayList<PTP>();
-				while (trajectoryPointsIterator.hasNext())
+				for (int start = 0; start < trajectoryPoints.size(); start += MAX_SPLINE_POINTS)
 				{
-					JointTrajectoryPoint trajectoryPoint = trajectoryPointsIterator.next();
-					double[] positions = trajectoryPoint.getPositions();
-					ptpList.add(ptp(new JointPosition(positions)).setJointVelocityRel(defaultExecVelocity));
-					//double[] velocities = trajectoryPoint.getVelocities();
-					//double[] accelerations = trajectoryPoint.getAccelerations();
-					//ptpList.add(ptp(new JointPosition(positions)).setJointVelocityRel(velocities).setJointAccelerationRel(accelerations));
+					int end = Math.min(start + MAX_SPLINE_POINTS, trajectoryPoints.size());
+					if (end < trajectoryPoints.size())
+					{
+						motion.addContainer(submitSegment(trajectoryPoints, start, end, SEGMENT_BLENDING_REL, null));
+					}
+					else
+					{
+						// only the last segment reports the outcome of the goal
+						motion.addContainer(submitSegment(trajectoryPoints, start, end, 0, motionListner));
+					}
 				}
-				
-				PTP[] ptpArray = new PTP[ptpList.size()];
-				ptpList.toArray(ptpArray);
-				SplineJP trajectory = new SplineJP(ptpArray);
-				robot.move(trajectory, motionListner);
 			}
+			catch (RuntimeException e)
+			{
+				// the handle isn't returned, so nothing else could cancel the segments already moving the arm
+				motion.cancel();
+				throw e;
+			}
+			return motion;
 		}
+		return null;
+	}
+	
+	private ArmMotionContainer submitSegment(List<JointTrajectoryPoint> trajectoryPoints, int start, int end,
+			double blendingRel, DestinationReachedListener motionListner)
+	{
+		double[][] positions = new double[end - start][];
+		double[] relVelocities = new double[end - start];
+		double[] relAccelerations = useTrajectoryTiming ? new double[end - start] : null;
+		for (int i = start; i < end; i++)
+		{
+			positions[i - start] = trajectoryPoints.get(i).getPositions();
+			if (useTrajectoryTiming)
+			{
+				setTimedVelocity(relVelocities, relAccelerations, trajectoryPoints, i, i - start);
+			}
+			else
+			{
+				relVelocities[i - start] = defaultExecVelocity;
+			}
+		}
+		return submitMotion(positions, relVelocities, relAccelerations, blendingRel, motionListner);
+	}
+	
+	private ArmMotionContainer submitMotion(double[][] positions, double[] relVelocities, double[] relAccelerations,
+			double blendingRel, DestinationReachedListener motionListner)
+	{
+		long submitStart = System.nanoTime();
+		ArmMotionContainer container = robot.moveAsync(positions, relVelocities, relAccelerations, blendingRel, motionListner);
+		motionSubmit.record(System.nanoTime() - submitStart);
+		return container;
+	}
+	
+	/**
+	 * Sets the relative velocity and acceleration of the motion to the point at index from the
+	 * trajectory timing. The velocity is the largest of the point's velocities and of the ones
+	 * needed to reach it from the previous point in time, relative to the joint velocity limits.
+	 * The acceleration is the larger of the velocity's factor and of the point's largest
+	 * acceleration relative to the reference joint accelerations, so that a slow trajectory
+	 * whose planner asks for quick accelerations doesn't ramp at a few percent of the default.
+	 */
+	private void setTimedVelocity(double[] relVelocities, double[] relAccelerations, List<JointTrajectoryPoint> trajectoryPoints,
+			int index, int motionIndex)
+	{
+		JointTrajectoryPoint point = trajectoryPoints.get(index);
+		double[] positions = point.getPositions();
+		double[] velocities = point.getVelocities();
+		double[] previousPositions = null;
+		double dt = 0;
+		if (index > 0)
+		{
+			JointTrajectoryPoint previousPoint = trajectoryPoints.get(index - 1);
+			previousPositions = previousPoint.getPositions();
+			dt = (point.getTimeFromStart().totalNsecs() - previousPoint.getTimeFromStart().totalNsecs()) / 1e9;
+		}
+		
+		double relVelocity = 0;
+		for (int j = 0; j < MAX_JOINT_VELOCITY.length && j < positions.length; j++)
+		{
+			double velocity = j < velocities.length ? Math.abs(velocities[j]) : 0;
+			if (dt > 0)
+			{
+				velocity = Math.max(velocity, Math.abs(positions[j] - previousPositions[j]) / dt);
+			}
+			relVelocity = Math.max(relVelocity, velocity / MAX_JOINT_VELOCITY[j]);
+		}
+		// without timing information fall back to the default velocity
+		if (relVelocity == 0)
+		{
+			relVelocity = defaultExecVelocity;
+		}
+		relVelocities[motionIndex] = clampRelative(relVelocity);
+		
+		double[] accelerations = point.getAccelerations();
+		double relAcceleration = relVelocities[motionIndex];
+		for (int j = 0; j < MAX_JOINT_ACCELERATION.length && j < accelerations.length; j++)
+		{
+			// compared so that a NaN acceleration is ignored
+			double ratio = Math.abs(accelerations[j]) / MAX_JOINT_ACCELERATION[j];
+			if (ratio > relAcceleration)
+			{
+				relAcceleration = ratio;
+			}
+		}
+		relAccelerations[motionIndex] = clampRelative(relAcceleration);
+	}
+	
+	private static double clampRelative(double value)
+	{
+		return Math.max(MIN_RELATIVE_VALUE, Math.min(1.0, value));
 	}
 }
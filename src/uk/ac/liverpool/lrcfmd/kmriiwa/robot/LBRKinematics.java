@@ -0,0 +1,65 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Kinematic chain of the LBR iiwa 14 R820, as in its URDF description.
+ * Joint i moves link i relative to link i - 1 by a fixed origin followed by a
+ * rotation about the joint's z axis, so the transform of each link to its parent
+ * only depends on its own joint position.
+ */
+public class LBRKinematics {
+
+	public static final int JOINT_COUNT = 7;
+
+	// Origin of each joint in its parent link, xyz in m and rpy in rad
+	private static final double[][] ORIGIN_XYZ = {
+		{ 0, 0, 0.1575 },
+		{ 0, 0, 0.2025 },
+		{ 0, 0.2045, 0 },
+		{ 0, 0, 0.2155 },
+		{ 0, 0.1845, 0 },
+		{ 0, 0, 0.2155 },
+		{ 0, 0.081, 0 } };
+	private static final double[][] ORIGIN_RPY = {
+		{ 0, 0, 0 },
+		{ Math.PI / 2, 0, Math.PI },
+		{ Math.PI / 2, 0, Math.PI },
+		{ Math.PI / 2, 0, 0 },
+		{ -Math.PI / 2, Math.PI, 0 },
+		{ Math.PI / 2, 0, 0 },
+		{ -Math.PI / 2, Math.PI, 0 } };
+
+	// Orientation of each joint origin as {qx, qy, qz, qw}
+	private static final double[][] ORIGIN_QUATERNION = new double[JOINT_COUNT][4];
+
+	static
+	{
+		for (int i = 0; i < JOINT_COUNT; i++)
+		{
+			KMRMsgGenerator.euler_to_quaternion(ORIGIN_RPY[i][0], ORIGIN_RPY[i][1], ORIGIN_RPY[i][2], ORIGIN_QUATERNION[i]);
+		}
+	}
+
+	/**
+	 * @return the translation of link joint + 1 to its parent link, which doesn't depend on the joint position
+	 */
+	public static double[] getLinkTranslation(int joint)
+	{
+		return ORIGIN_XYZ[joint].clone();
+	}
+
+	/**
+	 * Writes the rotation of link joint + 1 to its parent link into quat as {qx, qy, qz, qw}.
+	 * @param position joint position in rad
+	 */
+	public static void getLinkRotation(int joint, double position, double[] quat)
+	{
+		double[] origin = ORIGIN_QUATERNION[joint];
+		double s = Math.sin(position / 2);
+		double c = Math.cos(position / 2);
+		// origin rotation followed by the rotation about z
+		quat[0] = origin[0] * c + origin[1] * s;
+		quat[1] = origin[1] * c - origin[0] * s;
+		quat[2] = origin[2] * c + origin[3] * s;
+		quat[3] = origin[3] * c - origin[2] * s;
+	}
+}
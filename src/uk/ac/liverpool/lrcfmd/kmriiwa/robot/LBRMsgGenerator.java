@@ -1,23 +1,23 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-
-import com.kuka.roboticsAPI.controllerModel.sunrise.SunriseSafetyState.SafetyStopType;
-import com.kuka.roboticsAPI.deviceModel.LBR;
-import com.kuka.roboticsAPI.deviceModel.LBRE1Redundancy;
-import com.kuka.roboticsAPI.geometricModel.Frame;
-import com.kuka.roboticsAPI.geometricModel.math.Transformation;
-
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ros.message.MessageFactory;
 import org.ros.node.NodeConfiguration;
 import org.ros.time.TimeProvider;
 
 import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.MessageRing;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
 
 public class LBRMsgGenerator {
 	
-	private LBR robot;
+	private ArmDevice robot;
+	// Joint state and status of the arm, shared with the other generators of a cycle
+	private RobotStateSampler stateSampler;
 	
 	// Needed to create ROS messages
 	private NodeConfiguration nodeConf = NodeConfiguration.newPrivate();
@@ -26,34 +26,78 @@ public class LBRMsgGenerator {
 	
 	private String robotName;
 	private String[] joint_names;
+	private List<String> jointNameList;
+	
+	// Preallocated messages reused every cycle
+	private MessageRing<sensor_msgs.JointState> jointStateRing;
+	private MessageRing<kmriiwa_msgs.LBRStatus> lbrStatusRing;
+	
+	// Last generated status, generated again only on change or after the heartbeat period
+	private long statusHeartbeatNanos = 0;
+	private long lastStatusNanos = 0;
+	private boolean statusGenerated = false;
+	private boolean lastMotionEnabled;
+	private boolean lastMastered;
+	private boolean lastGmsReferenced;
+	private boolean lastPositionReferenced;
+	private boolean lastSafetyStopActive;
+	private final AtomicLong suppressedStatus = Metrics.counter("lbr_status_suppressed");
+	
+	// Batched joint telemetry, only set once started
+	private JointTelemetrySampler telemetrySampler = null;
+	private MessageRing<std_msgs.Float64MultiArray> telemetryRing = null;
+	// ROS time minus System.nanoTime(), filtered as time providers may only have ms resolution
+	private long telemetryStampOffset = 0;
+	private boolean telemetryStampOffsetSet = false;
+	private static final int STAMP_OFFSET_FILTER = 16;
+	private static final long STAMP_OFFSET_STEP_NANOS = 10000000;
 	
 	
 	/**
 	 * 
 	 * @param lbr
+	 * @param stateSampler
 	 * @param name
 	 * @param timeProvider
 	 */
-	public LBRMsgGenerator(LBR lbr, String robotName, TimeProvider timeProvider)
+	public LBRMsgGenerator(ArmDevice lbr, RobotStateSampler stateSampler, String robotName, TimeProvider timeProvider)
 	{
 		this.robot = lbr;
+		this.stateSampler = stateSampler;
 		this.robotName = robotName;
 		this.time = timeProvider;
 		
 		joint_names = new String[] { robotName + "_joint_1", robotName + "_joint_2", robotName + "_joint_3", 
 				robotName + "_joint_4", robotName + "_joint_5", robotName + "_joint_6",
 				robotName + "_joint_7" };
+		jointNameList = Arrays.asList(joint_names);
+		
+		jointStateRing = new MessageRing<sensor_msgs.JointState>(messageFactory, sensor_msgs.JointState._TYPE);
+		for (int i = 0; i < jointStateRing.size(); i++)
+		{
+			sensor_msgs.JointState msg = jointStateRing.get(i);
+			msg.setName(jointNameList);
+			msg.setPosition(new double[joint_names.length]);
+			msg.setEffort(new double[joint_names.length]);
+		}
+		lbrStatusRing = new MessageRing<kmriiwa_msgs.LBRStatus>(messageFactory, kmriiwa_msgs.LBRStatus._TYPE);
 	}
 
+	/**
+	 * Samples the joints, starting the cycle whose state the other generators reuse.
+	 */
 	public sensor_msgs.JointState getCurrentJointState()
 	{
-		sensor_msgs.JointState msg = messageFactory.newFromType(sensor_msgs.JointState._TYPE);
+		sensor_msgs.JointState msg = jointStateRing.next();
 		try
 		{
 			msg.getHeader().setStamp(time.getCurrentTime());
-			msg.setName(Arrays.asList(joint_names));
-			msg.setPosition(robot.getCurrentJointPosition().getInternalArray());
-			msg.setEffort(robot.getMeasuredTorque().getTorqueValues());
+			// fill the preallocated arrays in place
+			RobotState state = stateSampler.sampleJoints();
+			double[] position = msg.getPosition();
+			double[] effort = msg.getEffort();
+			System.arraycopy(state.jointPositions, 0, position, 0, Math.min(position.length, state.jointPositions.length));
+			System.arraycopy(state.jointTorques, 0, effort, 0, Math.min(effort.length, state.jointTorques.length));
 		}
 		catch (NullPointerException e)
 		{
@@ -63,24 +107,150 @@ public class LBRMsgGenerator {
 		return msg;
 	}
 	
-	public kmriiwa_msgs.LBRStatus getLBRStatus()
+	/**
+	 * Starts sampling joint positions and torques at a high rate, to be published
+	 * in batches through getJointTelemetry.
+	 * @param rateHz sampling rate
+	 * @param batchSize samples per message
+	 */
+	public void startJointTelemetry(double rateHz, int batchSize)
 	{
+		telemetrySampler = new JointTelemetrySampler(robot, rateHz, batchSize);
+		int stride = telemetrySampler.getStride();
+		
+		// the second dimension is labelled with the columns of a sample
+		StringBuilder columns = new StringBuilder("stamp");
+		for (String suffix : new String[] { "_position", "_effort" })
+		{
+			for (int j = 0; j < telemetrySampler.getJointCount(); j++)
+			{
+				columns.append(',').append(j < joint_names.length ? joint_names[j] : robotName + "_joint_" + (j + 1)).append(suffix);
+			}
+		}
 		
-		kmriiwa_msgs.LBRStatus msg = messageFactory.newFromType(kmriiwa_msgs.LBRStatus._TYPE);
+		telemetryRing = new MessageRing<std_msgs.Float64MultiArray>(messageFactory, std_msgs.Float64MultiArray._TYPE);
+		for (int i = 0; i < telemetryRing.size(); i++)
+		{
+			std_msgs.Float64MultiArray msg = telemetryRing.get(i);
+			List<std_msgs.MultiArrayDimension> dims = new ArrayList<std_msgs.MultiArrayDimension>();
+			dims.add(newDimension("samples", batchSize, batchSize * stride));
+			dims.add(newDimension(columns.toString(), stride, stride));
+			msg.getLayout().setDim(dims);
+			msg.setData(new double[batchSize * stride]);
+		}
+		telemetrySampler.start();
+	}
+	
+	/**
+	 * Generates a telemetry message from the oldest batch of samples, a row per
+	 * sample holding its stamp in s, the joint positions and the joint torques.
+	 * @return the message, or null if telemetry isn't started or less than a batch is pending
+	 */
+	public std_msgs.Float64MultiArray getJointTelemetry()
+	{
+		if (telemetrySampler == null)
+		{
+			return null;
+		}
+		std_msgs.Float64MultiArray msg = telemetryRing.next();
+		// samples are timed with System.nanoTime, converted to stamps once per batch with an offset
+		// smoothed enough that stamps keep increasing across batches, unless the time provider steps
+		long offset = time.getCurrentTime().totalNsecs() - System.nanoTime();
+		if (!telemetryStampOffsetSet || Math.abs(offset - telemetryStampOffset) > STAMP_OFFSET_STEP_NANOS)
+		{
+			telemetryStampOffset = offset;
+			telemetryStampOffsetSet = true;
+		}
+		else
+		{
+			telemetryStampOffset += (offset - telemetryStampOffset) / STAMP_OFFSET_FILTER;
+		}
+		if (!telemetrySampler.nextBatch(msg.getData(), telemetryStampOffset))
+		{
+			return null;
+		}
+		return msg;
+	}
+	
+	public void stopJointTelemetry()
+	{
+		if (telemetrySampler != null)
+		{
+			telemetrySampler.shutdown();
+		}
+	}
+	
+	private std_msgs.MultiArrayDimension newDimension(String label, int size, int stride)
+	{
+		std_msgs.MultiArrayDimension dim = messageFactory.newFromType(std_msgs.MultiArrayDimension._TYPE);
+		dim.setLabel(label);
+		dim.setSize(size);
+		dim.setStride(stride);
+		return dim;
+	}
+	
+	/**
+	 * Sets the period after which an unchanged status is generated again, 0 to generate it every call.
+	 */
+	public void setStatusHeartbeat(double seconds)
+	{
+		statusHeartbeatNanos = (long) (seconds * 1e9);
+	}
+	
+	/**
+	 * Generates an LBRStatus message if the status changed since the last generated one,
+	 * or if the heartbeat period passed since then.
+	 * @return the message, or null if the status is unchanged or couldn't be read
+	 */
+	public kmriiwa_msgs.LBRStatus getLBRStatus()
+	{
+		boolean motionEnabled;
+		boolean mastered;
+		boolean gmsReferenced;
+		boolean positionReferenced;
+		boolean safetyStopActive;
 		try
 		{
-			msg.getHeader().setStamp(time.getCurrentTime());
-			msg.setMotionEnabled(robot.isMotionEnabled());
-			msg.setAxesMastered(robot.isMastered());
-			msg.setAxesGmsReferenced(robot.getSafetyState().areAllAxesGMSReferenced());
-			msg.setAxesPositionReferenced(robot.getSafetyState().areAllAxesPositionReferenced());
-			msg.setSafetyStateEnabled(robot.getSafetyState().getSafetyStopSignal().compareTo(SafetyStopType.NOSTOP) != 0);
+			ArmStatus status = stateSampler.sampleArmStatus().armStatus;
+			motionEnabled = status.motionEnabled;
+			mastered = status.mastered;
+			gmsReferenced = status.gmsReferenced;
+			positionReferenced = status.positionReferenced;
+			safetyStopActive = status.safetyStopActive;
 		}
 		catch (NullPointerException e)
 		{
 			Logger.warn("Couldn't retrieve LBR arm status");
-			Logger.warn("Empty LBRStatus message is generated");
+			return null;
 		}
+		
+		long now = System.nanoTime();
+		boolean changed = !statusGenerated
+				|| motionEnabled != lastMotionEnabled
+				|| mastered != lastMastered
+				|| gmsReferenced != lastGmsReferenced
+				|| positionReferenced != lastPositionReferenced
+				|| safetyStopActive != lastSafetyStopActive;
+		if (!changed && now - lastStatusNanos < statusHeartbeatNanos)
+		{
+			suppressedStatus.incrementAndGet();
+			return null;
+		}
+		statusGenerated = true;
+		lastStatusNanos = now;
+		lastMotionEnabled = motionEnabled;
+		lastMastered = mastered;
+		lastGmsReferenced = gmsReferenced;
+		lastPositionReferenced = positionReferenced;
+		lastSafetyStopActive = safetyStopActive;
+		
+		kmriiwa_msgs.LBRStatus msg = lbrStatusRing.next();
+		msg.getHeader().setStamp(time.getCurrentTime());
+		msg.setMotionEnabled(motionEnabled);
+		msg.setAxesMastered(mastered);
+		msg.setAxesGmsReferenced(gmsReferenced);
+		msg.setAxesPositionReferenced(positionReferenced);
+		msg.setSafetyStateEnabled(safetyStopActive);
 		return msg;
 	}
 }
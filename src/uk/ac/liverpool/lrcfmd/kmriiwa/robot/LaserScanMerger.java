@@ -0,0 +1,126 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+
+/**
+ * Merges the scans of the base's laser scanners into one 360° scan around
+ * the base footprint. The scanners have a fixed geometry, so the direction
+ * of every beam in the base frame is computed once into sin/cos tables and
+ * merging a scan only takes a multiply-add, a square root and an atan2 per beam.
+ */
+public class LaserScanMerger {
+
+	// values() returns a new array on every call
+	private static final LaserScanner[] LASER_SCANNERS = LaserScanner.values();
+
+	private final int scanBeams;
+	private final float rangeMin;
+	private final float rangeMax;
+
+	// Direction of each beam of each scanner in the base frame, scanners indexed by ordinal
+	private final float[][] cosTable = new float[LaserScanner.values().length][];
+	private final float[][] sinTable = new float[LaserScanner.values().length][];
+
+	// Geometry of the merged scan
+	private final int mergedBeams;
+	private final float mergedAngleMin;
+	private final float mergedAngleIncrement;
+	private final float mergedRangeMax;
+
+	/**
+	 * @param angleMin angle of the first beam of a scan in the scanner frame
+	 * @param angleIncrement angle between beams of a scan, also used for the merged scan
+	 * @param scanBeams number of beams of a scan
+	 * @param rangeMin readings below it are discarded
+	 * @param rangeMax readings above it are discarded
+	 */
+	public LaserScanMerger(float angleMin, float angleIncrement, int scanBeams, float rangeMin, float rangeMax)
+	{
+		this.scanBeams = scanBeams;
+		this.rangeMin = rangeMin;
+		this.rangeMax = rangeMax;
+
+		double farthestMount = 0;
+		for (LaserScanner laserScanner : LaserScanner.values())
+		{
+			float[] cos = new float[scanBeams];
+			float[] sin = new float[scanBeams];
+			for (int i = 0; i < scanBeams; i++)
+			{
+				double angle = laserScanner.yaw + angleMin + i * angleIncrement;
+				cos[i] = (float) Math.cos(angle);
+				sin[i] = (float) Math.sin(angle);
+			}
+			cosTable[laserScanner.ordinal()] = cos;
+			sinTable[laserScanner.ordinal()] = sin;
+			farthestMount = Math.max(farthestMount, Math.hypot(laserScanner.x, laserScanner.y));
+		}
+
+		mergedBeams = (int) Math.round(2 * Math.PI / angleIncrement);
+		mergedAngleIncrement = (float) (2 * Math.PI / mergedBeams);
+		mergedAngleMin = (float) -Math.PI;
+		mergedRangeMax = (float) (rangeMax + farthestMount);
+	}
+
+	/**
+	 * Sets the constant fields of a merged scan message and preallocates its ranges.
+	 */
+	public void initMessage(sensor_msgs.LaserScan msg)
+	{
+		msg.setAngleMin(mergedAngleMin);
+		msg.setAngleMax(mergedAngleMin + (mergedBeams - 1) * mergedAngleIncrement);
+		msg.setAngleIncrement(mergedAngleIncrement);
+		msg.setRangeMin(0);
+		msg.setRangeMax(mergedRangeMax);
+		msg.setRanges(new float[mergedBeams]);
+	}
+
+	/**
+	 * Merges the scans into ranges, keeping the closest reading of each merged beam.
+	 * Beams without any reading are set to infinity.
+	 * @param scans latest scan of each scanner indexed by ordinal, null if the scanner has none
+	 * @param ranges ranges of a message initialised by initMessage
+	 */
+	public void merge(float[][] scans, float[] ranges)
+	{
+		for (int i = 0; i < ranges.length; i++)
+		{
+			ranges[i] = Float.POSITIVE_INFINITY;
+		}
+		float binsPerRadian = 1 / mergedAngleIncrement;
+		for (LaserScanner laserScanner : LASER_SCANNERS)
+		{
+			float[] scan = scans[laserScanner.ordinal()];
+			if (scan == null)
+			{
+				continue;
+			}
+			float[] cos = cosTable[laserScanner.ordinal()];
+			float[] sin = sinTable[laserScanner.ordinal()];
+			float mountX = (float) laserScanner.x;
+			float mountY = (float) laserScanner.y;
+			int beams = Math.min(scan.length, scanBeams);
+			for (int i = 0; i < beams; i++)
+			{
+				float range = scan[i];
+				// also discards NaN readings
+				if (!(range >= rangeMin && range <= rangeMax))
+				{
+					continue;
+				}
+				float x = mountX + range * cos[i];
+				float y = mountY + range * sin[i];
+				int bin = (int) ((Math.atan2(y, x) - mergedAngleMin) * binsPerRadian + 0.5f);
+				if (bin >= mergedBeams)
+				{
+					bin -= mergedBeams;
+				}
+				float distance = (float) Math.sqrt(x * x + y * y);
+				if (distance < ranges[bin])
+				{
+					ranges[bin] = distance;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * Pose and velocity of the base read from a SensorSource, in the odometry frame.
+ */
+public class OdometrySample {
+
+	public final double x;
+	public final double y;
+	public final double theta;
+	public final double velocityX;
+	public final double velocityY;
+	public final double velocityTheta;
+
+	public OdometrySample(double x, double y, double theta, double velocityX, double velocityY, double velocityTheta)
+	{
+		this.x = x;
+		this.y = y;
+		this.theta = theta;
+		this.velocityX = velocityX;
+		this.velocityY = velocityY;
+		this.velocityTheta = velocityTheta;
+	}
+}
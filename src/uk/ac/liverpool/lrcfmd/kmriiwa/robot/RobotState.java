@@ -0,0 +1,37 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+/**
+ * State of the arm and the base at one cycle, in primitive fields so it can be
+ * refilled every cycle without garbage. Each part keeps the System.nanoTime()
+ * at which it was sampled, 0 until it is.
+ */
+public class RobotState {
+
+	// Joint positions in rad and measured torques in Nm
+	public final double[] jointPositions;
+	public final double[] jointTorques;
+	public long jointsNanos = 0;
+
+	public final ArmStatus armStatus = new ArmStatus();
+	public long armStatusNanos = 0;
+
+	public final BaseStatus baseStatus = new BaseStatus();
+	public long baseStatusNanos = 0;
+
+	public RobotState(int jointCount)
+	{
+		jointPositions = new double[jointCount];
+		jointTorques = new double[jointCount];
+	}
+
+	public void copyFrom(RobotState other)
+	{
+		System.arraycopy(other.jointPositions, 0, jointPositions, 0, jointPositions.length);
+		System.arraycopy(other.jointTorques, 0, jointTorques, 0, jointTorques.length);
+		jointsNanos = other.jointsNanos;
+		armStatus.copyFrom(other.armStatus);
+		armStatusNanos = other.armStatusNanos;
+		baseStatus.copyFrom(other.baseStatus);
+		baseStatusNanos = other.baseStatusNanos;
+	}
+}
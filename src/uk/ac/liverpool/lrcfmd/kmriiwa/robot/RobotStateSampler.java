@@ -0,0 +1,158 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatencyStats;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Metrics;
+
+/**
+ * Samples the state of the arm and the base for the message generators, so
+ * that the controller is read once per cycle and every message of a cycle is
+ * built from the same instant. The joint state lane starts a cycle by sampling
+ * the joints, which the other generators reuse until a cycle has passed. Each
+ * status is sampled at once by its own lane, with one read of the safety state.
+ *
+ * A sample is written into the next state of a ring and published as the
+ * current state when complete, so a state returned to a generator doesn't
+ * change while its message is built, as long as that takes less than the
+ * ring's depth in samples. Parts are sampled under their own lock, so a slow
+ * status read doesn't delay the joints.
+ */
+public class RobotStateSampler {
+
+	private static final int RING_SIZE = 16;
+
+	private final ArmDevice arm;
+	private final BaseDevice base;
+
+	private final RobotState[] ring;
+	private int next = 0;
+	private volatile RobotState current;
+	private volatile long cycleNanos = 0;
+
+	// Buffers of the part being sampled, guarded by the part's lock
+	private final Object jointsLock = new Object();
+	private final Object armStatusLock = new Object();
+	private final Object baseStatusLock = new Object();
+	private final double[] jointPositions;
+	private final double[] jointTorques;
+	private final ArmStatus armStatus = new ArmStatus();
+	private final BaseStatus baseStatus = new BaseStatus();
+
+	// Time to read the joint state from the arm, and joint states reused within a cycle
+	private final LatencyStats jointStateAcquisition = Metrics.latency("joint_state_acquisition");
+	private final AtomicLong sharedJointStates = Metrics.counter("joint_state_shared");
+
+	public RobotStateSampler(ArmDevice arm, BaseDevice base)
+	{
+		this.arm = arm;
+		this.base = base;
+		int jointCount = arm.getJointCount();
+		jointPositions = new double[jointCount];
+		jointTorques = new double[jointCount];
+		ring = new RobotState[RING_SIZE];
+		for (int i = 0; i < RING_SIZE; i++)
+		{
+			ring[i] = new RobotState(jointCount);
+		}
+		current = ring[RING_SIZE - 1];
+	}
+
+	public int getJointCount()
+	{
+		return jointPositions.length;
+	}
+
+	/**
+	 * Sets the rate of the cycles, within which the sampled joints are reused.
+	 */
+	public void setCycleRate(double rateHz)
+	{
+		cycleNanos = Math.round(1e9 / rateHz);
+	}
+
+	/**
+	 * Samples the joint positions and torques, starting a new cycle.
+	 */
+	public RobotState sampleJoints()
+	{
+		return sampleJoints(0);
+	}
+
+	/**
+	 * @return the current state, with its joints sampled again if they are older than a cycle
+	 */
+	public RobotState getJoints()
+	{
+		return sampleJoints(cycleNanos);
+	}
+
+	private RobotState sampleJoints(long maxAgeNanos)
+	{
+		synchronized (jointsLock)
+		{
+			RobotState latest = current;
+			long start = System.nanoTime();
+			if (latest.jointsNanos != 0 && start - latest.jointsNanos < maxAgeNanos)
+			{
+				sharedJointStates.incrementAndGet();
+				return latest;
+			}
+			arm.getJointPositions(jointPositions);
+			arm.getJointTorques(jointTorques);
+			jointStateAcquisition.record(System.nanoTime() - start);
+			synchronized (this)
+			{
+				RobotState state = nextState();
+				System.arraycopy(jointPositions, 0, state.jointPositions, 0, jointPositions.length);
+				System.arraycopy(jointTorques, 0, state.jointTorques, 0, jointTorques.length);
+				state.jointsNanos = start;
+				current = state;
+				return state;
+			}
+		}
+	}
+
+	public RobotState sampleArmStatus()
+	{
+		synchronized (armStatusLock)
+		{
+			long start = System.nanoTime();
+			arm.getStatus(armStatus);
+			synchronized (this)
+			{
+				RobotState state = nextState();
+				state.armStatus.copyFrom(armStatus);
+				state.armStatusNanos = start;
+				current = state;
+				return state;
+			}
+		}
+	}
+
+	public RobotState sampleBaseStatus()
+	{
+		synchronized (baseStatusLock)
+		{
+			long start = System.nanoTime();
+			base.getStatus(baseStatus);
+			synchronized (this)
+			{
+				RobotState state = nextState();
+				state.baseStatus.copyFrom(baseStatus);
+				state.baseStatusNanos = start;
+				current = state;
+				return state;
+			}
+		}
+	}
+
+	// the next state of the ring, holding a copy of the current state
+	private RobotState nextState()
+	{
+		RobotState state = ring[next];
+		next = (next + 1) % RING_SIZE;
+		state.copyFrom(current);
+		return state;
+	}
+}
@@ -0,0 +1,170 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatestSampleSlot;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+
+/**
+ * Reads the sensor streams (both laser scanners and odometry) on one thread
+ * per stream and stores the newest sample of each in a lock-free slot, so
+ * publishers never wait on a sensor round trip, e.g. over FDI.
+ */
+public class SensorIngestion {
+
+	// Pause used when the source is not subscribed or returned no new sample
+	private static final long IDLE_SLEEP_MS = 2;
+
+	private SensorSource source;
+	private final EnumMap<LaserScanner, LatestSampleSlot<float[]>> laserSlots =
+			new EnumMap<LaserScanner, LatestSampleSlot<float[]>>(LaserScanner.class);
+	private final LatestSampleSlot<OdometrySample> odometrySlot = new LatestSampleSlot<OdometrySample>();
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private volatile boolean running = false;
+
+	public SensorIngestion(SensorSource source)
+	{
+		this.source = source;
+		for (LaserScanner laserScanner : LaserScanner.values())
+		{
+			laserSlots.put(laserScanner, new LatestSampleSlot<float[]>());
+		}
+	}
+
+	public synchronized void start()
+	{
+		if (running)
+		{
+			return;
+		}
+		running = true;
+		for (final LaserScanner laserScanner : LaserScanner.values())
+		{
+			startThread("sensor-" + laserScanner.name(), new Runnable() {
+				@Override
+				public void run()
+				{
+					ingestLaserScans(laserScanner);
+				}
+			});
+		}
+		startThread("sensor-odometry", new Runnable() {
+			@Override
+			public void run()
+			{
+				ingestOdometry();
+			}
+		});
+	}
+
+	private void startThread(String name, Runnable task)
+	{
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		threads.add(thread);
+		thread.start();
+	}
+
+	private void ingestLaserScans(LaserScanner laserScanner)
+	{
+		LatestSampleSlot<float[]> slot = laserSlots.get(laserScanner);
+		while (running)
+		{
+			try
+			{
+				float[] ranges = source.getNewLaserScan(laserScanner);
+				if (ranges != null)
+				{
+					slot.put(ranges);
+				}
+				else
+				{
+					Thread.sleep(IDLE_SLEEP_MS);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (Exception e)
+			{
+				Logger.warn("Laser scanner " + laserScanner.id + " ingestion error: " + e.toString());
+				sleepQuietly();
+			}
+		}
+	}
+
+	private void ingestOdometry()
+	{
+		while (running)
+		{
+			try
+			{
+				OdometrySample odometry = source.getNewOdometry();
+				if (odometry != null)
+				{
+					odometrySlot.put(odometry);
+				}
+				else
+				{
+					Thread.sleep(IDLE_SLEEP_MS);
+				}
+			}
+			catch (InterruptedException e)
+			{
+				break;
+			}
+			catch (Exception e)
+			{
+				Logger.warn("Odometry ingestion error: " + e.toString());
+				sleepQuietly();
+			}
+		}
+	}
+
+	private void sleepQuietly()
+	{
+		try
+		{
+			Thread.sleep(100);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public LatestSampleSlot<float[]> getLaserSlot(LaserScanner laserScanner)
+	{
+		return laserSlots.get(laserScanner);
+	}
+
+	public LatestSampleSlot<OdometrySample> getOdometrySlot()
+	{
+		return odometrySlot;
+	}
+
+	public synchronized void stop()
+	{
+		running = false;
+		for (Thread thread : threads)
+		{
+			thread.interrupt();
+		}
+		for (Thread thread : threads)
+		{
+			try
+			{
+				thread.join(1000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+		threads.clear();
+	}
+}
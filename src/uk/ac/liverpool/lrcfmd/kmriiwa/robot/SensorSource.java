@@ -0,0 +1,33 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+
+/**
+ * Source of the base's laser scans and odometry. Implemented on the robot
+ * controller over FDI by FDISensorSource and off the controller by a simulated source.
+ * Each stream is polled by its own thread, so different streams may be read concurrently.
+ */
+public interface SensorSource {
+
+	/**
+	 * Connects to the sensors and waits until their streams are subscribed.
+	 * @param timeout longest wait in ms
+	 */
+	void connect(long timeout);
+
+	boolean isLaserSubscribed(LaserScanner laserScanner);
+
+	boolean isOdometrySubscribed();
+
+	/**
+	 * @return the ranges of a scan newer than the last one returned, or null if there is none
+	 */
+	float[] getNewLaserScan(LaserScanner laserScanner);
+
+	/**
+	 * @return odometry newer than the last one returned, or null if there is none
+	 */
+	OdometrySample getNewOdometry();
+
+	void disconnect();
+}
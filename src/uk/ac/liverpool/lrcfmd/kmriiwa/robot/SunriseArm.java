@@ -0,0 +1,196 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import static com.kuka.roboticsAPI.motionModel.BasicMotions.ptp;
+
+import com.kuka.roboticsAPI.controllerModel.sunrise.ISafetyState;
+import com.kuka.roboticsAPI.controllerModel.sunrise.SunriseSafetyState.SafetyStopType;
+import com.kuka.roboticsAPI.deviceModel.JointPosition;
+import com.kuka.roboticsAPI.deviceModel.LBR;
+import com.kuka.roboticsAPI.executionModel.ExecutionState;
+import com.kuka.roboticsAPI.executionModel.IExecutionContainer;
+import com.kuka.roboticsAPI.motionModel.IMotion;
+import com.kuka.roboticsAPI.motionModel.IMotionContainer;
+import com.kuka.roboticsAPI.motionModel.IMotionContainerListener;
+import com.kuka.roboticsAPI.motionModel.PTP;
+import com.kuka.roboticsAPI.motionModel.SplineJP;
+
+/**
+ * ArmDevice backed by the Sunrise LBR. A single point is executed as a PTP
+ * motion and several points as a SplineJP.
+ */
+public class SunriseArm implements ArmDevice {
+
+	private LBR robot;
+
+	// Container of a Sunrise motion
+	private static class SunriseMotionContainer implements ArmMotionContainer
+	{
+		private final IMotionContainer container;
+
+		private SunriseMotionContainer(IMotionContainer container)
+		{
+			this.container = container;
+		}
+
+		@Override
+		public boolean isFinished()
+		{
+			return container.isFinished();
+		}
+
+		@Override
+		public void cancel()
+		{
+			container.cancel();
+		}
+
+		@Override
+		public boolean hasError()
+		{
+			return container.hasError();
+		}
+
+		@Override
+		public String getErrorMessage()
+		{
+			return container.getErrorMessage();
+		}
+	}
+
+	public SunriseArm(LBR robot)
+	{
+		this.robot = robot;
+	}
+
+	@Override
+	public int getJointCount()
+	{
+		return robot.getJointCount();
+	}
+
+	@Override
+	public void getJointPositions(double[] positions)
+	{
+		double[] current = robot.getCurrentJointPosition().getInternalArray();
+		System.arraycopy(current, 0, positions, 0, Math.min(current.length, positions.length));
+	}
+
+	@Override
+	public void getJointTorques(double[] torques)
+	{
+		double[] measured = robot.getMeasuredTorque().getTorqueValues();
+		System.arraycopy(measured, 0, torques, 0, Math.min(measured.length, torques.length));
+	}
+
+	@Override
+	public boolean isMotionEnabled()
+	{
+		return robot.isMotionEnabled();
+	}
+
+	@Override
+	public boolean isMastered()
+	{
+		return robot.isMastered();
+	}
+
+	@Override
+	public boolean areAllAxesGmsReferenced()
+	{
+		return robot.getSafetyState().areAllAxesGMSReferenced();
+	}
+
+	@Override
+	public boolean areAllAxesPositionReferenced()
+	{
+		return robot.getSafetyState().areAllAxesPositionReferenced();
+	}
+
+	@Override
+	public boolean isSafetyStopActive()
+	{
+		return robot.getSafetyState().getSafetyStopSignal().compareTo(SafetyStopType.NOSTOP) != 0;
+	}
+
+	@Override
+	public void getStatus(ArmStatus status)
+	{
+		ISafetyState safetyState = robot.getSafetyState();
+		status.motionEnabled = robot.isMotionEnabled();
+		status.mastered = robot.isMastered();
+		status.gmsReferenced = safetyState.areAllAxesGMSReferenced();
+		status.positionReferenced = safetyState.areAllAxesPositionReferenced();
+		status.safetyStopActive = safetyState.getSafetyStopSignal().compareTo(SafetyStopType.NOSTOP) != 0;
+	}
+
+	@Override
+	public ArmMotionContainer moveAsync(double[][] positions, double[] relVelocities, double[] relAccelerations,
+			double blendingRel, final ArmMotionListener listener)
+	{
+		IMotion motion;
+		if (positions.length == 1)
+		{
+			PTP ptpMotion = newPtp(positions, relVelocities, relAccelerations, 0);
+			if (blendingRel > 0)
+			{
+				ptpMotion.setBlendingRel(blendingRel);
+			}
+			motion = ptpMotion;
+		}
+		else
+		{
+			PTP[] ptpArray = new PTP[positions.length];
+			for (int i = 0; i < positions.length; i++)
+			{
+				ptpArray[i] = newPtp(positions, relVelocities, relAccelerations, i);
+			}
+			SplineJP spline = new SplineJP(ptpArray);
+			if (blendingRel > 0)
+			{
+				spline.setBlendingRel(blendingRel);
+			}
+			motion = spline;
+		}
+
+		if (listener == null)
+		{
+			return new SunriseMotionContainer(robot.moveAsync(motion));
+		}
+		return new SunriseMotionContainer(robot.moveAsync(motion, new IMotionContainerListener() {
+			@Override
+			public void onStateChanged(IExecutionContainer container, ExecutionState state)
+			{
+				// not used
+			}
+
+			@Override
+			public void containerFinished(IMotionContainer container)
+			{
+				listener.containerFinished(new SunriseMotionContainer(container));
+			}
+
+			@Override
+			public void motionFinished(IMotion motion)
+			{
+				// not used
+			}
+
+			@Override
+			public void motionStarted(IMotion motion)
+			{
+				// not used
+			}
+		}));
+	}
+
+	private static PTP newPtp(double[][] positions, double[] relVelocities, double[] relAccelerations, int index)
+	{
+		PTP ptpMotion = ptp(new JointPosition(positions[index]));
+		ptpMotion.setJointVelocityRel(relVelocities[index]);
+		if (relAccelerations != null)
+		{
+			ptpMotion.setJointAccelerationRel(relAccelerations[index]);
+		}
+		return ptpMotion;
+	}
+}
@@ -0,0 +1,71 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import com.kuka.roboticsAPI.controllerModel.sunrise.SunriseSafetyState.SafetyStopType;
+import com.kuka.roboticsAPI.deviceModel.kmp.IMobilePlatformSafetyState;
+import com.kuka.roboticsAPI.deviceModel.kmp.KmpOmniMove;
+
+/**
+ * BaseDevice backed by the Sunrise KmpOmniMove.
+ */
+public class SunriseBase implements BaseDevice {
+
+	private KmpOmniMove robot;
+
+	public SunriseBase(KmpOmniMove robot)
+	{
+		this.robot = robot;
+	}
+
+	@Override
+	public boolean isMotionEnabled()
+	{
+		return robot.isMotionEnabled();
+	}
+
+	@Override
+	public boolean isReadyToMove()
+	{
+		return robot.isReadyToMove();
+	}
+
+	@Override
+	public void jog(double[] velocity)
+	{
+		robot.jog(velocity);
+	}
+
+	@Override
+	public double getBatteryStateOfCharge()
+	{
+		return robot.getMobilePlatformBatteryState().getStateOfCharge();
+	}
+
+	@Override
+	public boolean isWarningFieldBreached()
+	{
+		return robot.getMobilePlatformSafetyState().isWarningFieldBreached();
+	}
+
+	@Override
+	public boolean isSafetyFieldBreached()
+	{
+		return robot.getMobilePlatformSafetyState().isSafetyFieldBreached();
+	}
+
+	@Override
+	public boolean isSafetyStopActive()
+	{
+		return robot.getSafetyState().getSafetyStopSignal().compareTo(SafetyStopType.NOSTOP) != 0;
+	}
+
+	@Override
+	public void getStatus(BaseStatus status)
+	{
+		IMobilePlatformSafetyState platformSafetyState = robot.getMobilePlatformSafetyState();
+		status.batteryStateOfCharge = robot.getMobilePlatformBatteryState().getStateOfCharge();
+		status.warningFieldBreached = platformSafetyState.isWarningFieldBreached();
+		status.safetyFieldBreached = platformSafetyState.isSafetyFieldBreached();
+		status.motionEnabled = robot.isMotionEnabled();
+		status.safetyStopActive = robot.getSafetyState().getSafetyStopSignal().compareTo(SafetyStopType.NOSTOP) != 0;
+	}
+}
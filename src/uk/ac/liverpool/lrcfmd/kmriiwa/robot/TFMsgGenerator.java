@@ -0,0 +1,134 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ros.message.MessageFactory;
+import org.ros.message.Time;
+import org.ros.node.NodeConfiguration;
+import org.ros.time.TimeProvider;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.MessageRing;
+
+/**
+ * Generates the transforms of a cycle as a single TFMessage: the link frames
+ * of the arm from its joint positions and, when a new odometry arrived, the
+ * base footprint in the odometry frame. The transforms of every ring message
+ * are preallocated with their frame ids and fixed translations, so only the
+ * stamps and rotations are set per cycle.
+ */
+public class TFMsgGenerator {
+
+	private RobotStateSampler stateSampler;
+	private KMRMsgGenerator kmrMsgGenerator;
+	private TimeProvider time;
+
+	// Needed to create ROS messages
+	private NodeConfiguration nodeConf = NodeConfiguration.newPrivate();
+	private MessageFactory messageFactory = nodeConf.getTopicMessageFactory();
+
+	// Transform lists of each ring message, with and without the odometry transform, indexed like the ring
+	private final MessageRing<tf2_msgs.TFMessage> tfRing;
+	private final List<List<geometry_msgs.TransformStamped>> armLists = new ArrayList<List<geometry_msgs.TransformStamped>>();
+	private final List<List<geometry_msgs.TransformStamped>> allLists = new ArrayList<List<geometry_msgs.TransformStamped>>();
+	// Headers and rotations of the link transforms, kept as message getters go through a proxy
+	private final std_msgs.Header[][] linkHeaders;
+	private final geometry_msgs.Quaternion[][] linkRotations;
+	// Joint positions the rotations were last set from, rosjava boxes every value set on a message
+	private final double[][] linkPositions;
+	private int next = 0;
+
+	private final int linkCount;
+	private final double[] quaternion = new double[4];
+
+	/**
+	 * @param armTransforms whether the link frames of the arm are generated, otherwise only odometry is
+	 */
+	public TFMsgGenerator(RobotStateSampler stateSampler, KMRMsgGenerator kmrMsgGenerator, String robotName, TimeProvider timeProvider,
+			boolean armTransforms)
+	{
+		this.stateSampler = stateSampler;
+		this.kmrMsgGenerator = kmrMsgGenerator;
+		this.time = timeProvider;
+
+		linkCount = armTransforms ? Math.min(stateSampler.getJointCount(), LBRKinematics.JOINT_COUNT) : 0;
+
+		tfRing = new MessageRing<tf2_msgs.TFMessage>(messageFactory, tf2_msgs.TFMessage._TYPE);
+		linkHeaders = new std_msgs.Header[tfRing.size()][linkCount];
+		linkRotations = new geometry_msgs.Quaternion[tfRing.size()][linkCount];
+		linkPositions = new double[tfRing.size()][linkCount];
+		for (int i = 0; i < tfRing.size(); i++)
+		{
+			List<geometry_msgs.TransformStamped> armList = new ArrayList<geometry_msgs.TransformStamped>(linkCount);
+			for (int joint = 0; joint < linkCount; joint++)
+			{
+				geometry_msgs.TransformStamped transform = messageFactory.newFromType(geometry_msgs.TransformStamped._TYPE);
+				transform.getHeader().setFrameId(robotName + "_link_" + joint);
+				transform.setChildFrameId(robotName + "_link_" + (joint + 1));
+				double[] translation = LBRKinematics.getLinkTranslation(joint);
+				transform.getTransform().getTranslation().setX(translation[0]);
+				transform.getTransform().getTranslation().setY(translation[1]);
+				transform.getTransform().getTranslation().setZ(translation[2]);
+				linkHeaders[i][joint] = transform.getHeader();
+				linkRotations[i][joint] = transform.getTransform().getRotation();
+				linkPositions[i][joint] = Double.NaN;
+				armList.add(transform);
+			}
+			List<geometry_msgs.TransformStamped> allList = new ArrayList<geometry_msgs.TransformStamped>(armList);
+			geometry_msgs.TransformStamped odometryTransform = messageFactory.newFromType(geometry_msgs.TransformStamped._TYPE);
+			kmrMsgGenerator.initOdometryTransform(odometryTransform);
+			allList.add(odometryTransform);
+			armLists.add(armList);
+			allLists.add(allList);
+		}
+	}
+
+	/**
+	 * @return the transforms of this cycle, or null if there are none, i.e. the arm
+	 * transforms are disabled and no new odometry arrived since the last call
+	 */
+	public tf2_msgs.TFMessage getTransforms()
+	{
+		List<geometry_msgs.TransformStamped> allList = allLists.get(next);
+		boolean odometry = kmrMsgGenerator.getOdometryTransform(allList.get(linkCount));
+		if (!odometry && linkCount == 0)
+		{
+			return null;
+		}
+
+		tf2_msgs.TFMessage msg = tfRing.get(next);
+		List<geometry_msgs.TransformStamped> transforms = odometry ? allList : armLists.get(next);
+		std_msgs.Header[] headers = linkHeaders[next];
+		geometry_msgs.Quaternion[] rotations = linkRotations[next];
+		double[] positions = linkPositions[next];
+		next = (next + 1) % tfRing.size();
+
+		Time stamp = time.getCurrentTime();
+		if (linkCount > 0)
+		{
+			// the joints sampled for this cycle's joint state, unless they are older than a cycle
+			double[] jointPositions = stateSampler.getJoints().jointPositions;
+			for (int joint = 0; joint < linkCount; joint++)
+			{
+				headers[joint].setStamp(stamp);
+				// the rotation is only set again if the joint moved since this message was last used
+				if (jointPositions[joint] != positions[joint])
+				{
+					positions[joint] = jointPositions[joint];
+					LBRKinematics.getLinkRotation(joint, jointPositions[joint], quaternion);
+					geometry_msgs.Quaternion rotation = rotations[joint];
+					rotation.setX(quaternion[0]);
+					rotation.setY(quaternion[1]);
+					rotation.setZ(quaternion[2]);
+					rotation.setW(quaternion[3]);
+				}
+			}
+		}
+		if (odometry)
+		{
+			transforms.get(linkCount).getHeader().setStamp(stamp);
+		}
+		msg.setTransforms(transforms);
+		return msg;
+	}
+}
@@ -0,0 +1,65 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.serialization;
+
+import java.util.List;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Template serializer of sensor_msgs/JointState, the frame id and joint names
+ * are constant and only positions, velocities and efforts are encoded per message.
+ */
+public class JointStateSerializer extends TemplateSerializer<sensor_msgs.JointState> {
+
+	private String frameId;
+	private String[] names = new String[0];
+
+	@Override
+	protected std_msgs.Header getHeader(sensor_msgs.JointState msg)
+	{
+		return msg.getHeader();
+	}
+
+	@Override
+	protected boolean matchesTemplate(sensor_msgs.JointState msg)
+	{
+		if (!sameString(frameId, msg.getHeader().getFrameId()))
+		{
+			return false;
+		}
+		List<String> msgNames = msg.getName();
+		if (msgNames.size() != names.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < names.length; i++)
+		{
+			if (!sameString(names[i], msgNames.get(i)))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	protected void writeTemplate(sensor_msgs.JointState msg, ChannelBuffer buffer)
+	{
+		frameId = msg.getHeader().getFrameId();
+		names = msg.getName().toArray(new String[0]);
+
+		writeString(frameId, buffer);
+		buffer.writeInt(names.length);
+		for (String name : names)
+		{
+			writeString(name, buffer);
+		}
+	}
+
+	@Override
+	protected void writeData(sensor_msgs.JointState msg, ChannelBuffer buffer)
+	{
+		writeDoubleArray(msg.getPosition(), buffer);
+		writeDoubleArray(msg.getVelocity(), buffer);
+		writeDoubleArray(msg.getEffort(), buffer);
+	}
+}
@@ -0,0 +1,64 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.serialization;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Template serializer of sensor_msgs/LaserScan, the frame id and scan geometry
+ * are constant and only the ranges and intensities are encoded per message.
+ */
+public class LaserScanSerializer extends TemplateSerializer<sensor_msgs.LaserScan> {
+
+	private String frameId;
+	// angle min, angle max, angle increment, time increment, scan time, range min, range max
+	private final float[] geometry = new float[7];
+
+	@Override
+	protected std_msgs.Header getHeader(sensor_msgs.LaserScan msg)
+	{
+		return msg.getHeader();
+	}
+
+	@Override
+	protected boolean matchesTemplate(sensor_msgs.LaserScan msg)
+	{
+		return sameString(frameId, msg.getHeader().getFrameId())
+				&& sameFloat(geometry[0], msg.getAngleMin())
+				&& sameFloat(geometry[1], msg.getAngleMax())
+				&& sameFloat(geometry[2], msg.getAngleIncrement())
+				&& sameFloat(geometry[3], msg.getTimeIncrement())
+				&& sameFloat(geometry[4], msg.getScanTime())
+				&& sameFloat(geometry[5], msg.getRangeMin())
+				&& sameFloat(geometry[6], msg.getRangeMax());
+	}
+
+	@Override
+	protected void writeTemplate(sensor_msgs.LaserScan msg, ChannelBuffer buffer)
+	{
+		frameId = msg.getHeader().getFrameId();
+		geometry[0] = msg.getAngleMin();
+		geometry[1] = msg.getAngleMax();
+		geometry[2] = msg.getAngleIncrement();
+		geometry[3] = msg.getTimeIncrement();
+		geometry[4] = msg.getScanTime();
+		geometry[5] = msg.getRangeMin();
+		geometry[6] = msg.getRangeMax();
+
+		writeString(frameId, buffer);
+		for (int i = 0; i < geometry.length; i++)
+		{
+			buffer.writeFloat(geometry[i]);
+		}
+	}
+
+	@Override
+	protected void writeData(sensor_msgs.LaserScan msg, ChannelBuffer buffer)
+	{
+		writeFloatArray(msg.getRanges(), buffer);
+		writeFloatArray(msg.getIntensities(), buffer);
+	}
+
+	private static boolean sameFloat(float a, float b)
+	{
+		return Float.floatToRawIntBits(a) == Float.floatToRawIntBits(b);
+	}
+}
@@ -0,0 +1,65 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.serialization;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Template serializer of nav_msgs/Odometry, the frame ids are constant and
+ * the pose and twist with their covariances are encoded per message.
+ */
+public class OdometrySerializer extends TemplateSerializer<nav_msgs.Odometry> {
+
+	private String frameId;
+	private String childFrameId;
+
+	@Override
+	protected std_msgs.Header getHeader(nav_msgs.Odometry msg)
+	{
+		return msg.getHeader();
+	}
+
+	@Override
+	protected boolean matchesTemplate(nav_msgs.Odometry msg)
+	{
+		return sameString(frameId, msg.getHeader().getFrameId()) && sameString(childFrameId, msg.getChildFrameId());
+	}
+
+	@Override
+	protected void writeTemplate(nav_msgs.Odometry msg, ChannelBuffer buffer)
+	{
+		frameId = msg.getHeader().getFrameId();
+		childFrameId = msg.getChildFrameId();
+
+		writeString(frameId, buffer);
+		writeString(childFrameId, buffer);
+	}
+
+	@Override
+	protected void writeData(nav_msgs.Odometry msg, ChannelBuffer buffer)
+	{
+		// message getters go through a proxy, so every nested message is only looked up once
+		geometry_msgs.PoseWithCovariance poseWithCovariance = msg.getPose();
+		geometry_msgs.Pose pose = poseWithCovariance.getPose();
+		geometry_msgs.Point position = pose.getPosition();
+		buffer.writeDouble(position.getX());
+		buffer.writeDouble(position.getY());
+		buffer.writeDouble(position.getZ());
+		geometry_msgs.Quaternion orientation = pose.getOrientation();
+		buffer.writeDouble(orientation.getX());
+		buffer.writeDouble(orientation.getY());
+		buffer.writeDouble(orientation.getZ());
+		buffer.writeDouble(orientation.getW());
+		writeFixedDoubleArray(poseWithCovariance.getCovariance(), buffer);
+
+		geometry_msgs.TwistWithCovariance twistWithCovariance = msg.getTwist();
+		geometry_msgs.Twist twist = twistWithCovariance.getTwist();
+		geometry_msgs.Vector3 linear = twist.getLinear();
+		buffer.writeDouble(linear.getX());
+		buffer.writeDouble(linear.getY());
+		buffer.writeDouble(linear.getZ());
+		geometry_msgs.Vector3 angular = twist.getAngular();
+		buffer.writeDouble(angular.getX());
+		buffer.writeDouble(angular.getY());
+		buffer.writeDouble(angular.getZ());
+		writeFixedDoubleArray(twistWithCovariance.getCovariance(), buffer);
+	}
+}
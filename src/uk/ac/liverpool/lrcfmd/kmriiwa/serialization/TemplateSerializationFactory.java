@@ -0,0 +1,69 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.serialization;
+
+import org.ros.message.MessageDeserializer;
+import org.ros.message.MessageSerializationFactory;
+import org.ros.message.MessageSerializer;
+
+/**
+ * Serialization factory that hands out template serializers for the
+ * high rate streams published by the bridge, LaserScan, JointState and
+ * Odometry, and the serializers of the wrapped factory for everything else.
+ */
+public class TemplateSerializationFactory implements MessageSerializationFactory {
+
+	private final MessageSerializationFactory defaultFactory;
+
+	public TemplateSerializationFactory(MessageSerializationFactory defaultFactory)
+	{
+		this.defaultFactory = defaultFactory;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> MessageSerializer<T> newMessageSerializer(String messageType)
+	{
+		if (sensor_msgs.LaserScan._TYPE.equals(messageType))
+		{
+			return (MessageSerializer<T>) new LaserScanSerializer();
+		}
+		if (sensor_msgs.JointState._TYPE.equals(messageType))
+		{
+			return (MessageSerializer<T>) new JointStateSerializer();
+		}
+		if (nav_msgs.Odometry._TYPE.equals(messageType))
+		{
+			return (MessageSerializer<T>) new OdometrySerializer();
+		}
+		return defaultFactory.newMessageSerializer(messageType);
+	}
+
+	@Override
+	public <T> MessageDeserializer<T> newMessageDeserializer(String messageType)
+	{
+		return defaultFactory.newMessageDeserializer(messageType);
+	}
+
+	@Override
+	public <T> MessageSerializer<T> newServiceRequestSerializer(String serviceType)
+	{
+		return defaultFactory.newServiceRequestSerializer(serviceType);
+	}
+
+	@Override
+	public <T> MessageDeserializer<T> newServiceRequestDeserializer(String serviceType)
+	{
+		return defaultFactory.newServiceRequestDeserializer(serviceType);
+	}
+
+	@Override
+	public <T> MessageSerializer<T> newServiceResponseSerializer(String serviceType)
+	{
+		return defaultFactory.newServiceResponseSerializer(serviceType);
+	}
+
+	@Override
+	public <T> MessageDeserializer<T> newServiceResponseDeserializer(String serviceType)
+	{
+		return defaultFactory.newServiceResponseDeserializer(serviceType);
+	}
+}
@@ -0,0 +1,161 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.serialization;
+
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.internal.message.MessageBuffers;
+import org.ros.message.MessageSerializer;
+import org.ros.message.Time;
+
+/**
+ * Serializer of a message type whose leading fields never change between
+ * messages of a stream, e.g. frame ids, joint names and scan geometry.
+ * Those fields are encoded once into a byte template that is copied after
+ * the header's seq and stamp, only the remaining data fields are encoded
+ * per message. The template is rebuilt whenever the constant fields of a
+ * message differ from the ones it was built from.
+ *
+ * rosjava creates a serializer per publisher and mostly calls it from the
+ * publisher's writer thread, but the message of a latched publisher is also
+ * serialized from the thread connecting a new subscriber, so serialize is
+ * synchronized. It is uncontended apart from those connections.
+ */
+public abstract class TemplateSerializer<T> implements MessageSerializer<T> {
+
+	static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private final ChannelBuffer templateBuffer = MessageBuffers.dynamicBuffer();
+	private byte[] template = null;
+
+	@Override
+	public synchronized void serialize(T msg, ChannelBuffer buffer)
+	{
+		std_msgs.Header header = getHeader(msg);
+		buffer.writeInt(header.getSeq());
+		Time stamp = header.getStamp();
+		buffer.writeInt(stamp.secs);
+		buffer.writeInt(stamp.nsecs);
+
+		if (template == null || !matchesTemplate(msg))
+		{
+			templateBuffer.clear();
+			writeTemplate(msg, templateBuffer);
+			template = new byte[templateBuffer.readableBytes()];
+			templateBuffer.readBytes(template);
+		}
+		buffer.writeBytes(template);
+		writeData(msg, buffer);
+	}
+
+	protected abstract std_msgs.Header getHeader(T msg);
+
+	/**
+	 * @return true if the constant fields of msg are the ones the template was last written from
+	 */
+	protected abstract boolean matchesTemplate(T msg);
+
+	/**
+	 * Writes the constant fields, starting with the header's frame id, and keeps
+	 * their values for matchesTemplate.
+	 */
+	protected abstract void writeTemplate(T msg, ChannelBuffer buffer);
+
+	/**
+	 * Writes the fields following the template.
+	 */
+	protected abstract void writeData(T msg, ChannelBuffer buffer);
+
+	static void writeString(String value, ChannelBuffer buffer)
+	{
+		byte[] bytes = value.getBytes(CHARSET);
+		buffer.writeInt(bytes.length);
+		buffer.writeBytes(bytes);
+	}
+
+	static void writeFloatArray(float[] values, ChannelBuffer buffer)
+	{
+		buffer.writeInt(values.length);
+		int length = values.length * 4;
+		buffer.ensureWritableBytes(length);
+		if (buffer.hasArray())
+		{
+			// store straight into the buffer's backing array instead of a buffer write per element
+			byte[] array = buffer.array();
+			int index = buffer.arrayOffset() + buffer.writerIndex();
+			boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+			for (int i = 0; i < values.length; i++)
+			{
+				putInt(array, index, Float.floatToRawIntBits(values[i]), littleEndian);
+				index += 4;
+			}
+			buffer.writerIndex(buffer.writerIndex() + length);
+		}
+		else
+		{
+			for (int i = 0; i < values.length; i++)
+			{
+				buffer.writeFloat(values[i]);
+			}
+		}
+	}
+
+	static void writeDoubleArray(double[] values, ChannelBuffer buffer)
+	{
+		buffer.writeInt(values.length);
+		writeFixedDoubleArray(values, buffer);
+	}
+
+	/**
+	 * Writes a fixed size array, which has no length prefix.
+	 */
+	static void writeFixedDoubleArray(double[] values, ChannelBuffer buffer)
+	{
+		int length = values.length * 8;
+		buffer.ensureWritableBytes(length);
+		if (buffer.hasArray())
+		{
+			byte[] array = buffer.array();
+			int index = buffer.arrayOffset() + buffer.writerIndex();
+			boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+			for (int i = 0; i < values.length; i++)
+			{
+				long bits = Double.doubleToRawLongBits(values[i]);
+				putInt(array, index, (int) (littleEndian ? bits : bits >>> 32), littleEndian);
+				putInt(array, index + 4, (int) (littleEndian ? bits >>> 32 : bits), littleEndian);
+				index += 8;
+			}
+			buffer.writerIndex(buffer.writerIndex() + length);
+		}
+		else
+		{
+			for (int i = 0; i < values.length; i++)
+			{
+				buffer.writeDouble(values[i]);
+			}
+		}
+	}
+
+	private static void putInt(byte[] array, int index, int value, boolean littleEndian)
+	{
+		if (littleEndian)
+		{
+			array[index] = (byte) value;
+			array[index + 1] = (byte) (value >>> 8);
+			array[index + 2] = (byte) (value >>> 16);
+			array[index + 3] = (byte) (value >>> 24);
+		}
+		else
+		{
+			array[index] = (byte) (value >>> 24);
+			array[index + 1] = (byte) (value >>> 16);
+			array[index + 2] = (byte) (value >>> 8);
+			array[index + 3] = (byte) value;
+		}
+	}
+
+	static boolean sameString(String a, String b)
+	{
+		return a == b || (a != null && a.equals(b));
+	}
+}
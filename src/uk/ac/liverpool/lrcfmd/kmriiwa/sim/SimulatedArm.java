@@ -0,0 +1,253 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.sim;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmDevice;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionContainer;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionListener;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmStatus;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+
+/**
+ * Simulated LBR iiwa 14. Submitted motions are executed in order by moving
+ * all joints synchronously towards each point at the point's relative
+ * velocity of the joint limits. Torques follow a simple gravity model.
+ */
+public class SimulatedArm implements ArmDevice {
+
+	private static final int NUM_JOINTS = 7;
+	// Period of the motion interpolation in ms
+	private static final long STEP_MS = 4;
+	// LBR iiwa 14 R820 maximum joint velocities in rad/s
+	private static final double[] MAX_JOINT_VELOCITY = {Math.toRadians(85), Math.toRadians(85), Math.toRadians(100),
+		Math.toRadians(75), Math.toRadians(130), Math.toRadians(135), Math.toRadians(135)};
+	// Gravity torque of the joints carrying the arm in its horizontal pose, in Nm
+	private static final double[] GRAVITY_TORQUE = {0, 60, 0, 25, 0, 3, 0};
+	private static final double TORQUE_NOISE = 0.2;
+	// Lowest relative velocity executed, as clamped by LBRCommander
+	private static final double MIN_RELATIVE_VELOCITY = 0.01;
+
+	// Motion submitted to the simulated arm
+	private static class SimulatedMotion implements ArmMotionContainer
+	{
+		private final double[][] positions;
+		private final double[] relVelocities;
+		private final ArmMotionListener listener;
+		private int point = 0;
+		private volatile boolean cancelled = false;
+		private volatile boolean finished = false;
+
+		private SimulatedMotion(double[][] positions, double[] relVelocities, ArmMotionListener listener)
+		{
+			this.positions = positions;
+			this.relVelocities = relVelocities;
+			this.listener = listener;
+		}
+
+		@Override
+		public boolean isFinished()
+		{
+			return finished;
+		}
+
+		@Override
+		public void cancel()
+		{
+			cancelled = true;
+		}
+
+		@Override
+		public boolean hasError()
+		{
+			return false;
+		}
+
+		@Override
+		public String getErrorMessage()
+		{
+			return null;
+		}
+	}
+
+	private final double[] positions = new double[NUM_JOINTS];
+	private final LinkedList<SimulatedMotion> motions = new LinkedList<SimulatedMotion>();
+	private final Random random = new Random();
+	private ScheduledExecutorService executor = null;
+
+	public synchronized void start()
+	{
+		if (executor != null)
+		{
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "sim-arm");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run()
+			{
+				step(STEP_MS / 1000.0);
+			}
+		}, 0, STEP_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop()
+	{
+		if (executor != null)
+		{
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Advances the motions by dt seconds, called every step by the simulation thread
+	 * and directly by tests.
+	 */
+	void step(double dt)
+	{
+		SimulatedMotion finishedMotion = null;
+		synchronized (this)
+		{
+			SimulatedMotion motion = motions.peek();
+			if (motion == null)
+			{
+				return;
+			}
+			if (motion.cancelled || advance(motion, dt))
+			{
+				motions.poll();
+				motion.finished = true;
+				finishedMotion = motion;
+			}
+		}
+		// listeners are called without holding the arm, as Sunrise calls them from its own thread
+		if (finishedMotion != null && finishedMotion.listener != null)
+		{
+			try
+			{
+				finishedMotion.listener.containerFinished(finishedMotion);
+			}
+			catch (Exception e)
+			{
+				Logger.error("Simulated motion listener failed: " + e.toString());
+			}
+		}
+	}
+
+	/**
+	 * Moves the joints towards the motion's current point, all joints arriving together.
+	 * @return true once the last point has been reached
+	 */
+	private boolean advance(SimulatedMotion motion, double dt)
+	{
+		double[] target = motion.positions[motion.point];
+		// a relative velocity of 0 (or NaN) would never reach the point
+		double relVelocity = motion.relVelocities[motion.point];
+		relVelocity = relVelocity >= MIN_RELATIVE_VELOCITY ? Math.min(1.0, relVelocity) : MIN_RELATIVE_VELOCITY;
+		double duration = 0;
+		for (int j = 0; j < NUM_JOINTS && j < target.length; j++)
+		{
+			duration = Math.max(duration, Math.abs(target[j] - positions[j]) / (relVelocity * MAX_JOINT_VELOCITY[j]));
+		}
+		double ratio = duration > dt ? dt / duration : 1;
+		for (int j = 0; j < NUM_JOINTS && j < target.length; j++)
+		{
+			positions[j] += (target[j] - positions[j]) * ratio;
+		}
+		if (ratio < 1)
+		{
+			return false;
+		}
+		motion.point++;
+		return motion.point >= motion.positions.length;
+	}
+
+	@Override
+	public int getJointCount()
+	{
+		return NUM_JOINTS;
+	}
+
+	@Override
+	public synchronized void getJointPositions(double[] positions)
+	{
+		System.arraycopy(this.positions, 0, positions, 0, Math.min(NUM_JOINTS, positions.length));
+	}
+
+	@Override
+	public synchronized void getJointTorques(double[] torques)
+	{
+		// pitch of each link accumulated over the joints rotating about a horizontal axis
+		double pitch = 0;
+		for (int j = 0; j < NUM_JOINTS && j < torques.length; j++)
+		{
+			if (j % 2 == 1)
+			{
+				pitch += positions[j];
+			}
+			torques[j] = GRAVITY_TORQUE[j] * Math.sin(pitch) + TORQUE_NOISE * random.nextGaussian();
+		}
+	}
+
+	@Override
+	public boolean isMotionEnabled()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isMastered()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean areAllAxesGmsReferenced()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean areAllAxesPositionReferenced()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isSafetyStopActive()
+	{
+		return false;
+	}
+
+	@Override
+	public void getStatus(ArmStatus status)
+	{
+		status.motionEnabled = true;
+		status.mastered = true;
+		status.gmsReferenced = true;
+		status.positionReferenced = true;
+		status.safetyStopActive = false;
+	}
+
+	@Override
+	public synchronized ArmMotionContainer moveAsync(double[][] positions, double[] relVelocities, double[] relAccelerations,
+			double blendingRel, ArmMotionListener listener)
+	{
+		SimulatedMotion motion = new SimulatedMotion(positions, relVelocities, listener);
+		motions.add(motion);
+		return motion;
+	}
+}
@@ -0,0 +1,111 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.sim;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.BaseDevice;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.BaseStatus;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.OdometrySample;
+
+/**
+ * Simulated KMP omnidirectional base. The pose is integrated from the jog
+ * velocity, and the base stops if it isn't jogged within the jog timeout
+ * like the real base does.
+ */
+public class SimulatedBase implements BaseDevice {
+
+	private static final long JOG_TIMEOUT_NANOS = 500000000L;
+	private static final double BATTERY_STATE_OF_CHARGE = 90;
+
+	// Pose {x, y, theta} in the odometry frame and velocity {x, y, theta} in the base frame
+	private final double[] pose = new double[3];
+	private final double[] velocity = new double[3];
+	private long lastUpdateNanos = System.nanoTime();
+	private long lastJogNanos = 0;
+
+	@Override
+	public boolean isMotionEnabled()
+	{
+		return true;
+	}
+
+	@Override
+	public boolean isReadyToMove()
+	{
+		return true;
+	}
+
+	@Override
+	public synchronized void jog(double[] velocity)
+	{
+		update(System.nanoTime());
+		System.arraycopy(velocity, 0, this.velocity, 0, this.velocity.length);
+		lastJogNanos = lastUpdateNanos;
+	}
+
+	/**
+	 * @return the current pose and velocity of the base
+	 */
+	public synchronized OdometrySample getOdometry()
+	{
+		update(System.nanoTime());
+		return new OdometrySample(pose[0], pose[1], pose[2], velocity[0], velocity[1], velocity[2]);
+	}
+
+	/**
+	 * Writes the current pose {x, y, theta} into pose.
+	 */
+	public synchronized void getPose(double[] pose)
+	{
+		update(System.nanoTime());
+		System.arraycopy(this.pose, 0, pose, 0, this.pose.length);
+	}
+
+	private void update(long now)
+	{
+		if (now - lastJogNanos > JOG_TIMEOUT_NANOS)
+		{
+			velocity[0] = 0;
+			velocity[1] = 0;
+			velocity[2] = 0;
+		}
+		double dt = (now - lastUpdateNanos) / 1e9;
+		lastUpdateNanos = now;
+		double cos = Math.cos(pose[2]);
+		double sin = Math.sin(pose[2]);
+		pose[0] += (velocity[0] * cos - velocity[1] * sin) * dt;
+		pose[1] += (velocity[0] * sin + velocity[1] * cos) * dt;
+		pose[2] = Math.atan2(Math.sin(pose[2] + velocity[2] * dt), Math.cos(pose[2] + velocity[2] * dt));
+	}
+
+	@Override
+	public double getBatteryStateOfCharge()
+	{
+		return BATTERY_STATE_OF_CHARGE;
+	}
+
+	@Override
+	public boolean isWarningFieldBreached()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isSafetyFieldBreached()
+	{
+		return false;
+	}
+
+	@Override
+	public boolean isSafetyStopActive()
+	{
+		return false;
+	}
+
+	@Override
+	public void getStatus(BaseStatus status)
+	{
+		status.batteryStateOfCharge = BATTERY_STATE_OF_CHARGE;
+		status.warningFieldBreached = false;
+		status.safetyFieldBreached = false;
+		status.motionEnabled = true;
+		status.safetyStopActive = false;
+	}
+}
@@ -0,0 +1,129 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.sim;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ros.RosCore;
+import org.ros.time.WallTimeProvider;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.app.BridgeConfiguration;
+import uk.ac.liverpool.lrcfmd.kmriiwa.app.KmriiwaBridge;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.AsyncLogSink;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.Logger;
+
+/**
+ * Runs the ROS bridge on a plain JVM against a simulated KMR iiwa, for
+ * benchmarking and regression testing off the robot controller.
+ *
+ * Settings are read from system properties prefixed with "kmriiwa.", e.g.
+ * -Dkmriiwa.joint_states_rate=200. The bridge settings have the ids of the
+ * process data on the controller. In addition:
+ * kmriiwa.robot_name (default kmriiwa), kmriiwa.host (default 127.0.0.1),
+ * kmriiwa.master_uri (if not set a rosjava master is started in process),
+ * kmriiwa.sim_laser_rate and kmriiwa.sim_odometry_rate (sensor rates in Hz).
+ */
+public class SimulatedKmriiwa {
+
+	private static final String PREFIX = "kmriiwa.";
+	private static final int MASTER_PORT = 11311;
+
+	public static void main(String[] args) throws Exception
+	{
+		// log to the console from a background thread, as on the controller
+		final AsyncLogSink logSink = new AsyncLogSink(Logger.getLogger());
+		logSink.start();
+		Logger.setLogger(logSink);
+
+		final BridgeConfiguration configuration = new BridgeConfiguration() {
+			@Override
+			public double getPositive(String id, double defaultValue)
+			{
+				return getNumber(id, defaultValue, false);
+			}
+
+			@Override
+			public double getNonNegative(String id, double defaultValue)
+			{
+				return getNumber(id, defaultValue, true);
+			}
+
+			private double getNumber(String id, double defaultValue, boolean zeroAllowed)
+			{
+				String value = System.getProperty(PREFIX + id);
+				if (value == null)
+				{
+					return defaultValue;
+				}
+				try
+				{
+					double number = Double.parseDouble(value);
+					if (number > 0 || (zeroAllowed && number == 0))
+					{
+						return number;
+					}
+				}
+				catch (NumberFormatException e)
+				{
+					// reported below
+				}
+				Logger.warn("Invalid " + id + " setting, using default of " + defaultValue);
+				return defaultValue;
+			}
+
+			@Override
+			public boolean getBoolean(String id, boolean defaultValue)
+			{
+				String value = System.getProperty(PREFIX + id);
+				return value != null ? Boolean.parseBoolean(value) : defaultValue;
+			}
+		};
+
+		String robotName = System.getProperty(PREFIX + "robot_name", "kmriiwa");
+		String host = System.getProperty(PREFIX + "host", "127.0.0.1");
+		String masterUri = System.getProperty(PREFIX + "master_uri");
+
+		RosCore rosCore = null;
+		if (masterUri == null)
+		{
+			rosCore = RosCore.newPublic(host, MASTER_PORT);
+			rosCore.start();
+			if (!rosCore.awaitStart(10, TimeUnit.SECONDS))
+			{
+				Logger.error("Couldn't start the ROS master");
+				return;
+			}
+			masterUri = rosCore.getUri().toString();
+			Logger.info("ROS master started at " + masterUri);
+		}
+
+		final SimulatedArm arm = new SimulatedArm();
+		SimulatedBase base = new SimulatedBase();
+		SimulatedSensorSource sensors = new SimulatedSensorSource(base, configuration.getPositive("sim_laser_rate", 25),
+				configuration.getPositive("sim_odometry_rate", 50));
+		final KmriiwaBridge bridge = new KmriiwaBridge(robotName, arm, base, sensors, new WallTimeProvider(), configuration);
+		if (!bridge.initialize(host, masterUri))
+		{
+			Logger.error("Couldn't initialize the ROS bridge");
+			return;
+		}
+
+		final RosCore startedCore = rosCore;
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				Logger.warn("Shutting down simulated KMRIIWA");
+				bridge.stop();
+				bridge.dispose();
+				arm.stop();
+				if (startedCore != null)
+				{
+					startedCore.shutdown();
+				}
+				logSink.close();
+			}
+		}, "sim-shutdown"));
+
+		arm.start();
+		bridge.run();
+	}
+}
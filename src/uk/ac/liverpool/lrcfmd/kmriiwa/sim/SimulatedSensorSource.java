@@ -0,0 +1,144 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.sim;
+
+import java.util.Random;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.OdometrySample;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.SensorSource;
+
+/**
+ * Simulated laser scanners and odometry of the base. Each laser produces
+ * 541 beam scans over 270 degrees of a rectangular room seen from the
+ * simulated base's pose. Samples are produced at the configured rates when
+ * the streams are polled.
+ */
+public class SimulatedSensorSource implements SensorSource {
+
+	private static final int BEAMS = 541;
+	private static final double ANGLE_MIN = Math.toRadians(-135);
+	private static final double ANGLE_INCREMENT = Math.toRadians(0.5);
+	private static final double RANGE_MAX = 15;
+	private static final double RANGE_NOISE = 0.01;
+	// Half sizes of the room centred on the odometry origin, in m
+	private static final double ROOM_HALF_X = 5;
+	private static final double ROOM_HALF_Y = 4;
+
+	private SimulatedBase base;
+	private long laserPeriodNanos;
+	private long odometryPeriodNanos;
+	private volatile boolean connected = false;
+
+	// Per stream state, each stream is only polled by its own thread
+	private final long[] nextLaserNanos = new long[LaserScanner.values().length];
+	private final double[][] laserPoses = new double[LaserScanner.values().length][3];
+	private final Random[] laserNoise = new Random[LaserScanner.values().length];
+	private long nextOdometryNanos = 0;
+
+	public SimulatedSensorSource(SimulatedBase base, double laserRate, double odometryRate)
+	{
+		this.base = base;
+		this.laserPeriodNanos = Math.round(1e9 / laserRate);
+		this.odometryPeriodNanos = Math.round(1e9 / odometryRate);
+		for (int i = 0; i < laserNoise.length; i++)
+		{
+			laserNoise[i] = new Random();
+		}
+	}
+
+	@Override
+	public void connect(long timeout)
+	{
+		connected = true;
+	}
+
+	@Override
+	public boolean isLaserSubscribed(LaserScanner laserScanner)
+	{
+		return connected;
+	}
+
+	@Override
+	public boolean isOdometrySubscribed()
+	{
+		return connected;
+	}
+
+	@Override
+	public float[] getNewLaserScan(LaserScanner laserScanner)
+	{
+		int index = laserScanner.ordinal();
+		long now = System.nanoTime();
+		if (!connected || now < nextLaserNanos[index])
+		{
+			return null;
+		}
+		nextLaserNanos[index] = nextSampleNanos(nextLaserNanos[index], now, laserPeriodNanos);
+
+		double[] pose = laserPoses[index];
+		base.getPose(pose);
+		double cos = Math.cos(pose[2]);
+		double sin = Math.sin(pose[2]);
+		double x = pose[0] + laserScanner.x * cos - laserScanner.y * sin;
+		double y = pose[1] + laserScanner.x * sin + laserScanner.y * cos;
+		double yaw = pose[2] + laserScanner.yaw;
+
+		// a new array per scan, the published message keeps a reference to it
+		float[] ranges = new float[BEAMS];
+		for (int i = 0; i < BEAMS; i++)
+		{
+			double range = rangeToWall(x, y, yaw + ANGLE_MIN + i * ANGLE_INCREMENT);
+			ranges[i] = (float) Math.min(RANGE_MAX, range + RANGE_NOISE * laserNoise[index].nextGaussian());
+		}
+		return ranges;
+	}
+
+	@Override
+	public OdometrySample getNewOdometry()
+	{
+		long now = System.nanoTime();
+		if (!connected || now < nextOdometryNanos)
+		{
+			return null;
+		}
+		nextOdometryNanos = nextSampleNanos(nextOdometryNanos, now, odometryPeriodNanos);
+		return base.getOdometry();
+	}
+
+	@Override
+	public void disconnect()
+	{
+		connected = false;
+	}
+
+	// Keeps a fixed rate, skipping the samples missed while the stream wasn't polled
+	private static long nextSampleNanos(long scheduledNanos, long now, long periodNanos)
+	{
+		long next = scheduledNanos + periodNanos;
+		return next > now ? next : now + periodNanos;
+	}
+
+	// Distance from (x, y) to the room's walls along the given angle
+	private static double rangeToWall(double x, double y, double angle)
+	{
+		double dx = Math.cos(angle);
+		double dy = Math.sin(angle);
+		double range = RANGE_MAX;
+		if (dx > 0)
+		{
+			range = Math.min(range, (ROOM_HALF_X - x) / dx);
+		}
+		else if (dx < 0)
+		{
+			range = Math.min(range, (-ROOM_HALF_X - x) / dx);
+		}
+		if (dy > 0)
+		{
+			range = Math.min(range, (ROOM_HALF_Y - y) / dy);
+		}
+		else if (dy < 0)
+		{
+			range = Math.min(range, (-ROOM_HALF_Y - y) / dy);
+		}
+		return range > 0 ? range : RANGE_MAX;
+	}
+}
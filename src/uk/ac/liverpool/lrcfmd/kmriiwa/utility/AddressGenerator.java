@@ -1,4 +1,4 @@
-﻿/**
+/**
  * Copyright (C) 2018 Arne Peters - arne.peters@tum.de 
  * Technische Universität München
  * Chair for Robotics, Artificial Intelligence and Embedded Systems 
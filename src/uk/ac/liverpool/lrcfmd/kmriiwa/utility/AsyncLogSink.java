@@ -0,0 +1,324 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log sink that hands messages to a background thread, which writes them to
+ * another sink, e.g. the Sunrise task logger. Logging threads only count the
+ * message and put it on a bounded lock-free queue, so they never wait for the
+ * log I/O; messages arriving while the queue is full are dropped and counted.
+ *
+ * A message repeated within the repeat window is only written the first time.
+ * The repeats are counted per message and written as a single summary once
+ * the window has passed, e.g. "Not connected to odometry (repeated 249 times
+ * in last 10 s)". A message is no longer tracked once its window has passed,
+ * so messages with changing text (e.g. a value in it) don't fill the table of
+ * tracked messages for good.
+ */
+public class AsyncLogSink implements LogSink {
+
+	private static final int QUEUE_CAPACITY = 1024;
+	private static final long REPEAT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+	private static final long DRAIN_PERIOD_MS = 20;
+	private static final long SUMMARY_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// messages beyond this many distinct ones within a window are written without repeat suppression
+	private static final int MAX_TRACKED_MESSAGES = 256;
+
+	private enum Level
+	{
+		INFO,
+		WARN,
+		ERROR
+	}
+
+	private static class Record
+	{
+		private final Level level;
+		private final String message;
+
+		private Record(Level level, String message)
+		{
+			this.level = level;
+			this.message = message;
+		}
+	}
+
+	// Repeats of a message, the window is 0 until the message is first written
+	private static class MessageState
+	{
+		private final Level level;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong windowStartNanos = new AtomicLong();
+		private final AtomicLong repeats = new AtomicLong();
+
+		private MessageState(Level level)
+		{
+			this.level = level;
+		}
+	}
+
+	private final LogSink sink;
+	private final Queue<Record> queue = new ConcurrentLinkedQueue<Record>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final ConcurrentMap<String, MessageState> messages = new ConcurrentHashMap<String, MessageState>();
+	private Thread writer = null;
+	private volatile boolean running = false;
+
+	private final AtomicLong droppedMessages = Metrics.counter("log_dropped");
+	private final AtomicLong suppressedMessages = Metrics.counter("log_suppressed");
+	// dropped messages already reported, only used by the writer thread
+	private long reportedDrops = 0;
+
+	public AsyncLogSink(LogSink sink)
+	{
+		this.sink = sink;
+	}
+
+	public synchronized void start()
+	{
+		if (writer != null)
+		{
+			return;
+		}
+		running = true;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				drainLoop();
+			}
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Stops the writer thread once it has written the queued messages and the pending repeats.
+	 * If this sink is the one installed on the Logger, the wrapped sink is installed back,
+	 * so messages logged after closing (e.g. the rest of a shutdown) are still written.
+	 */
+	public synchronized void close()
+	{
+		if (Logger.getLogger() == this)
+		{
+			Logger.setLogger(sink);
+		}
+		if (writer == null)
+		{
+			return;
+		}
+		running = false;
+		writer.interrupt();
+		try
+		{
+			writer.join(TimeUnit.SECONDS.toMillis(1));
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		if (!writer.isAlive())
+		{
+			// messages queued by threads that got this sink just before it was replaced
+			drainQueue();
+		}
+		writer = null;
+	}
+
+	@Override
+	public void info(String message)
+	{
+		log(Level.INFO, message);
+	}
+
+	@Override
+	public void warn(String message)
+	{
+		log(Level.WARN, message);
+	}
+
+	@Override
+	public void error(String message)
+	{
+		log(Level.ERROR, message);
+	}
+
+	/**
+	 * @return how many times the message was logged since it was last tracked, including its
+	 * suppressed repeats, 0 once it is no longer tracked
+	 */
+	public long getCount(String message)
+	{
+		MessageState state = messages.get(message);
+		return state != null ? state.count.get() : 0;
+	}
+
+	private void log(Level level, String message)
+	{
+		MessageState state = getState(level, message);
+		if (state == null)
+		{
+			enqueue(new Record(level, message));
+			return;
+		}
+		state.count.incrementAndGet();
+
+		long now = System.nanoTime();
+		long windowStart = state.windowStartNanos.get();
+		// only the thread that opens a new window writes the message, the others count it as a repeat
+		if ((windowStart != 0 && now - windowStart < REPEAT_WINDOW_NANOS)
+				|| !state.windowStartNanos.compareAndSet(windowStart, now))
+		{
+			state.repeats.incrementAndGet();
+			suppressedMessages.incrementAndGet();
+			return;
+		}
+		enqueueRepeats(message, state);
+		enqueue(new Record(level, message));
+	}
+
+	private MessageState getState(Level level, String message)
+	{
+		MessageState state = messages.get(message);
+		if (state == null)
+		{
+			if (messages.size() >= MAX_TRACKED_MESSAGES)
+			{
+				return null;
+			}
+			MessageState newState = new MessageState(level);
+			state = messages.putIfAbsent(message, newState);
+			if (state == null)
+			{
+				state = newState;
+			}
+		}
+		return state;
+	}
+
+	private void enqueueRepeats(String message, MessageState state)
+	{
+		long repeats = state.repeats.getAndSet(0);
+		if (repeats > 0)
+		{
+			enqueue(new Record(state.level, message + " (repeated " + repeats + " times in last "
+					+ TimeUnit.NANOSECONDS.toSeconds(REPEAT_WINDOW_NANOS) + " s)"));
+		}
+	}
+
+	private void enqueue(Record record)
+	{
+		if (queued.incrementAndGet() > QUEUE_CAPACITY)
+		{
+			queued.decrementAndGet();
+			droppedMessages.incrementAndGet();
+			return;
+		}
+		queue.offer(record);
+	}
+
+	private void drainLoop()
+	{
+		long lastSummaryNanos = System.nanoTime();
+		while (running)
+		{
+			drainQueue();
+			long now = System.nanoTime();
+			if (now - lastSummaryNanos >= SUMMARY_PERIOD_NANOS)
+			{
+				lastSummaryNanos = now;
+				enqueueExpiredRepeats(now);
+				reportDrops();
+			}
+			try
+			{
+				Thread.sleep(DRAIN_PERIOD_MS);
+			}
+			catch (InterruptedException e)
+			{
+				// woken up to stop
+			}
+		}
+		// flush what is left, including the repeats of windows still open
+		drainQueue();
+		for (Map.Entry<String, MessageState> entry : messages.entrySet())
+		{
+			enqueueRepeats(entry.getKey(), entry.getValue());
+		}
+		reportDrops();
+		drainQueue();
+	}
+
+	private void drainQueue()
+	{
+		Record record;
+		while ((record = queue.poll()) != null)
+		{
+			queued.decrementAndGet();
+			write(record.level, record.message);
+		}
+	}
+
+	/**
+	 * Queues the repeat summaries of the messages whose window has passed and stops
+	 * tracking them, the next time such a message is logged it is written and tracked again.
+	 */
+	private void enqueueExpiredRepeats(long now)
+	{
+		for (Map.Entry<String, MessageState> entry : messages.entrySet())
+		{
+			MessageState state = entry.getValue();
+			long windowStart = state.windowStartNanos.get();
+			if (windowStart != 0 && now - windowStart >= REPEAT_WINDOW_NANOS)
+			{
+				enqueueRepeats(entry.getKey(), state);
+				if (messages.remove(entry.getKey(), state))
+				{
+					// a thread may have counted a repeat on it while it was removed
+					enqueueRepeats(entry.getKey(), state);
+				}
+			}
+		}
+	}
+
+	private void reportDrops()
+	{
+		long dropped = droppedMessages.get();
+		if (dropped > reportedDrops)
+		{
+			write(Level.WARN, (dropped - reportedDrops) + " log messages dropped as the log queue was full");
+			reportedDrops = dropped;
+		}
+	}
+
+	private void write(Level level, String message)
+	{
+		try
+		{
+			switch (level)
+			{
+			case INFO:
+				sink.info(message);
+				break;
+			case WARN:
+				sink.warn(message);
+				break;
+			case ERROR:
+				sink.error(message);
+				break;
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// the writer thread must outlive a failing sink
+			System.err.println("Couldn't write log message: " + e.toString());
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.StreamPublisher;
+
+/**
+ * Publishes the estimate of a disciplined clock as a Float64MultiArray, whose
+ * single dimension is labelled with the comma separated field names.
+ * Nothing is published until the clock has its first sample.
+ */
+public class ClockDiagnostics implements Runnable {
+
+	private static final String FIELDS = "offset_ms,drift_ppm,jitter_ms,delay_ms,samples,rejected,age_s";
+
+	private final DisciplinedClock clock;
+	private final StreamPublisher<std_msgs.Float64MultiArray> publisher;
+	private final MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+	public ClockDiagnostics(DisciplinedClock clock, StreamPublisher<std_msgs.Float64MultiArray> publisher)
+	{
+		this.clock = clock;
+		this.publisher = publisher;
+	}
+
+	@Override
+	public void run()
+	{
+		DisciplinedClock.Estimate estimate = clock.getEstimate();
+		if (estimate == null)
+		{
+			return;
+		}
+
+		double[] data = new double[] {
+				estimate.getWallOffsetMillis(),
+				estimate.getDriftPpm(),
+				estimate.getJitterMillis(),
+				estimate.getDelayMillis(),
+				estimate.getSamples(),
+				clock.getRejectedSamples(),
+				estimate.getAgeSeconds() };
+
+		std_msgs.Float64MultiArray msg = messageFactory.newFromType(std_msgs.Float64MultiArray._TYPE);
+		std_msgs.MultiArrayDimension dim = messageFactory.newFromType(std_msgs.MultiArrayDimension._TYPE);
+		dim.setLabel(FIELDS);
+		dim.setSize(data.length);
+		dim.setStride(data.length);
+		List<std_msgs.MultiArrayDimension> dims = new ArrayList<std_msgs.MultiArrayDimension>();
+		dims.add(dim);
+		msg.getLayout().setDim(dims);
+		msg.setData(data);
+		publisher.publish(msg);
+	}
+}
@@ -0,0 +1,74 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Wakes the control thread when a command arrives. Command sources call
+ * signalCommand() after buffering a command and the control thread parks
+ * in awaitCommand() until there is something to execute.
+ */
+public class CommandDispatcher {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition commandAvailable = lock.newCondition();
+	private boolean pending = false;
+
+	/**
+	 * Signals that a new command has been buffered.
+	 */
+	public void signalCommand()
+	{
+		lock.lock();
+		try
+		{
+			pending = true;
+			commandAvailable.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wakes the control thread without a command, e.g. when the pause state changes.
+	 */
+	public void wakeUp()
+	{
+		lock.lock();
+		try
+		{
+			pending = true;
+			commandAvailable.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Parks until a command is signalled, a wake up is requested or the timeout expires.
+	 * The arrival of a command is stamped where it is buffered, since the control thread
+	 * may leave it there until the arm has finished its motion.
+	 */
+	public void awaitCommand(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long remainingNanos = unit.toNanos(timeout);
+		lock.lock();
+		try
+		{
+			while (!pending && remainingNanos > 0)
+			{
+				remainingNanos = commandAvailable.awaitNanos(remainingNanos);
+			}
+			pending = false;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
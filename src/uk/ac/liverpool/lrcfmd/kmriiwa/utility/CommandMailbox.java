@@ -0,0 +1,89 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free single-slot mailbox holding the latest command of a topic.
+ * Posting replaces any command not consumed yet and counts it as overwritten.
+ * Taking a command older than the configured maximum age rejects it as stale.
+ */
+public class CommandMailbox<T> {
+
+	public static class Entry<T>
+	{
+		public final T command;
+		public final long sequence;
+		public final long receivedNanos;
+
+		private Entry(T command, long sequence, long receivedNanos)
+		{
+			this.command = command;
+			this.sequence = sequence;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+
+	private final AtomicReference<Entry<T>> slot = new AtomicReference<Entry<T>>();
+	private final AtomicLong sequence = new AtomicLong();
+	private final AtomicLong overwritten;
+	private final AtomicLong stale;
+	// 0 disables the staleness check
+	private volatile long maxAgeNanos;
+
+	/**
+	 * @param name mailbox name, used to register its counters in Metrics
+	 * @param maxAgeMs maximum age of a command when taken, 0 to accept any age
+	 */
+	public CommandMailbox(String name, long maxAgeMs)
+	{
+		this.overwritten = Metrics.counter(name + "_overwritten");
+		this.stale = Metrics.counter(name + "_stale");
+		setMaxAge(maxAgeMs, TimeUnit.MILLISECONDS);
+	}
+
+	public void setMaxAge(long maxAge, TimeUnit unit)
+	{
+		maxAgeNanos = unit.toNanos(maxAge);
+	}
+
+	public void post(T command)
+	{
+		Entry<T> entry = new Entry<T>(command, sequence.incrementAndGet(), System.nanoTime());
+		if (slot.getAndSet(entry) != null)
+		{
+			overwritten.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes the latest command out of the mailbox.
+	 * @return the entry, or null if the mailbox is empty or the command is stale
+	 */
+	public Entry<T> take()
+	{
+		Entry<T> entry = slot.getAndSet(null);
+		if (entry == null)
+		{
+			return null;
+		}
+		long maxAge = maxAgeNanos;
+		if (maxAge > 0 && System.nanoTime() - entry.receivedNanos > maxAge)
+		{
+			stale.incrementAndGet();
+			return null;
+		}
+		return entry;
+	}
+
+	public long getOverwrittenCount()
+	{
+		return overwritten.get();
+	}
+
+	public long getStaleCount()
+	{
+		return stale.get();
+	}
+}
@@ -2,18 +2,22 @@ package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
 
 import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ActionServerNode;
 import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.PublicationNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionContainer;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionListener;
 
-import com.kuka.roboticsAPI.executionModel.ExecutionState;
-import com.kuka.roboticsAPI.executionModel.IExecutionContainer;
-import com.kuka.roboticsAPI.motionModel.IMotion;
-import com.kuka.roboticsAPI.motionModel.IMotionContainer;
-import com.kuka.roboticsAPI.motionModel.IMotionContainerListener;
-
-public class DestinationReachedListener implements IMotionContainerListener {
+public class DestinationReachedListener implements ArmMotionListener {
 	
 	private PublicationNode publisher = null;
 	private ActionServerNode actionServer = null;
 	
+	// Planned versus executed duration of a trajectory goal
+	private String goalId = null;
+	private double plannedDuration = -1;
+	private long startNanos = 0;
+	private static final LatencyStats durationError = Metrics.latency("trajectory_duration_error");
+	private FeedbackSampler feedbackSampler = null;
+	private CommandDispatcher commandDispatcher = null;
+	
 	public DestinationReachedListener(PublicationNode publisher, ActionServerNode actionServer)
 	{
 		this.publisher = publisher;
@@ -25,43 +29,59 @@ public class DestinationReachedListener implements IMotionContainerListener {
 		this.publisher = publisher;
 	}
 
-	@Override
-	public void onStateChanged(IExecutionContainer arg0, ExecutionState arg1) 
+	/**
+	 * Sets the sampler publishing the goal's feedback, which is stopped once the motion finishes.
+	 */
+	public void setFeedbackSampler(FeedbackSampler feedbackSampler)
 	{
-		// not used
+		this.feedbackSampler = feedbackSampler;
 	}
-
+	
+	/**
+	 * Sets the dispatcher woken up once the motion finishes, so that the control
+	 * loop can start the next queued goal.
+	 */
+	public void setCommandDispatcher(CommandDispatcher commandDispatcher)
+	{
+		this.commandDispatcher = commandDispatcher;
+	}
+	
+	/**
+	 * Called when the execution of a trajectory is submitted, to report its planned
+	 * and executed durations once it finishes.
+	 */
+	public void trajectoryStarted(String goalId, double plannedDuration)
+	{
+		this.goalId = goalId;
+		this.plannedDuration = plannedDuration;
+		this.startNanos = System.nanoTime();
+	}
+	
 	@Override
-	public void containerFinished(IMotionContainer container) 
+	public void containerFinished(ArmMotionContainer container) 
 	{
+		if (feedbackSampler != null && goalId != null)
+		{
+			feedbackSampler.stopGoal(goalId);
+		}
+		if (plannedDuration >= 0)
+		{
+			double executedDuration = (System.nanoTime() - startNanos) / 1e9;
+			durationError.record((long) (Math.abs(executedDuration - plannedDuration) * 1e9));
+			Logger.info(String.format("Trajectory goal %s: planned %.3f s, executed %.3f s", goalId, plannedDuration, executedDuration));
+		}
 	    if (publisher != null) 
 	    {
 	    	publisher.publishArmDestinationReached();
 	    }
-	    if (actionServer != null  && actionServer.hasCurrentGoal() && actionServer.isActive()) 
+	    if (actionServer != null && goalId != null) 
 	    {
-	    	if (!container.hasError())
-	    	{
-	    		actionServer.markCurrentGoalReached();
-	    	}
-	    	else
-	    	{
-	    		actionServer.markCurrentGoalFailed(container.getErrorMessage());
-	    	}
+	    	actionServer.motionFinished(goalId, container.hasError(), container.getErrorMessage());
+	    }
+	    if (commandDispatcher != null)
+	    {
+	    	commandDispatcher.wakeUp();
 	    }
-	}
-
-	@Override
-	public void motionFinished(IMotion motion) 
-	{
-		// Not used
-		// Test to see if feedback can be sent		
-	}
-
-	@Override
-	public void motionStarted(IMotion motion) 
-	{
-		// Not used
 	}
 
 }
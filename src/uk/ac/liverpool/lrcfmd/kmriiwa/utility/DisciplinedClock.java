@@ -0,0 +1,442 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.net.ntp.NTPUDPClient;
+import org.apache.commons.net.ntp.TimeInfo;
+import org.ros.message.Time;
+import org.ros.time.TimeProvider;
+
+/**
+ * Time provider that disciplines the local monotonic clock to an NTP server.
+ * The server is sampled sparsely, each sample being the lowest delay one of a
+ * short burst of queries, and a sample whose offset departs from the model by
+ * more than the recent jitter is rejected as an outlier. A least squares fit
+ * over the accepted samples gives the offset and drift of the server's clock,
+ * from which the current time is extrapolated between samples.
+ *
+ * The estimate is replaced as a whole by the sampling thread, so getCurrentTime
+ * only reads a volatile field and never blocks. Until the first sample is
+ * taken the wall time is returned.
+ *
+ * The time never goes backwards. When a new estimate differs from the previous
+ * one, the difference is slewed out at a rate well above the drift instead of
+ * being stepped. A larger difference (e.g. at the first sample, or after the
+ * server's clock stepped) is stepped, and if it is backwards the time is held
+ * until it catches up.
+ */
+public class DisciplinedClock implements TimeProvider {
+
+	private static final int BURST_SIZE = 4;
+	private static final int WINDOW_SIZE = 8;
+	private static final int SOCKET_TIMEOUT_MS = 500;
+	// period used until half the window is filled, so the offset is averaged shortly after start
+	private static final long STARTUP_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+	// NTP offsets have a resolution of 1 ms, samples this close to the model are always accepted
+	private static final long MIN_REJECT_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+	private static final double REJECT_JITTERS = 4;
+	// after this many rejected samples in a row the server's clock is assumed to have stepped
+	private static final int MAX_REJECTED_IN_ROW = 3;
+	// with 1 ms resolution offsets the drift is only fitted once the samples span this long
+	private static final long MIN_DRIFT_SPAN_NANOS = TimeUnit.SECONDS.toNanos(60);
+	private static final double MAX_DRIFT = 500e-6;
+	// differences between estimates up to this are slewed, larger ones are stepped
+	private static final long MAX_SLEW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	// rate at which a difference is slewed out, 100 ms take 20 s
+	private static final double SLEW_RATE = 5000e-6;
+
+	private final InetAddress host;
+	private final ScheduledExecutorService executor;
+	private final NTPUDPClient ntpClient = new NTPUDPClient();
+
+	// Accepted samples, oldest first, only used by the sampling thread
+	private final long[] sampleNanos = new long[WINDOW_SIZE];
+	private final long[] sampleOffsets = new long[WINDOW_SIZE];
+	private int sampleCount = 0;
+	private int rejectedInRow = 0;
+	private boolean failing = false;
+
+	private final AtomicLong rejectedSamples = Metrics.counter("clock_rejected_samples");
+	private final AtomicLong failedUpdates = Metrics.counter("clock_failed_updates");
+
+	private volatile Estimate estimate = null;
+	// latest time returned, in ns
+	private final AtomicLong lastTimeNanos = new AtomicLong(Long.MIN_VALUE);
+	private volatile ScheduledFuture<?> scheduledUpdate = null;
+	private volatile boolean running = false;
+	private long periodNanos;
+
+	public DisciplinedClock(InetAddress host, ScheduledExecutorService executor)
+	{
+		this.host = host;
+		this.executor = executor;
+		ntpClient.setDefaultTimeout(SOCKET_TIMEOUT_MS);
+	}
+
+	@Override
+	public Time getCurrentTime()
+	{
+		Estimate current = estimate;
+		long timeNanos;
+		if (current == null)
+		{
+			timeNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+		}
+		else
+		{
+			long now = System.nanoTime();
+			timeNanos = now + current.slewedOffsetAt(now);
+		}
+		return Time.fromNano(notBefore(timeNanos));
+	}
+
+	/**
+	 * @return the given time, or the latest time returned if that is later
+	 */
+	private long notBefore(long timeNanos)
+	{
+		long last = lastTimeNanos.get();
+		while (timeNanos > last)
+		{
+			if (lastTimeNanos.compareAndSet(last, timeNanos))
+			{
+				return timeNanos;
+			}
+			last = lastTimeNanos.get();
+		}
+		return last;
+	}
+
+	/**
+	 * Samples the server now, then every period, more often until half the window is filled.
+	 */
+	public void startPeriodicUpdates(long period, TimeUnit unit)
+	{
+		periodNanos = unit.toNanos(period);
+		running = true;
+		schedule(0);
+	}
+
+	public void stopPeriodicUpdates()
+	{
+		running = false;
+		ScheduledFuture<?> update = scheduledUpdate;
+		if (update != null)
+		{
+			update.cancel(false);
+		}
+	}
+
+	private void schedule(long delayNanos)
+	{
+		if (!running || executor.isShutdown())
+		{
+			return;
+		}
+		try
+		{
+			scheduledUpdate = executor.schedule(new Runnable() {
+				@Override
+				public void run()
+				{
+					updateTime();
+					schedule(sampleCount < WINDOW_SIZE / 2 ? Math.min(STARTUP_PERIOD_NANOS, periodNanos) : periodNanos);
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the executor is shut down with the application
+		}
+	}
+
+	/**
+	 * Queries the server with a burst of requests and adds the one with the
+	 * lowest round trip delay to the model, as its offset is the least affected
+	 * by network queuing.
+	 */
+	public void updateTime()
+	{
+		long bestNanos = 0;
+		long bestOffset = 0;
+		long bestDelay = Long.MAX_VALUE;
+		try
+		{
+			ntpClient.open();
+			try
+			{
+				for (int i = 0; i < BURST_SIZE; i++)
+				{
+					TimeInfo info;
+					try
+					{
+						info = ntpClient.getTime(host);
+					}
+					catch (IOException e)
+					{
+						continue;
+					}
+					long receivedNanos = System.nanoTime();
+					info.computeDetails();
+					Long offset = info.getOffset();
+					Long delay = info.getDelay();
+					if (offset == null || delay == null || delay < 0 || delay >= bestDelay)
+					{
+						continue;
+					}
+					bestDelay = delay;
+					bestNanos = receivedNanos;
+					// server time minus monotonic time at the reception of the reply
+					bestOffset = TimeUnit.MILLISECONDS.toNanos(info.getReturnTime() + offset) - receivedNanos;
+				}
+			}
+			finally
+			{
+				ntpClient.close();
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.warn("Could not open NTP socket: " + e.getMessage());
+		}
+
+		if (bestDelay == Long.MAX_VALUE)
+		{
+			failedUpdates.incrementAndGet();
+			if (!failing)
+			{
+				Logger.warn("NTP server " + host.getHostAddress() + " did not respond, extrapolating the last estimate");
+				failing = true;
+			}
+			return;
+		}
+		if (failing)
+		{
+			Logger.info("NTP server " + host.getHostAddress() + " responded again");
+			failing = false;
+		}
+		addSample(bestNanos, bestOffset, TimeUnit.MILLISECONDS.toNanos(bestDelay));
+	}
+
+	/**
+	 * @param monotonicNanos System.nanoTime() at which the sample was taken
+	 * @param offsetNanos server time minus monotonic time
+	 * @param delayNanos round trip delay of the sample
+	 */
+	void addSample(long monotonicNanos, long offsetNanos, long delayNanos)
+	{
+		Estimate current = estimate;
+		if (current != null && sampleCount >= 3)
+		{
+			long residual = Math.abs(offsetNanos - current.offsetAt(monotonicNanos));
+			if (residual > Math.max(MIN_REJECT_NANOS, REJECT_JITTERS * current.jitterNanos))
+			{
+				rejectedSamples.incrementAndGet();
+				if (++rejectedInRow < MAX_REJECTED_IN_ROW)
+				{
+					return;
+				}
+				Logger.warn("NTP offset stepped by " + residual / 1e6 + " ms, restarting the clock estimate");
+				sampleCount = 0;
+			}
+		}
+		rejectedInRow = 0;
+
+		if (sampleCount == WINDOW_SIZE)
+		{
+			System.arraycopy(sampleNanos, 1, sampleNanos, 0, WINDOW_SIZE - 1);
+			System.arraycopy(sampleOffsets, 1, sampleOffsets, 0, WINDOW_SIZE - 1);
+			sampleCount--;
+		}
+		sampleNanos[sampleCount] = monotonicNanos;
+		sampleOffsets[sampleCount] = offsetNanos;
+		sampleCount++;
+
+		Estimate next = fit(delayNanos);
+		if (current != null)
+		{
+			// the time given by the previous estimate is carried over and slewed towards the new one
+			long now = System.nanoTime();
+			long difference = current.slewedOffsetAt(now) - next.offsetAt(now);
+			if (Math.abs(difference) <= MAX_SLEW_NANOS)
+			{
+				next = next.slewedFrom(now, difference);
+			}
+		}
+		estimate = next;
+	}
+
+	/**
+	 * Fits the offset as a line of the monotonic time over the window, relative
+	 * to the latest sample so the doubles keep nanosecond precision.
+	 */
+	private Estimate fit(long delayNanos)
+	{
+		int last = sampleCount - 1;
+		long referenceNanos = sampleNanos[last];
+		long referenceOffset = sampleOffsets[last];
+
+		double meanX = 0;
+		double meanY = 0;
+		for (int i = 0; i < sampleCount; i++)
+		{
+			meanX += sampleNanos[i] - referenceNanos;
+			meanY += sampleOffsets[i] - referenceOffset;
+		}
+		meanX /= sampleCount;
+		meanY /= sampleCount;
+
+		double sxx = 0;
+		double sxy = 0;
+		for (int i = 0; i < sampleCount; i++)
+		{
+			double dx = sampleNanos[i] - referenceNanos - meanX;
+			sxx += dx * dx;
+			sxy += dx * (sampleOffsets[i] - referenceOffset - meanY);
+		}
+		boolean driftKnown = referenceNanos - sampleNanos[0] >= MIN_DRIFT_SPAN_NANOS;
+		double drift = driftKnown ? sxy / sxx : 0;
+		drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, drift));
+		double intercept = meanY - drift * meanX;
+
+		double squares = 0;
+		for (int i = 0; i < sampleCount; i++)
+		{
+			double residual = sampleOffsets[i] - referenceOffset - intercept - drift * (sampleNanos[i] - referenceNanos);
+			squares += residual * residual;
+		}
+		double jitter = sampleCount > 2 ? Math.sqrt(squares / (sampleCount - 2)) : 0;
+
+		return new Estimate(referenceNanos, referenceOffset + Math.round(intercept), drift, jitter, delayNanos, sampleCount);
+	}
+
+	/**
+	 * @return the current estimate, or null if the server hasn't been sampled yet
+	 */
+	public Estimate getEstimate()
+	{
+		return estimate;
+	}
+
+	public long getRejectedSamples()
+	{
+		return rejectedSamples.get();
+	}
+
+	/**
+	 * Offset and drift of the server's clock relative to the monotonic clock, fitted at a sample.
+	 */
+	public static class Estimate {
+
+		private final long referenceNanos;
+		private final long offsetNanos;
+		private final double drift;
+		private final double jitterNanos;
+		private final long delayNanos;
+		private final int samples;
+		// difference to the previous estimate, slewed out from the given monotonic time
+		private final long slewStartNanos;
+		private final long slewNanos;
+
+		Estimate(long referenceNanos, long offsetNanos, double drift, double jitterNanos, long delayNanos, int samples)
+		{
+			this(referenceNanos, offsetNanos, drift, jitterNanos, delayNanos, samples, 0, 0);
+		}
+
+		private Estimate(long referenceNanos, long offsetNanos, double drift, double jitterNanos, long delayNanos, int samples,
+				long slewStartNanos, long slewNanos)
+		{
+			this.referenceNanos = referenceNanos;
+			this.offsetNanos = offsetNanos;
+			this.drift = drift;
+			this.jitterNanos = jitterNanos;
+			this.delayNanos = delayNanos;
+			this.samples = samples;
+			this.slewStartNanos = slewStartNanos;
+			this.slewNanos = slewNanos;
+		}
+
+		/**
+		 * @return the same estimate, with the given difference to be slewed out from the given monotonic time
+		 */
+		Estimate slewedFrom(long monotonicNanos, long differenceNanos)
+		{
+			return new Estimate(referenceNanos, offsetNanos, drift, jitterNanos, delayNanos, samples, monotonicNanos, differenceNanos);
+		}
+
+		/**
+		 * @return server time minus monotonic time at the given monotonic time
+		 */
+		long offsetAt(long monotonicNanos)
+		{
+			return offsetNanos + (long) (drift * (monotonicNanos - referenceNanos));
+		}
+
+		/**
+		 * @return offset at the given monotonic time with the part of the difference to the previous
+		 * estimate that isn't slewed out yet, the offset the time is given with
+		 */
+		long slewedOffsetAt(long monotonicNanos)
+		{
+			if (slewNanos == 0)
+			{
+				return offsetAt(monotonicNanos);
+			}
+			long slewed = (long) (SLEW_RATE * (monotonicNanos - slewStartNanos));
+			long remaining = slewNanos > 0 ? Math.max(0, slewNanos - slewed) : Math.min(0, slewNanos + slewed);
+			return offsetAt(monotonicNanos) + remaining;
+		}
+
+		/**
+		 * @return server time minus the local wall time, now
+		 */
+		public double getWallOffsetMillis()
+		{
+			long now = System.nanoTime();
+			return (now + slewedOffsetAt(now)) / 1e6 - System.currentTimeMillis();
+		}
+
+		/**
+		 * @return rate of the server's clock relative to the monotonic clock, in parts per million
+		 */
+		public double getDriftPpm()
+		{
+			return drift * 1e6;
+		}
+
+		/**
+		 * @return RMS residual of the accepted samples to the fit
+		 */
+		public double getJitterMillis()
+		{
+			return jitterNanos / 1e6;
+		}
+
+		/**
+		 * @return round trip delay of the latest accepted sample
+		 */
+		public double getDelayMillis()
+		{
+			return delayNanos / 1e6;
+		}
+
+		public int getSamples()
+		{
+			return samples;
+		}
+
+		/**
+		 * @return time since the latest accepted sample
+		 */
+		public double getAgeSeconds()
+		{
+			return (System.nanoTime() - referenceNanos) / 1e9;
+		}
+	}
+}
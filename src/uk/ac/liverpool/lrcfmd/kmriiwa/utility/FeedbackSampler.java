@@ -0,0 +1,333 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.ros.message.MessageFactory;
+import org.ros.message.Time;
+import org.ros.node.NodeConfiguration;
+import org.ros.time.TimeProvider;
+
+import actionlib_msgs.GoalStatus;
+import control_msgs.FollowJointTrajectoryActionFeedback;
+import control_msgs.FollowJointTrajectoryActionGoal;
+import trajectory_msgs.JointTrajectoryPoint;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ActionServerNode;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.RobotState;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.RobotStateSampler;
+
+/**
+ * Publishes FollowJointTrajectory feedback at a fixed rate while a goal is
+ * executed. The actual point is the joint state of the current cycle, and the
+ * error is the desired point minus the actual one. If the goal is executed
+ * with its timing, the desired point is interpolated from the goal's timing.
+ * Otherwise the arm runs through the points at a constant velocity, so the
+ * desired position is the closest one on the path ahead, and the desired and
+ * error velocities are left empty.
+ * Feedback is sent without taking the ActionServerNode monitor.
+ */
+public class FeedbackSampler {
+
+	private static final int NUM_JOINTS = 7;
+	private static final double[] NO_VELOCITIES = new double[0];
+	// Segments of the path searched ahead of the last closest one, when the goal is executed without its timing
+	private static final int PATH_LOOKAHEAD = 50;
+
+	// Goal being executed, immutable apart from the cursor used by the sampler thread
+	private static class ActiveGoal
+	{
+		private final String goalId;
+		private final List<String> jointNames;
+		private final double[] times;
+		private final double[][] positions;
+		private final double[][] velocities;
+		private final long startNanos;
+		private final boolean timed;
+		private int cursor = 0;
+
+		private ActiveGoal(FollowJointTrajectoryActionGoal goal, boolean timed)
+		{
+			this.timed = timed;
+			goalId = goal.getGoalId().getId();
+			jointNames = goal.getGoal().getTrajectory().getJointNames();
+			List<JointTrajectoryPoint> points = goal.getGoal().getTrajectory().getPoints();
+			times = new double[points.size()];
+			positions = new double[points.size()][];
+			velocities = new double[points.size()][];
+			for (int i = 0; i < points.size(); i++)
+			{
+				times[i] = points.get(i).getTimeFromStart().totalNsecs() / 1e9;
+				positions[i] = points.get(i).getPositions();
+				velocities[i] = points.get(i).getVelocities();
+			}
+			startNanos = System.nanoTime();
+		}
+	}
+
+	private ActionServerNode actionServer;
+	private RobotStateSampler stateSampler;
+	private TimeProvider time;
+	private long periodNanos;
+	private ScheduledExecutorService executor = null;
+	private volatile ActiveGoal activeGoal = null;
+
+	private MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+	private MessageRing<FollowJointTrajectoryActionFeedback> feedbackRing;
+	// previous actual sample, used to estimate the actual velocities
+	private final double[] previousActual = new double[NUM_JOINTS];
+	private final double[] actualPositions = new double[NUM_JOINTS];
+	private long previousActualNanos = 0;
+
+	public FeedbackSampler(ActionServerNode actionServer, RobotStateSampler stateSampler, TimeProvider timeProvider, double rateHz)
+	{
+		this.actionServer = actionServer;
+		this.stateSampler = stateSampler;
+		this.time = timeProvider;
+		this.periodNanos = Math.round(1e9 / rateHz);
+
+		feedbackRing = new MessageRing<FollowJointTrajectoryActionFeedback>(messageFactory, FollowJointTrajectoryActionFeedback._TYPE);
+		for (int i = 0; i < feedbackRing.size(); i++)
+		{
+			FollowJointTrajectoryActionFeedback feedback = feedbackRing.get(i);
+			initPoint(feedback.getFeedback().getDesired());
+			initPoint(feedback.getFeedback().getActual());
+			initPoint(feedback.getFeedback().getError());
+			feedback.getStatus().setStatus(GoalStatus.ACTIVE);
+		}
+	}
+
+	private static void initPoint(JointTrajectoryPoint point)
+	{
+		point.setPositions(new double[NUM_JOINTS]);
+		point.setVelocities(new double[NUM_JOINTS]);
+	}
+
+	public synchronized void start()
+	{
+		if (executor != null)
+		{
+			return;
+		}
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "trajectory-feedback");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run()
+			{
+				sample();
+			}
+		}, 0, periodNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Starts sampling feedback for a goal whose execution was just submitted.
+	 * @param timed true if the goal is executed with its timing, false if at a constant velocity
+	 */
+	public void startGoal(FollowJointTrajectoryActionGoal goal, boolean timed)
+	{
+		activeGoal = new ActiveGoal(goal, timed);
+	}
+
+	/**
+	 * Stops sampling feedback for the given goal, if it is still the active one.
+	 */
+	public void stopGoal(String goalId)
+	{
+		ActiveGoal goal = activeGoal;
+		if (goal != null && goal.goalId.equals(goalId))
+		{
+			activeGoal = null;
+		}
+	}
+
+	private void sample()
+	{
+		ActiveGoal goal = activeGoal;
+		if (goal == null || goal.times.length == 0)
+		{
+			previousActualNanos = 0;
+			return;
+		}
+		try
+		{
+			long now = System.nanoTime();
+			FollowJointTrajectoryActionFeedback feedback = feedbackRing.next();
+			JointTrajectoryPoint desired = feedback.getFeedback().getDesired();
+			JointTrajectoryPoint actual = feedback.getFeedback().getActual();
+			JointTrajectoryPoint error = feedback.getFeedback().getError();
+
+			double elapsed = (now - goal.startNanos) / 1e9;
+			// velocities are estimated over the times the joints were sampled at
+			RobotState state = stateSampler.getJoints();
+			System.arraycopy(state.jointPositions, 0, actualPositions, 0, Math.min(NUM_JOINTS, state.jointPositions.length));
+			double dt = previousActualNanos != 0 ? (state.jointsNanos - previousActualNanos) / 1e9 : 0;
+
+			// the ring's messages are reused, so their velocity arrays are set back when the mode changes
+			setVelocitiesShown(desired, goal.timed);
+			setVelocitiesShown(error, goal.timed);
+			if (goal.timed)
+			{
+				interpolateDesired(goal, elapsed, desired);
+			}
+			else
+			{
+				projectOnPath(goal, actualPositions, desired);
+			}
+			for (int j = 0; j < NUM_JOINTS; j++)
+			{
+				actual.getPositions()[j] = actualPositions[j];
+				actual.getVelocities()[j] = dt > 0 ? (actualPositions[j] - previousActual[j]) / dt : 0;
+				error.getPositions()[j] = desired.getPositions()[j] - actual.getPositions()[j];
+				if (goal.timed)
+				{
+					error.getVelocities()[j] = desired.getVelocities()[j] - actual.getVelocities()[j];
+				}
+				previousActual[j] = actualPositions[j];
+			}
+			previousActualNanos = state.jointsNanos;
+			setTimeFromStart(desired, elapsed);
+			setTimeFromStart(actual, elapsed);
+			setTimeFromStart(error, 0);
+
+			Time stamp = time.getCurrentTime();
+			feedback.getHeader().setStamp(stamp);
+			feedback.getFeedback().getHeader().setStamp(stamp);
+			feedback.getFeedback().setJointNames(goal.jointNames);
+			feedback.getStatus().getGoalId().setId(goal.goalId);
+			actionServer.sendFeedback(feedback);
+		}
+		catch (Exception e)
+		{
+			Logger.warn("Couldn't publish trajectory feedback: " + e.toString());
+		}
+	}
+
+	private static void interpolateDesired(ActiveGoal goal, double elapsed, JointTrajectoryPoint desired)
+	{
+		int last = goal.times.length - 1;
+		// the cursor only moves forward as time does
+		while (goal.cursor < last && goal.times[goal.cursor + 1] <= elapsed)
+		{
+			goal.cursor++;
+		}
+		int i = goal.cursor;
+		double ratio = 0;
+		int next = i;
+		if (i < last && elapsed > goal.times[i])
+		{
+			next = i + 1;
+			ratio = (elapsed - goal.times[i]) / (goal.times[next] - goal.times[i]);
+		}
+		for (int j = 0; j < NUM_JOINTS; j++)
+		{
+			desired.getPositions()[j] = interpolate(goal.positions[i], goal.positions[next], j, ratio);
+			desired.getVelocities()[j] = interpolate(goal.velocities[i], goal.velocities[next], j, ratio);
+		}
+	}
+
+	/**
+	 * Sets the desired position to the closest one to the actual position on the
+	 * path through the goal's points, searched ahead of the previous closest segment.
+	 */
+	private static void projectOnPath(ActiveGoal goal, double[] actual, JointTrajectoryPoint desired)
+	{
+		int last = goal.positions.length - 1;
+		int bestSegment = goal.cursor;
+		double bestRatio = 0;
+		double bestDistance = Double.MAX_VALUE;
+		for (int i = goal.cursor; i <= last && i <= goal.cursor + PATH_LOOKAHEAD; i++)
+		{
+			int next = Math.min(i + 1, last);
+			// ratio of the projection of the actual position on the segment from point i to the next one
+			double dot = 0;
+			double length = 0;
+			for (int j = 0; j < NUM_JOINTS; j++)
+			{
+				double direction = position(goal.positions[next], j) - position(goal.positions[i], j);
+				dot += (actual[j] - position(goal.positions[i], j)) * direction;
+				length += direction * direction;
+			}
+			double ratio = length > 0 ? Math.max(0, Math.min(1, dot / length)) : 0;
+			double distance = 0;
+			for (int j = 0; j < NUM_JOINTS; j++)
+			{
+				double difference = actual[j] - interpolate(goal.positions[i], goal.positions[next], j, ratio);
+				distance += difference * difference;
+			}
+			if (distance < bestDistance)
+			{
+				bestDistance = distance;
+				bestSegment = i;
+				bestRatio = ratio;
+			}
+		}
+		// the arm only moves forward along the path
+		goal.cursor = bestSegment;
+		int next = Math.min(bestSegment + 1, last);
+		for (int j = 0; j < NUM_JOINTS; j++)
+		{
+			desired.getPositions()[j] = interpolate(goal.positions[bestSegment], goal.positions[next], j, bestRatio);
+		}
+	}
+
+	private static void setVelocitiesShown(JointTrajectoryPoint point, boolean shown)
+	{
+		if (!shown)
+		{
+			point.setVelocities(NO_VELOCITIES);
+		}
+		else if (point.getVelocities().length != NUM_JOINTS)
+		{
+			point.setVelocities(new double[NUM_JOINTS]);
+		}
+	}
+
+	private static double position(double[] point, int j)
+	{
+		return j < point.length ? point[j] : 0;
+	}
+
+	private static double interpolate(double[] from, double[] to, int j, double ratio)
+	{
+		if (j >= from.length || j >= to.length)
+		{
+			return 0;
+		}
+		return from[j] + (to[j] - from[j]) * ratio;
+	}
+
+	private static void setTimeFromStart(JointTrajectoryPoint point, double seconds)
+	{
+		long nanos = (long) (seconds * 1e9);
+		point.getTimeFromStart().secs = (int) (nanos / 1000000000L);
+		point.getTimeFromStart().nsecs = (int) (nanos % 1000000000L);
+	}
+
+	public synchronized void shutdown()
+	{
+		activeGoal = null;
+		if (executor != null)
+		{
+			executor.shutdown();
+			try
+			{
+				executor.awaitTermination(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e)
+			{
+				executor.shutdownNow();
+			}
+			executor = null;
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.StreamPublisher;
+
+/**
+ * Publishes the count, p50, p99 and maximum of every registered latency over
+ * the last report period, as a Float64MultiArray with a row per latency.
+ * The first dimension of the layout is labelled with the comma separated
+ * latency names, the second with the column names.
+ */
+public class LatencyDiagnostics implements Runnable {
+
+	private static final String COLUMNS = "count,p50_ms,p99_ms,max_ms";
+
+	private final StreamPublisher<std_msgs.Float64MultiArray> publisher;
+	private final MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+	// Windows of the latencies, sorted by name
+	private final Map<String, LatencyWindow> windowsByName = new HashMap<String, LatencyWindow>();
+	private List<LatencyWindow> windows = new ArrayList<LatencyWindow>();
+	private String names = "";
+
+	public LatencyDiagnostics(StreamPublisher<std_msgs.Float64MultiArray> publisher)
+	{
+		this.publisher = publisher;
+	}
+
+	@Override
+	public void run()
+	{
+		// latencies are registered lazily, pick up the ones added since the last report
+		if (Metrics.latencyCount() != windowsByName.size())
+		{
+			updateWindows();
+		}
+
+		double[] data = new double[windows.size() * 4];
+		int index = 0;
+		for (LatencyWindow window : windows)
+		{
+			window.update();
+			data[index++] = window.getCount();
+			data[index++] = window.getP50Millis();
+			data[index++] = window.getP99Millis();
+			data[index++] = window.getMaxMillis();
+		}
+
+		std_msgs.Float64MultiArray msg = messageFactory.newFromType(std_msgs.Float64MultiArray._TYPE);
+		List<std_msgs.MultiArrayDimension> dims = new ArrayList<std_msgs.MultiArrayDimension>();
+		dims.add(newDimension(names, windows.size(), data.length));
+		dims.add(newDimension(COLUMNS, 4, 4));
+		msg.getLayout().setDim(dims);
+		msg.setData(data);
+		publisher.publish(msg);
+	}
+
+	private void updateWindows()
+	{
+		List<LatencyWindow> sortedWindows = new ArrayList<LatencyWindow>();
+		StringBuilder nameList = new StringBuilder();
+		for (LatencyStats stats : Metrics.latencies())
+		{
+			LatencyWindow window = windowsByName.get(stats.getName());
+			if (window == null)
+			{
+				window = new LatencyWindow(stats);
+				windowsByName.put(stats.getName(), window);
+			}
+			sortedWindows.add(window);
+			if (nameList.length() > 0)
+			{
+				nameList.append(',');
+			}
+			nameList.append(stats.getName());
+		}
+		windows = sortedWindows;
+		names = nameList.toString();
+	}
+
+	private std_msgs.MultiArrayDimension newDimension(String label, int size, int stride)
+	{
+		std_msgs.MultiArrayDimension dim = messageFactory.newFromType(std_msgs.MultiArrayDimension._TYPE);
+		dim.setLabel(label);
+		dim.setSize(size);
+		dim.setStride(stride);
+		return dim;
+	}
+}
@@ -0,0 +1,160 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free count, mean, maximum and histogram of a latency measured in nanoseconds.
+ * Recording doesn't allocate, the histogram has a fixed size.
+ */
+public class LatencyStats {
+
+	// Log-linear histogram: values below SUB_BUCKETS ns get a bucket each, above that every
+	// power of two is split into SUB_BUCKETS buckets, so a bucket is at most 1/16 of its values wide
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values from 2^40 ns (about 18 min) on share the last bucket
+	private static final int MAX_EXPONENT = 40;
+	public static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + 1;
+
+	private final String name;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+	private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+	public LatencyStats(String name)
+	{
+		this.name = name;
+	}
+
+	public void record(long nanos)
+	{
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos))
+		{
+			max = maxNanos.get();
+		}
+		// after the maximum, so that a maximum read after a snapshot covers every value in it
+		histogram.incrementAndGet(bucketIndex(nanos));
+	}
+
+	public String getName()
+	{
+		return name;
+	}
+
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	public double getMeanMillis()
+	{
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / (n * 1e6);
+	}
+
+	public double getMaxMillis()
+	{
+		return maxNanos.get() / 1e6;
+	}
+
+	public long getMaxNanos()
+	{
+		return maxNanos.get();
+	}
+
+	/**
+	 * Copies the bucket counts of the histogram into counts, which must hold BUCKETS values.
+	 * Buckets are copied one by one, concurrent records may be partly included.
+	 */
+	public void snapshot(long[] counts)
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			counts[i] = histogram.get(i);
+		}
+	}
+
+	public String summary()
+	{
+		long[] counts = new long[BUCKETS];
+		snapshot(counts);
+		long total = sum(counts);
+		long max = maxNanos.get();
+		return String.format("%s: n=%d mean=%.3f ms p50=%.3f ms p99=%.3f ms max=%.3f ms", name, getCount(), getMeanMillis(),
+				percentileNanos(counts, total, 0.5, max) / 1e6, percentileNanos(counts, total, 0.99, max) / 1e6, max / 1e6);
+	}
+
+	static int bucketIndex(long nanos)
+	{
+		if (nanos < SUB_BUCKETS)
+		{
+			return nanos < 0 ? 0 : (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		if (exponent >= MAX_EXPONENT)
+		{
+			return BUCKETS - 1;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return (shift + 1) * SUB_BUCKETS + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @return the largest value that falls in the bucket
+	 */
+	static long bucketUpperBound(int index)
+	{
+		if (index < SUB_BUCKETS)
+		{
+			return index;
+		}
+		if (index >= BUCKETS - 1)
+		{
+			return Long.MAX_VALUE;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	static long sum(long[] counts)
+	{
+		long total = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			total += counts[i];
+		}
+		return total;
+	}
+
+	/**
+	 * @param counts bucket counts
+	 * @param total sum of the bucket counts
+	 * @param quantile between 0 and 1
+	 * @param maxNanos known maximum, caps the bucket bound returned
+	 * @return upper bound of the bucket holding the quantile, 0 if there are no values
+	 */
+	static long percentileNanos(long[] counts, long total, double quantile, long maxNanos)
+	{
+		if (total <= 0)
+		{
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++)
+		{
+			seen += counts[i];
+			if (seen >= rank)
+			{
+				return Math.min(bucketUpperBound(i), maxNanos);
+			}
+		}
+		return maxNanos;
+	}
+}
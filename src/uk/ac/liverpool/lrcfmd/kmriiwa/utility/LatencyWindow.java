@@ -0,0 +1,79 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+/**
+ * Latencies recorded by a LatencyStats between two calls of update(), for
+ * periodic reports. The buffers are preallocated, update() doesn't allocate.
+ * A window must only be used by one thread.
+ */
+public class LatencyWindow {
+
+	private final LatencyStats stats;
+	private final long[] previous = new long[LatencyStats.BUCKETS];
+	private final long[] current = new long[LatencyStats.BUCKETS];
+
+	// Results of the last update
+	private long count = 0;
+	private long p50Nanos = 0;
+	private long p99Nanos = 0;
+	private long maxNanos = 0;
+
+	public LatencyWindow(LatencyStats stats)
+	{
+		this.stats = stats;
+		stats.snapshot(previous);
+	}
+
+	/**
+	 * Computes the percentiles and maximum of the latencies recorded since the last update.
+	 */
+	public void update()
+	{
+		stats.snapshot(current);
+		long allTimeMax = stats.getMaxNanos();
+		int highest = -1;
+		long total = 0;
+		for (int i = 0; i < current.length; i++)
+		{
+			long recorded = current[i] - previous[i];
+			previous[i] = current[i];
+			current[i] = recorded;
+			if (recorded > 0)
+			{
+				total += recorded;
+				highest = i;
+			}
+		}
+		count = total;
+		p50Nanos = LatencyStats.percentileNanos(current, total, 0.5, allTimeMax);
+		p99Nanos = LatencyStats.percentileNanos(current, total, 0.99, allTimeMax);
+		maxNanos = highest < 0 ? 0 : Math.min(LatencyStats.bucketUpperBound(highest), allTimeMax);
+	}
+
+	public String getName()
+	{
+		return stats.getName();
+	}
+
+	public long getCount()
+	{
+		return count;
+	}
+
+	public double getP50Millis()
+	{
+		return p50Nanos / 1e6;
+	}
+
+	public double getP99Millis()
+	{
+		return p99Nanos / 1e6;
+	}
+
+	/**
+	 * @return the maximum of the window, to within the width of its histogram bucket
+	 */
+	public double getMaxMillis()
+	{
+		return maxNanos / 1e6;
+	}
+}
@@ -0,0 +1,59 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free holder of the latest sample of a stream. A single producer
+ * thread puts samples, any number of readers can poll it without blocking
+ * and use the sequence number to tell whether a sample is new to them.
+ */
+public class LatestSampleSlot<T> {
+
+	public static class Sample<T>
+	{
+		public final T value;
+		public final long sequence;
+		public final long receivedNanos;
+
+		private Sample(T value, long sequence, long receivedNanos)
+		{
+			this.value = value;
+			this.sequence = sequence;
+			this.receivedNanos = receivedNanos;
+		}
+	}
+
+	private final AtomicReference<Sample<T>> latest = new AtomicReference<Sample<T>>();
+	// only written by the producer thread
+	private long sequence = 0;
+
+	public void put(T value)
+	{
+		sequence++;
+		latest.set(new Sample<T>(value, sequence, System.nanoTime()));
+	}
+
+	public Sample<T> get()
+	{
+		return latest.get();
+	}
+
+	/**
+	 * @param lastSequence sequence number of the last sample seen by the caller
+	 * @return the latest sample if it is newer than lastSequence, otherwise null
+	 */
+	public Sample<T> getIfNewer(long lastSequence)
+	{
+		Sample<T> sample = latest.get();
+		if (sample != null && sample.sequence > lastSequence)
+		{
+			return sample;
+		}
+		return null;
+	}
+
+	public void clear()
+	{
+		latest.set(null);
+	}
+}
@@ -0,0 +1,13 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+/**
+ * Destination of the messages logged through Logger, e.g. the Sunrise task logger.
+ */
+public interface LogSink {
+
+	void info(String message);
+
+	void warn(String message);
+
+	void error(String message);
+}
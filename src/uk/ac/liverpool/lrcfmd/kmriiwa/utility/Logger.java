@@ -1,29 +1,51 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
 
-import com.kuka.task.ITaskLogger;
-
 public class Logger {
 	
-	private static ITaskLogger sunriseLogger = null;
+	// Logs to the console until a sink is set, e.g. when running off the controller
+	private static volatile LogSink sink = new LogSink() {
+		@Override
+		public void info(String message)
+		{
+			System.out.println("INFO " + message);
+		}
+
+		@Override
+		public void warn(String message)
+		{
+			System.out.println("WARN " + message);
+		}
+
+		@Override
+		public void error(String message)
+		{
+			System.err.println("ERROR " + message);
+		}
+	};
 	
-	public static void setLogger(ITaskLogger logger) 
+	public static void setLogger(LogSink logger) 
 	{
-	    sunriseLogger = logger;
+	    sink = logger;
     }
 	
+	public static LogSink getLogger()
+	{
+		return sink;
+	}
+	
 	public static void info(String message) 
 	{
-		sunriseLogger.info(message);
+		sink.info(message);
 	}
 	
 	public static void warn(String message) 
 	{
-		sunriseLogger.warn(message);
+		sink.warn(message);
 	}
 	
 	public static void error(String message) 
 	{
-		sunriseLogger.error(message);
+		sink.error(message);
 	}
 
-}
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import org.ros.message.MessageFactory;
+
+/**
+ * Fixed ring of preallocated messages of one type, handed out in turn so
+ * that message generation doesn't allocate in steady state.
+ *
+ * rosjava serializes published messages asynchronously from a queue that
+ * holds at most 16 messages, so an instance can only be reused once it has
+ * left that queue. The default depth leaves a wide margin over that bound.
+ * A ring must only be used by one producer thread.
+ */
+public class MessageRing<T> {
+
+	public static final int DEFAULT_DEPTH = 32;
+
+	private final Object[] messages;
+	private int next = 0;
+
+	public MessageRing(MessageFactory messageFactory, String messageType)
+	{
+		this(messageFactory, messageType, DEFAULT_DEPTH);
+	}
+
+	public MessageRing(MessageFactory messageFactory, String messageType, int depth)
+	{
+		messages = new Object[depth];
+		for (int i = 0; i < depth; i++)
+		{
+			messages[i] = messageFactory.newFromType(messageType);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public T next()
+	{
+		T msg = (T) messages[next];
+		next = (next + 1) % messages.length;
+		return msg;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int index)
+	{
+		return (T) messages[index];
+	}
+
+	public int size()
+	{
+		return messages.length;
+	}
+}
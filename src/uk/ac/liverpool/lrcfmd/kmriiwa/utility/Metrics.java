@@ -0,0 +1,77 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of the bridge's named latency statistics and counters.
+ * Lookups should be done once and the returned objects kept by the caller.
+ */
+public class Metrics {
+
+	private static final ConcurrentMap<String, LatencyStats> latencies = new ConcurrentHashMap<String, LatencyStats>();
+	private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+	public static LatencyStats latency(String name)
+	{
+		LatencyStats stats = latencies.get(name);
+		if (stats == null)
+		{
+			LatencyStats newStats = new LatencyStats(name);
+			stats = latencies.putIfAbsent(name, newStats);
+			if (stats == null)
+			{
+				stats = newStats;
+			}
+		}
+		return stats;
+	}
+
+	public static AtomicLong counter(String name)
+	{
+		AtomicLong counter = counters.get(name);
+		if (counter == null)
+		{
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+			if (counter == null)
+			{
+				counter = newCounter;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * @return the registered latencies, sorted by name
+	 */
+	public static List<LatencyStats> latencies()
+	{
+		return new ArrayList<LatencyStats>(new TreeMap<String, LatencyStats>(latencies).values());
+	}
+
+	public static int latencyCount()
+	{
+		return latencies.size();
+	}
+
+	/**
+	 * Logs all latencies and counters, sorted by name.
+	 */
+	public static void logReport()
+	{
+		for (LatencyStats stats : new TreeMap<String, LatencyStats>(latencies).values())
+		{
+			Logger.info(stats.summary());
+		}
+		for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(counters).entrySet())
+		{
+			Logger.info(counter.getKey() + ": " + counter.getValue().get());
+		}
+	}
+}
@@ -1,51 +1,97 @@
 package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
 
-import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.PublicationNode;
-import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.ToolNode;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
-import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRMsgGenerator;
-
-public class PublisherTask implements Runnable {
-	
-	private PublicationNode publisher = null;
-	private LBRMsgGenerator lbrMsgGenerator = null;
-	private KMRMsgGenerator kmrMsgGenerator = null;
-	
-	public PublisherTask(PublicationNode publisher, LBRMsgGenerator lbrMsgGenerator, KMRMsgGenerator kmrMsgGenerator)
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.Stream;
+import uk.ac.liverpool.lrcfmd.kmriiwa.nodes.StreamPublisher;
+
+/**
+ * Publishes the messages of one stream, run by the stream's publishing lane.
+ * The task is bound to the stream's publishing handle and to the source of
+ * its messages when it is created. It holds no state between runs, so a task
+ * run after another one (e.g. the merged scan after each laser) can be run
+ * from several lanes.
+ */
+public class PublisherTask<T extends org.ros.internal.message.Message> implements Runnable {
+
+	/**
+	 * Generator of the messages of a stream.
+	 */
+	public interface MessageSource<T>
+	{
+		/**
+		 * @return the next message to publish, or null if there is none, e.g. no new
+		 * sensor sample arrived or the status didn't change and the heartbeat isn't due
+		 */
+		T nextMessage();
+	}
+
+	private final Stream stream;
+	private final StreamPublisher<T> publisher;
+	private final MessageSource<T> source;
+	// Set if every run publishes messages until the source has none left
+	private boolean publishAll = false;
+	// Run after each message published by this task
+	private PublisherTask<?> followingTask = null;
+
+	// Time to generate and stamp a message, and to hand it to the publisher
+	private final LatencyStats generateLatency;
+	private final LatencyStats publishLatency;
+
+	public PublisherTask(Stream stream, StreamPublisher<T> publisher, MessageSource<T> source)
 	{
+		this.stream = stream;
 		this.publisher = publisher;
-		this.lbrMsgGenerator = lbrMsgGenerator;
-		this.kmrMsgGenerator = kmrMsgGenerator;
+		this.source = source;
+		generateLatency = Metrics.latency(stream.name().toLowerCase() + "_generate");
+		publishLatency = Metrics.latency(stream.name().toLowerCase() + "_publish");
+	}
+
+	/**
+	 * Makes every run publish messages until the source has none left, so that a late
+	 * run catches up, e.g. with the complete batches of joint telemetry. Must be set
+	 * before the task is run.
+	 */
+	public void setPublishAll(boolean publishAll)
+	{
+		this.publishAll = publishAll;
+	}
+
+	/**
+	 * Makes this task run another one after each message it published, e.g. the merged
+	 * scan after each scan of a laser. Must be set before the task is run.
+	 */
+	public void setFollowingTask(PublisherTask<?> followingTask)
+	{
+		this.followingTask = followingTask;
 	}
 
 	@Override
 	public void run() {
 		try
 		{
-			sensor_msgs.JointState jsMsg = lbrMsgGenerator.getCurrentJointState();
-			publisher.publish(jsMsg);
-			sensor_msgs.LaserScan lsb1Msg = kmrMsgGenerator.getLaserScan(LaserScanner.LASER_B1);
-			publisher.publish(lsb1Msg);
-			sensor_msgs.LaserScan lsb4Msg = kmrMsgGenerator.getLaserScan(LaserScanner.LASER_B4);
-			publisher.publish(lsb4Msg);
-			nav_msgs.Odometry boMsg = kmrMsgGenerator.getBaseOdometry();
-			publisher.publish(boMsg);
-			publisher.publishTransform(boMsg.getHeader().getFrameId(),
-									   boMsg.getChildFrameId(),
-									   boMsg.getHeader().getStamp().totalNsecs(),
-									   boMsg.getPose().getPose());
-			kmriiwa_msgs.KMRStatus ksMsg = kmrMsgGenerator.getKMRStatus();
-			publisher.publish(ksMsg);
-			kmriiwa_msgs.LBRStatus lsMsg = lbrMsgGenerator.getLBRStatus();
-			publisher.publish(lsMsg);
+			long cycleStartNanos = System.nanoTime();
+			T msg = source.nextMessage();
+			while (msg != null)
+			{
+				long generatedNanos = System.nanoTime();
+				generateLatency.record(generatedNanos - cycleStartNanos);
+				publisher.publish(msg);
+				publishLatency.record(System.nanoTime() - generatedNanos);
+				if (followingTask != null)
+				{
+					followingTask.run();
+				}
+				if (!publishAll)
+				{
+					break;
+				}
+				cycleStartNanos = System.nanoTime();
+				msg = source.nextMessage();
+			}
 		}
 		catch (Exception e)
 		{
-			Logger.error("Publisher task couldn't publish messages");
-			e.printStackTrace();
-			throw new RuntimeException("Publisher task couldn't publish messages");
+			// the publishing scheduler logs the failure and restarts the lane
+			throw new RuntimeException("Publisher task couldn't publish " + stream + " messages", e);
 		}
-
 	}
 }
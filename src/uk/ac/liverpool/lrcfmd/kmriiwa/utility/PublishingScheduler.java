@@ -0,0 +1,198 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs every published stream in its own lane. Each lane owns a single
+ * thread and a period, so a slow stream (e.g. an FDI laser read) can only
+ * delay itself and never adds jitter to the other streams.
+ *
+ * Lanes are supervised: a task that throws, an exception or an error, is logged and run again after a
+ * restart delay that grows with its consecutive failures, instead of being
+ * cancelled for good. A cycle that overruns its deadline doesn't make the
+ * lane run the missed cycles back to back, they are skipped and the lane
+ * waits for the next deadline. Every lane records its execution time and
+ * start jitter as latencies, and counts its overruns, skipped cycles and
+ * failures.
+ */
+public class PublishingScheduler {
+
+	// Restart delay of a failing lane, doubled from its period up to this
+	private static final long MAX_RESTART_DELAY_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private class Lane
+	{
+		private final String name;
+		private final Runnable task;
+		private final long periodNanos;
+		private Thread thread = null;
+		private volatile boolean running = false;
+
+		private final LatencyStats execution;
+		private final LatencyStats jitter;
+		private final AtomicLong overruns;
+		private final AtomicLong skippedCycles;
+		private final AtomicLong failures;
+
+		private Lane(String name, Runnable task, long periodNanos)
+		{
+			this.name = name;
+			this.task = task;
+			this.periodNanos = periodNanos;
+			execution = Metrics.latency("lane_" + name + "_execution");
+			jitter = Metrics.latency("lane_" + name + "_jitter");
+			overruns = Metrics.counter("lane_" + name + "_overruns");
+			skippedCycles = Metrics.counter("lane_" + name + "_skipped");
+			failures = Metrics.counter("lane_" + name + "_failures");
+		}
+	}
+
+	private final List<Lane> lanes = new ArrayList<Lane>();
+	private boolean started = false;
+
+	/**
+	 * Adds a lane that runs the given task at a fixed rate.
+	 * @param name lane name, used to name its thread and metrics
+	 * @param task task executed every period
+	 * @param rateHz lane rate in Hz
+	 */
+	public synchronized void addLane(String name, Runnable task, double rateHz)
+	{
+		if (rateHz <= 0)
+		{
+			throw new IllegalArgumentException("Publishing rate of lane " + name + " must be positive");
+		}
+		Lane lane = new Lane(name, task, Math.round(1e9 / rateHz));
+		lanes.add(lane);
+		if (started)
+		{
+			startLane(lane);
+		}
+	}
+
+	public synchronized void start()
+	{
+		for (Lane lane : lanes)
+		{
+			startLane(lane);
+		}
+		started = true;
+	}
+
+	private void startLane(final Lane lane)
+	{
+		lane.running = true;
+		lane.thread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				runLane(lane);
+			}
+		}, "publisher-" + lane.name);
+		lane.thread.setDaemon(true);
+		Logger.info("Publishing lane " + lane.name + " started at " + (1e9 / lane.periodNanos) + " Hz");
+		lane.thread.start();
+	}
+
+	private void runLane(Lane lane)
+	{
+		long deadline = System.nanoTime();
+		int failuresInRow = 0;
+		while (lane.running)
+		{
+			long wait = deadline - System.nanoTime();
+			if (wait > 0)
+			{
+				// returns early if unparked to stop, the loop checks again
+				LockSupport.parkNanos(wait);
+				continue;
+			}
+
+			long start = System.nanoTime();
+			lane.jitter.record(start - deadline);
+			try
+			{
+				lane.task.run();
+				if (failuresInRow > 0)
+				{
+					Logger.info("Publishing lane " + lane.name + " recovered after " + failuresInRow + " failures");
+					failuresInRow = 0;
+				}
+			}
+			catch (Throwable e)
+			{
+				// errors too (e.g. a NoClassDefFoundError), the lane thread must not die silently
+				lane.failures.incrementAndGet();
+				failuresInRow++;
+				Logger.error("Publishing lane " + lane.name + " failed: " + (e.getCause() != null ? e.getCause() : e));
+			}
+			long end = System.nanoTime();
+			lane.execution.record(end - start);
+
+			if (failuresInRow > 0)
+			{
+				// restart the task later, the failure may be transient (e.g. a node restarting)
+				deadline = end + restartDelay(lane.periodNanos, failuresInRow);
+				continue;
+			}
+			deadline += lane.periodNanos;
+			if (end > deadline)
+			{
+				// skip the missed cycles rather than running them back to back
+				long missed = (end - deadline) / lane.periodNanos + 1;
+				lane.overruns.incrementAndGet();
+				lane.skippedCycles.addAndGet(missed);
+				deadline += missed * lane.periodNanos;
+			}
+		}
+	}
+
+	private static long restartDelay(long periodNanos, int failuresInRow)
+	{
+		long delay = periodNanos;
+		for (int i = 1; i < failuresInRow && delay < MAX_RESTART_DELAY_NANOS; i++)
+		{
+			delay *= 2;
+		}
+		return Math.max(periodNanos, Math.min(delay, MAX_RESTART_DELAY_NANOS));
+	}
+
+	public synchronized void shutdown()
+	{
+		for (Lane lane : lanes)
+		{
+			if (lane.thread != null)
+			{
+				// woken up without interrupting, so that a message being published isn't cut off
+				lane.running = false;
+				LockSupport.unpark(lane.thread);
+			}
+		}
+		for (Lane lane : lanes)
+		{
+			if (lane.thread != null)
+			{
+				try
+				{
+					lane.thread.join(TimeUnit.SECONDS.toMillis(5));
+					if (lane.thread.isAlive())
+					{
+						Logger.warn("Publishing lane " + lane.name + " didn't stop within 5 s");
+					}
+				}
+				catch (InterruptedException e)
+				{
+					Logger.error(e.getMessage());
+					Thread.currentThread().interrupt();
+				}
+				lane.thread = null;
+			}
+		}
+		started = false;
+		Logger.info("Publishing scheduler terminated");
+	}
+}
@@ -0,0 +1,227 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.robot;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.ros.time.WallTimeProvider;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.KMRMsgGenerator.LaserScanner;
+import uk.ac.liverpool.lrcfmd.kmriiwa.sim.SimulatedArm;
+import uk.ac.liverpool.lrcfmd.kmriiwa.sim.SimulatedBase;
+import uk.ac.liverpool.lrcfmd.kmriiwa.sim.SimulatedSensorSource;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.LatestSampleSlot;
+
+/**
+ * Checks the bytes allocated per call by the message generators in steady state.
+ * The generators reuse their messages, so what they still allocate comes from
+ * rosjava and is bounded by the sizes below, on a 64 bit JVM with compressed oops:
+ * rosjava messages are dynamic proxies, so every setter call allocates its
+ * argument array and every primitive value set is boxed, and every stamp is a
+ * new Time from the TimeProvider.
+ */
+public class GeneratorAllocationTest {
+
+	// Object[1] holding the argument of a message setter
+	private static final long SETTER_ARGS = 24;
+	// Double boxed by a message setter
+	private static final long BOXED_DOUBLE = 24;
+	// Time returned by the TimeProvider for a stamp
+	private static final long TIME = 24;
+	// Sample put in a LatestSampleSlot by the ingestion thread, done by the tests themselves
+	private static final long SAMPLE = 32;
+	// Setting a stamp on a header
+	private static final long STAMP = TIME + SETTER_ARGS;
+
+	private static final int WARMUP_CALLS = 20000;
+	private static final int MEASURED_CALLS = 20000;
+
+	private static final com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private final float[] ranges = new float[541];
+	private final OdometrySample odometry = new OdometrySample(1.5, -0.5, 0.3, 0.2, 0.0, 0.1);
+	private SimulatedArm arm;
+	private SimulatedBase base;
+	private KMRMsgGenerator kmrGenerator;
+
+	// results are written here so the JIT can't remove the calls
+	private volatile Object sink;
+
+	@Before
+	public void setUp()
+	{
+		arm = new SimulatedArm();
+		base = new SimulatedBase();
+		// the ingestion threads aren't started, the tests put the sensor samples
+		kmrGenerator = new KMRMsgGenerator(new RobotStateSampler(arm, base), new SimulatedSensorSource(base, 25, 50),
+				"kmriiwa", new WallTimeProvider());
+		for (int i = 0; i < ranges.length; i++)
+		{
+			ranges[i] = 2.0f + (i % 50) * 0.1f;
+		}
+	}
+
+	@After
+	public void tearDown()
+	{
+		kmrGenerator.close();
+	}
+
+	@Test
+	public void jointStateOnlyAllocatesItsStamp()
+	{
+		final LBRMsgGenerator generator = new LBRMsgGenerator(arm, new RobotStateSampler(arm, base), "kmriiwa", new WallTimeProvider());
+		assertAllocatesAtMost("getCurrentJointState", STAMP, new Runnable() {
+			@Override
+			public void run()
+			{
+				sink = generator.getCurrentJointState();
+			}
+		});
+	}
+
+	@Test
+	public void laserScanOnlyAllocatesItsStamp()
+	{
+		final LatestSampleSlot<float[]> slot = kmrGenerator.getSensorIngestion().getLaserSlot(LaserScanner.LASER_B1);
+		assertAllocatesAtMost("getLaserScan", SAMPLE + STAMP, new Runnable() {
+			@Override
+			public void run()
+			{
+				slot.put(ranges);
+				sink = kmrGenerator.getLaserScan(LaserScanner.LASER_B1);
+			}
+		});
+		assertNotNull(sink);
+	}
+
+	@Test
+	public void mergedLaserScanOnlyAllocatesItsStamp()
+	{
+		final LatestSampleSlot<float[]> frontSlot = kmrGenerator.getSensorIngestion().getLaserSlot(LaserScanner.LASER_B1);
+		final LatestSampleSlot<float[]> backSlot = kmrGenerator.getSensorIngestion().getLaserSlot(LaserScanner.LASER_B4);
+		assertAllocatesAtMost("getMergedLaserScan", 2 * SAMPLE + STAMP, new Runnable() {
+			@Override
+			public void run()
+			{
+				frontSlot.put(ranges);
+				backSlot.put(ranges);
+				sink = kmrGenerator.getMergedLaserScan();
+			}
+		});
+		assertNotNull(sink);
+	}
+
+	@Test
+	public void odometryAllocatesItsStampAndChangingValues()
+	{
+		final LatestSampleSlot<OdometrySample> slot = kmrGenerator.getSensorIngestion().getOdometrySlot();
+		// x, y, the yaw quaternion's z and w, and the planar velocities
+		long changingValues = 7;
+		assertAllocatesAtMost("getBaseOdometry", SAMPLE + STAMP + changingValues * (SETTER_ARGS + BOXED_DOUBLE), new Runnable() {
+			@Override
+			public void run()
+			{
+				slot.put(odometry);
+				sink = kmrGenerator.getBaseOdometry();
+			}
+		});
+		assertNotNull(sink);
+	}
+
+	@Test
+	public void transformsOfStillArmAllocateTheirStampsAndOdometry()
+	{
+		final TFMsgGenerator generator = new TFMsgGenerator(new RobotStateSampler(arm, base), kmrGenerator, "kmriiwa",
+				new WallTimeProvider(), true);
+		final LatestSampleSlot<OdometrySample> slot = kmrGenerator.getSensorIngestion().getOdometrySlot();
+		// one Time shared by the link and odometry headers, x, y and the yaw quaternion's z and
+		// w of the odometry, and the transform list set on the message
+		long headers = LBRKinematics.JOINT_COUNT + 1;
+		long bound = SAMPLE + TIME + headers * SETTER_ARGS + 4 * (SETTER_ARGS + BOXED_DOUBLE) + SETTER_ARGS;
+		assertAllocatesAtMost("getTransforms", bound, new Runnable() {
+			@Override
+			public void run()
+			{
+				slot.put(odometry);
+				sink = generator.getTransforms();
+			}
+		});
+		assertNotNull(sink);
+	}
+
+	@Test
+	public void unchangedStatusAllocatesNothing()
+	{
+		final LBRMsgGenerator lbrGenerator = new LBRMsgGenerator(arm, new RobotStateSampler(arm, base), "kmriiwa", new WallTimeProvider());
+		lbrGenerator.setStatusHeartbeat(3600);
+		kmrGenerator.setStatusHeartbeat(3600);
+		assertNotNull(lbrGenerator.getLBRStatus());
+		assertNotNull(kmrGenerator.getKMRStatus());
+		assertAllocatesAtMost("unchanged getLBRStatus and getKMRStatus", 0, new Runnable() {
+			@Override
+			public void run()
+			{
+				sink = lbrGenerator.getLBRStatus();
+				sink = kmrGenerator.getKMRStatus();
+			}
+		});
+		assertNull(sink);
+	}
+
+	@Test
+	public void quaternionConversionAllocatesNothing()
+	{
+		final double[] quaternion = new double[4];
+		assertAllocatesAtMost("euler_to_quaternion", 0, new Runnable() {
+			private double yaw = 0;
+
+			@Override
+			public void run()
+			{
+				yaw += 0.001;
+				KMRMsgGenerator.euler_to_quaternion(0, 0, yaw, quaternion);
+			}
+		});
+	}
+
+	@Test
+	public void laserScanMergeAllocatesNothing()
+	{
+		final LaserScanMerger merger = new LaserScanMerger((float) Math.toRadians(-135), (float) Math.toRadians(0.5), ranges.length,
+				0.12f, 15);
+		final float[][] scans = {ranges, ranges};
+		final float[] merged = new float[720];
+		assertAllocatesAtMost("LaserScanMerger.merge", 0, new Runnable() {
+			@Override
+			public void run()
+			{
+				merger.merge(scans, merged);
+			}
+		});
+	}
+
+	private static void assertAllocatesAtMost(String name, long maxBytesPerCall, Runnable call)
+	{
+		for (int i = 0; i < WARMUP_CALLS; i++)
+		{
+			call.run();
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < MEASURED_CALLS; i++)
+		{
+			call.run();
+		}
+		double bytesPerCall = (threads.getThreadAllocatedBytes(threadId) - before) / (double) MEASURED_CALLS;
+		// the allocation counter itself may allocate a few bytes per measurement
+		assertTrue(name + " allocated " + bytesPerCall + " B per call, at most " + maxBytesPerCall + " B expected",
+				bytesPerCall <= maxBytesPerCall + 0.5);
+	}
+}
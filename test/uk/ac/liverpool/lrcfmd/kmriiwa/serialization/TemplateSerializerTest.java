@@ -0,0 +1,197 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.serialization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+import org.ros.internal.message.MessageBuffers;
+import org.ros.message.MessageFactory;
+import org.ros.message.MessageSerializationFactory;
+import org.ros.message.MessageSerializer;
+import org.ros.message.Time;
+import org.ros.node.NodeConfiguration;
+
+/**
+ * Checks that the template serializers write the same bytes as rosjava's
+ * serializers, including after the constant fields of a stream change and
+ * when a serializer is called from several threads.
+ */
+public class TemplateSerializerTest {
+
+	private static final NodeConfiguration configuration = NodeConfiguration.newPrivate();
+	private static final MessageFactory messageFactory = configuration.getTopicMessageFactory();
+	private static final MessageSerializationFactory stockFactory = configuration.getMessageSerializationFactory();
+	private static final TemplateSerializationFactory templateFactory = new TemplateSerializationFactory(stockFactory);
+
+	private final Random random = new Random(1);
+
+	@Test
+	public void laserScanMatchesStockSerializer()
+	{
+		MessageSerializer<sensor_msgs.LaserScan> serializer = templateFactory.newMessageSerializer(sensor_msgs.LaserScan._TYPE);
+		assertTrue(serializer instanceof LaserScanSerializer);
+		// the last two messages change the geometry and the frame id, so the template is rebuilt
+		assertSameBytes(sensor_msgs.LaserScan._TYPE, serializer, newLaserScan("kmriiwa_laser_B1_link", 2.35f));
+		assertSameBytes(sensor_msgs.LaserScan._TYPE, serializer, newLaserScan("kmriiwa_laser_B1_link", 2.35f));
+		assertSameBytes(sensor_msgs.LaserScan._TYPE, serializer, newLaserScan("kmriiwa_laser_B1_link", 3.14f));
+		assertSameBytes(sensor_msgs.LaserScan._TYPE, serializer, newLaserScan("laser_é", 3.14f));
+	}
+
+	@Test
+	public void jointStateMatchesStockSerializer()
+	{
+		MessageSerializer<sensor_msgs.JointState> serializer = templateFactory.newMessageSerializer(sensor_msgs.JointState._TYPE);
+		assertTrue(serializer instanceof JointStateSerializer);
+		assertSameBytes(sensor_msgs.JointState._TYPE, serializer, newJointState("kmriiwa_joint_"));
+		assertSameBytes(sensor_msgs.JointState._TYPE, serializer, newJointState("kmriiwa_joint_"));
+		assertSameBytes(sensor_msgs.JointState._TYPE, serializer, newJointState("other_joint_"));
+	}
+
+	@Test
+	public void odometryMatchesStockSerializer()
+	{
+		MessageSerializer<nav_msgs.Odometry> serializer = templateFactory.newMessageSerializer(nav_msgs.Odometry._TYPE);
+		assertTrue(serializer instanceof OdometrySerializer);
+		assertSameBytes(nav_msgs.Odometry._TYPE, serializer, newOdometry("kmriiwa_base_footprint"));
+		assertSameBytes(nav_msgs.Odometry._TYPE, serializer, newOdometry("kmriiwa_base_footprint"));
+		assertSameBytes(nav_msgs.Odometry._TYPE, serializer, newOdometry("base_link"));
+	}
+
+	@Test
+	public void concurrentSerializationMatchesStockSerializer() throws InterruptedException
+	{
+		// e.g. a latched message written to a new subscriber while the writer thread publishes,
+		// the frame ids differ so every call rebuilds the template
+		final MessageSerializer<sensor_msgs.LaserScan> serializer = templateFactory.newMessageSerializer(sensor_msgs.LaserScan._TYPE);
+		final sensor_msgs.LaserScan[] messages = {newLaserScan("kmriiwa_laser_B1_link", 2.35f), newLaserScan("kmriiwa_laser_B4_link", 2.35f)};
+		final byte[][] expected = {stockBytes(sensor_msgs.LaserScan._TYPE, messages[0]), stockBytes(sensor_msgs.LaserScan._TYPE, messages[1])};
+		final AtomicInteger mismatches = new AtomicInteger();
+		Thread[] threads = new Thread[messages.length];
+		for (int t = 0; t < threads.length; t++)
+		{
+			final int index = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 2000; i++)
+					{
+						ChannelBuffer buffer = MessageBuffers.dynamicBuffer();
+						serializer.serialize(messages[index], buffer);
+						if (!Arrays.equals(expected[index], toBytes(buffer)))
+						{
+							mismatches.incrementAndGet();
+						}
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		assertTrue(mismatches.get() + " messages serialized concurrently differ from rosjava's serialization", mismatches.get() == 0);
+	}
+
+	private static <T> void assertSameBytes(String messageType, MessageSerializer<T> serializer, T msg)
+	{
+		ChannelBuffer buffer = MessageBuffers.dynamicBuffer();
+		serializer.serialize(msg, buffer);
+		assertArrayEquals(messageType + " serialized differently from rosjava", stockBytes(messageType, msg), toBytes(buffer));
+	}
+
+	private static <T> byte[] stockBytes(String messageType, T msg)
+	{
+		MessageSerializer<T> serializer = stockFactory.newMessageSerializer(messageType);
+		ChannelBuffer buffer = MessageBuffers.dynamicBuffer();
+		serializer.serialize(msg, buffer);
+		return toBytes(buffer);
+	}
+
+	private static byte[] toBytes(ChannelBuffer buffer)
+	{
+		byte[] bytes = new byte[buffer.readableBytes()];
+		buffer.getBytes(buffer.readerIndex(), bytes);
+		return bytes;
+	}
+
+	private sensor_msgs.LaserScan newLaserScan(String frameId, float angleMax)
+	{
+		sensor_msgs.LaserScan msg = messageFactory.newFromType(sensor_msgs.LaserScan._TYPE);
+		msg.getHeader().setSeq(random.nextInt(1000));
+		msg.getHeader().setStamp(new Time(random.nextInt(100000), random.nextInt(1000000000)));
+		msg.getHeader().setFrameId(frameId);
+		msg.setAngleMin(-angleMax);
+		msg.setAngleMax(angleMax);
+		msg.setAngleIncrement((float) Math.toRadians(0.5));
+		msg.setTimeIncrement(0.0001f);
+		msg.setScanTime(0.04f);
+		msg.setRangeMin(0.12f);
+		msg.setRangeMax(15);
+		float[] ranges = new float[541];
+		for (int i = 0; i < ranges.length; i++)
+		{
+			ranges[i] = random.nextFloat() * 15;
+		}
+		ranges[0] = Float.NaN;
+		ranges[1] = Float.POSITIVE_INFINITY;
+		msg.setRanges(ranges);
+		msg.setIntensities(new float[] {1, 2, 3});
+		return msg;
+	}
+
+	private sensor_msgs.JointState newJointState(String namePrefix)
+	{
+		sensor_msgs.JointState msg = messageFactory.newFromType(sensor_msgs.JointState._TYPE);
+		msg.getHeader().setSeq(random.nextInt(1000));
+		msg.getHeader().setStamp(new Time(random.nextInt(100000), random.nextInt(1000000000)));
+		List<String> names = new ArrayList<String>();
+		double[] positions = new double[7];
+		double[] efforts = new double[7];
+		for (int i = 0; i < positions.length; i++)
+		{
+			names.add(namePrefix + (i + 1));
+			positions[i] = random.nextGaussian();
+			efforts[i] = random.nextGaussian() * 10;
+		}
+		msg.setName(names);
+		msg.setPosition(positions);
+		msg.setVelocity(new double[0]);
+		msg.setEffort(efforts);
+		return msg;
+	}
+
+	private nav_msgs.Odometry newOdometry(String childFrameId)
+	{
+		nav_msgs.Odometry msg = messageFactory.newFromType(nav_msgs.Odometry._TYPE);
+		msg.getHeader().setSeq(random.nextInt(1000));
+		msg.getHeader().setStamp(new Time(random.nextInt(100000), random.nextInt(1000000000)));
+		msg.getHeader().setFrameId("kmriiwa_odom");
+		msg.setChildFrameId(childFrameId);
+		msg.getPose().getPose().getPosition().setX(random.nextDouble());
+		msg.getPose().getPose().getPosition().setY(random.nextDouble());
+		msg.getPose().getPose().getOrientation().setZ(0.3);
+		msg.getPose().getPose().getOrientation().setW(Math.sqrt(1 - 0.09));
+		double[] poseCovariance = new double[36];
+		double[] twistCovariance = new double[36];
+		for (int i = 0; i < 36; i += 7)
+		{
+			poseCovariance[i] = random.nextDouble();
+			twistCovariance[i] = random.nextDouble();
+		}
+		msg.getPose().setCovariance(poseCovariance);
+		msg.getTwist().setCovariance(twistCovariance);
+		msg.getTwist().getTwist().getLinear().setX(random.nextDouble());
+		msg.getTwist().getTwist().getLinear().setY(random.nextDouble());
+		msg.getTwist().getTwist().getAngular().setZ(random.nextDouble());
+		return msg;
+	}
+}
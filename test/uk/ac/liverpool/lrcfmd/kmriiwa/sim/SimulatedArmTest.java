@@ -0,0 +1,240 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.sim;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.ros.message.Duration;
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionContainer;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionHandle;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.ArmMotionListener;
+import uk.ac.liverpool.lrcfmd.kmriiwa.robot.LBRCommander;
+import uk.ac.liverpool.lrcfmd.kmriiwa.utility.DestinationReachedListener;
+
+/**
+ * Checks the motions executed by the simulated arm. The tests step the
+ * simulation themselves instead of starting its thread, so the simulated
+ * time doesn't depend on the scheduling of the test machine.
+ */
+public class SimulatedArmTest {
+
+	private static final double STEP_SECONDS = 0.004;
+	// LBR iiwa 14 R820 maximum velocity of joint A1 in rad/s
+	private static final double MAX_A1_VELOCITY = Math.toRadians(85);
+
+	private static final MessageFactory messageFactory = NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+	private final SimulatedArm arm = new SimulatedArm();
+
+	// Simulated arm recording the submitted motions, its controller rejects the given submitted motion, 0 for none
+	private static class RejectingArm extends SimulatedArm
+	{
+		private final int rejectedSubmit;
+		private final List<ArmMotionContainer> submitted = new ArrayList<ArmMotionContainer>();
+		private final List<double[]> submittedAccelerations = new ArrayList<double[]>();
+
+		private RejectingArm(int rejectedSubmit)
+		{
+			this.rejectedSubmit = rejectedSubmit;
+		}
+
+		@Override
+		public synchronized ArmMotionContainer moveAsync(double[][] positions, double[] relVelocities, double[] relAccelerations,
+				double blendingRel, ArmMotionListener listener)
+		{
+			if (submitted.size() + 1 == rejectedSubmit)
+			{
+				throw new IllegalStateException("Motion rejected by the controller");
+			}
+			ArmMotionContainer container = super.moveAsync(positions, relVelocities, relAccelerations, blendingRel, listener);
+			submitted.add(container);
+			submittedAccelerations.add(relAccelerations);
+			return container;
+		}
+	}
+
+	@Test
+	public void zeroRelativeVelocityIsExecutedAtTheLowestVelocity()
+	{
+		assertExecutedAtLowestVelocity(0);
+	}
+
+	@Test
+	public void nanRelativeVelocityIsExecutedAtTheLowestVelocity()
+	{
+		assertExecutedAtLowestVelocity(Double.NaN);
+	}
+
+	@Test
+	public void relativeVelocityAboveOneIsExecutedAtTheMaximumVelocity()
+	{
+		double[] target = {0.5, 0, 0, 0, 0, 0, 0};
+		ArmMotionContainer motion = arm.moveAsync(new double[][] {target}, new double[] {2}, null, 0, null);
+		double duration = 0.5 / MAX_A1_VELOCITY;
+		stepFor(duration - 0.02);
+		assertFalse(motion.isFinished());
+		stepFor(0.04);
+		assertTrue(motion.isFinished());
+		assertArrayEquals(target, getJointPositions(), 1e-9);
+	}
+
+	@Test
+	public void motionsAreExecutedInOrderAndNotifyTheirListener()
+	{
+		final List<ArmMotionContainer> finished = new ArrayList<ArmMotionContainer>();
+		ArmMotionListener listener = new ArmMotionListener() {
+			@Override
+			public void containerFinished(ArmMotionContainer container)
+			{
+				finished.add(container);
+			}
+		};
+		double[] first = {0.1, 0.1, 0, 0, 0, 0, 0};
+		double[] second = {0, 0, 0, 0.2, 0, 0, 0};
+		ArmMotionContainer firstMotion = arm.moveAsync(new double[][] {first}, new double[] {1}, null, 0, listener);
+		ArmMotionContainer secondMotion = arm.moveAsync(new double[][] {second}, new double[] {1}, null, 0, listener);
+		stepFor(1);
+		assertEquals(2, finished.size());
+		assertTrue(finished.get(0) == firstMotion);
+		assertTrue(finished.get(1) == secondMotion);
+		assertArrayEquals(second, getJointPositions(), 1e-9);
+	}
+
+	@Test
+	public void cancelledMotionStopsWhereItIs()
+	{
+		double[] target = {1, 0, 0, 0, 0, 0, 0};
+		ArmMotionContainer motion = arm.moveAsync(new double[][] {target}, new double[] {1}, null, 0, null);
+		stepFor(0.1);
+		motion.cancel();
+		arm.step(STEP_SECONDS);
+		assertTrue(motion.isFinished());
+		double stopped = getJointPositions()[0];
+		assertTrue(stopped > 0 && stopped < 1);
+		stepFor(0.1);
+		assertEquals(stopped, getJointPositions()[0], 0);
+	}
+
+	@Test
+	public void commandedJointPositionIsReached()
+	{
+		LBRCommander commander = new LBRCommander(arm);
+		kmriiwa_msgs.JointPosition position = messageFactory.newFromType(kmriiwa_msgs.JointPosition._TYPE);
+		position.setA1(0.2f);
+		position.setA2(-0.3f);
+		position.setA4(1.1f);
+		position.setA7(-0.5f);
+		ArmMotionHandle motion = commander.moveToJointPosition(position, null);
+		for (int i = 0; i < 10000 && !motion.isFinished(); i++)
+		{
+			arm.step(STEP_SECONDS);
+		}
+		assertTrue(motion.isFinished());
+		assertFalse(commander.isMoving());
+		assertArrayEquals(new double[] {0.2f, -0.3f, 0, 1.1f, 0, 0, -0.5f}, getJointPositions(), 1e-9);
+	}
+
+	@Test
+	public void rejectedSegmentCancelsTheSegmentsAlreadySubmitted()
+	{
+		// 1200 points are submitted as 3 segments, the second one is rejected
+		RejectingArm rejectingArm = new RejectingArm(2);
+		LBRCommander commander = new LBRCommander(rejectingArm);
+		control_msgs.FollowJointTrajectoryActionGoal goal = newTrajectoryGoal(1200);
+		try
+		{
+			commander.followJointTrajectory(goal, new DestinationReachedListener(null));
+			fail("the rejection of the second segment wasn't thrown");
+		}
+		catch (IllegalStateException e)
+		{
+			// expected
+		}
+		assertEquals(1, rejectingArm.submitted.size());
+		rejectingArm.step(STEP_SECONDS);
+		assertTrue(rejectingArm.submitted.get(0).isFinished());
+		double[] positions = new double[rejectingArm.getJointCount()];
+		rejectingArm.getJointPositions(positions);
+		assertArrayEquals(new double[7], positions, 0);
+	}
+
+	@Test
+	public void plannedAccelerationsRaiseTheRelativeAcceleration()
+	{
+		RejectingArm recordingArm = new RejectingArm(0);
+		LBRCommander commander = new LBRCommander(recordingArm);
+		commander.setTrajectoryTiming(true);
+		// 0.1 rad/s on A1, the second point asks for 5 rad/s² on A1, i.e. half the reference acceleration
+		control_msgs.FollowJointTrajectoryActionGoal goal = newTrajectoryGoal(3);
+		goal.getGoal().getTrajectory().getPoints().get(1).setAccelerations(new double[] {5, 0, 0, 0, 0, 0, 0});
+		goal.getGoal().getTrajectory().getPoints().get(2).setAccelerations(new double[] {Double.NaN, 0, 0, 0, 0, 0, 0});
+		commander.followJointTrajectory(goal, new DestinationReachedListener(null));
+		// the first point has no timing to derive its velocity from, so it runs at the default velocity
+		double relVelocity = 0.1 / MAX_A1_VELOCITY;
+		assertArrayEquals(new double[] {0.15, 0.5, relVelocity}, recordingArm.submittedAccelerations.get(0), 1e-9);
+	}
+
+	private static control_msgs.FollowJointTrajectoryActionGoal newTrajectoryGoal(int pointCount)
+	{
+		control_msgs.FollowJointTrajectoryActionGoal goal = messageFactory.newFromType(control_msgs.FollowJointTrajectoryActionGoal._TYPE);
+		goal.getGoalId().setId("goal");
+		trajectory_msgs.JointTrajectory trajectory = goal.getGoal().getTrajectory();
+		List<String> names = new ArrayList<String>();
+		for (int j = 1; j <= 7; j++)
+		{
+			names.add("kmriiwa_joint_" + j);
+		}
+		trajectory.setJointNames(names);
+		List<trajectory_msgs.JointTrajectoryPoint> points = new ArrayList<trajectory_msgs.JointTrajectoryPoint>();
+		for (int i = 0; i < pointCount; i++)
+		{
+			trajectory_msgs.JointTrajectoryPoint point = messageFactory.newFromType(trajectory_msgs.JointTrajectoryPoint._TYPE);
+			double[] positions = new double[7];
+			positions[0] = 0.001 * (i + 1);
+			point.setPositions(positions);
+			point.setTimeFromStart(Duration.fromMillis(10 * (i + 1)));
+			points.add(point);
+		}
+		trajectory.setPoints(points);
+		return goal;
+	}
+
+	private void assertExecutedAtLowestVelocity(double relVelocity)
+	{
+		double[] target = {0.05, 0, 0, 0, 0, 0, 0};
+		ArmMotionContainer motion = arm.moveAsync(new double[][] {target}, new double[] {relVelocity}, null, 0, null);
+		// executed at 1 % of the joint's maximum velocity, as LBRCommander clamps it
+		double duration = 0.05 / (0.01 * MAX_A1_VELOCITY);
+		stepFor(duration - 0.1);
+		assertFalse(motion.isFinished());
+		double position = getJointPositions()[0];
+		assertTrue("A1 at " + position, position > 0 && position < 0.05);
+		stepFor(0.2);
+		assertTrue(motion.isFinished());
+		assertArrayEquals(target, getJointPositions(), 1e-9);
+	}
+
+	private void stepFor(double seconds)
+	{
+		for (int i = 0; i < Math.round(seconds / STEP_SECONDS); i++)
+		{
+			arm.step(STEP_SECONDS);
+		}
+	}
+
+	private double[] getJointPositions()
+	{
+		double[] positions = new double[arm.getJointCount()];
+		arm.getJointPositions(positions);
+		return positions;
+	}
+}
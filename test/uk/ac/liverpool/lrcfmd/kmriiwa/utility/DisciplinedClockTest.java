@@ -0,0 +1,93 @@
+package uk.ac.liverpool.lrcfmd.kmriiwa.utility;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the time of the clock never goes backwards when a new estimate
+ * replaces the previous one. The samples are added directly, so no NTP server
+ * is queried.
+ */
+public class DisciplinedClockTest {
+
+	private static final long DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private DisciplinedClock clock;
+	private long offsetNanos;
+
+	@Before
+	public void setUp()
+	{
+		clock = new DisciplinedClock(InetAddress.getLoopbackAddress(), null);
+		// a server 10 s ahead of the wall time
+		offsetNanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() + 10000) - System.nanoTime();
+		clock.addSample(System.nanoTime(), offsetNanos, DELAY_NANOS);
+	}
+
+	@Test
+	public void smallBackwardDifferenceIsSlewed() throws InterruptedException
+	{
+		long before = timeNanos();
+		clock.addSample(System.nanoTime(), offsetNanos - TimeUnit.MILLISECONDS.toNanos(50), DELAY_NANOS);
+		long after = timeNanos();
+		assertTrue("time went back by " + (before - after) + " ns", after >= before);
+		// the difference is slewed out slowly, so the time carries on from the previous estimate
+		assertEquals(before, after, TimeUnit.MILLISECONDS.toNanos(5));
+		assertAdvances();
+	}
+
+	@Test
+	public void smallForwardDifferenceIsSlewed() throws InterruptedException
+	{
+		long before = timeNanos();
+		clock.addSample(System.nanoTime(), offsetNanos + TimeUnit.MILLISECONDS.toNanos(50), DELAY_NANOS);
+		long after = timeNanos();
+		assertEquals(before, after, TimeUnit.MILLISECONDS.toNanos(5));
+		assertAdvances();
+	}
+
+	@Test
+	public void largeBackwardStepHoldsTheTime() throws InterruptedException
+	{
+		long before = timeNanos();
+		clock.addSample(System.nanoTime(), offsetNanos - TimeUnit.SECONDS.toNanos(5), DELAY_NANOS);
+		for (int i = 0; i < 10; i++)
+		{
+			long after = timeNanos();
+			assertTrue("time went back by " + (before - after) + " ns", after >= before);
+			Thread.sleep(1);
+		}
+	}
+
+	@Test
+	public void largeForwardStepIsStepped()
+	{
+		long before = timeNanos();
+		clock.addSample(System.nanoTime(), offsetNanos + TimeUnit.SECONDS.toNanos(5), DELAY_NANOS);
+		long after = timeNanos();
+		assertEquals(before + TimeUnit.SECONDS.toNanos(5), after, TimeUnit.MILLISECONDS.toNanos(100));
+	}
+
+	private void assertAdvances() throws InterruptedException
+	{
+		long last = timeNanos();
+		for (int i = 0; i < 10; i++)
+		{
+			Thread.sleep(2);
+			long now = timeNanos();
+			assertTrue("time didn't advance", now > last);
+			last = now;
+		}
+	}
+
+	private long timeNanos()
+	{
+		return clock.getCurrentTime().totalNsecs();
+	}
+}